@@ -37,7 +37,7 @@ public class CommandUpload implements Callable<Integer> {
     @CommandLine.Option(names = {"-n", "--name"}, description = "Name (relative path) of the file/folder to upload", required = true)
     String name;
 
-    @CommandLine.Option(names = {"-z", "--recreate"}, description = "Whether elastic index should be deleted before entering data")
+    @CommandLine.Option(names = {"-z", "--recreate"}, description = "Whether elastic index should be deleted before entering data. Without it, only datafiles added, changed or removed since the last upload are re-indexed")
     boolean recreateIndex;
 
     @CommandLine.Option(names = {"-d", "--dry"}, description = "When used, prints the dataset instead of uploading.")
@@ -56,6 +56,10 @@ public class CommandUpload implements Callable<Integer> {
             System.out.println("There can be no upload without passing in -p and -n");
             return 1;
         }
+        if (!dry) {
+            // dimensions have to be read before a reset, since the new index is mapped from them
+            application.replaceRootDirectoryWith(Path.of(path));
+        }
         if (recreateIndex) {
             application.factoryReset();
         }
@@ -63,7 +67,6 @@ public class CommandUpload implements Callable<Integer> {
         if (dry) {
             application.dryMakeAvailableInAPI(Paths.get(path, name).toString());
         } else {
-            application.replaceRootDirectoryWith(Path.of(path));
             application.makeAvailableInAPI(name);
         }
         return 0;
@@ -0,0 +1,122 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.beanconverters;
+
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Rewrites queries that mean the same thing into the same form, so that they look the same to caches: ours, and
+ * elastic's request cache, which goes by the bytes of the request.
+ * <p>
+ * Terms and ranges are ordered by field, the terms of a field are sorted and deduplicated with the special null term
+ * (if any) first, and range bounds without a value are dropped. Fields to return keep their order, since that is the
+ * order of columns, but lose duplicates. Empty terms, ranges and field lists become null. The input is never modified.
+ */
+public class CanonicalQueries {
+    public static DataQuery of(DataQuery dataQuery) {
+        DataQuery canonical = DataQuery.of(canonicalTerms(dataQuery.getTerms()), canonicalRanges(dataQuery.getRanges()));
+        List<String> includes = dataQuery.getIncludes();
+        canonical.setIncludes(includes == null || includes.isEmpty() ? null : new ArrayList<>(new TreeSet<>(includes)));
+        canonical.setFields(distinct(dataQuery.getFields()));
+        return canonical;
+    }
+
+    public static @Nullable
+    Filter of(@Nullable Filter filter) {
+        if (filter == null) {
+            return null;
+        }
+        return Filter.FilterBuilder.aFilter()
+                .withTerms(canonicalTerms(filter.getTerms()))
+                .withRanges(canonicalRanges(filter.getRanges()))
+                .build();
+    }
+
+    public static FilterAndSelectFields of(FilterAndSelectFields filterAndFields) {
+        FilterAndSelectFields canonical = new FilterAndSelectFields();
+        canonical.setFilter(of(filterAndFields.getFilter().orElse(null)));
+        List<String> fields = filterAndFields.getFields();
+        canonical.setFields(fields == null ? null : new ArrayList<>(new LinkedHashSet<>(fields)));
+        return canonical;
+    }
+
+    private static @Nullable
+    Map<String, List<String>> canonicalTerms(@Nullable Map<String, List<String>> terms) {
+        if (terms == null || terms.isEmpty()) {
+            return null;
+        }
+        Map<String, List<String>> canonical = new TreeMap<>();
+        terms.forEach((field, values) -> canonical.put(field, canonicalValues(values)));
+        return canonical;
+    }
+
+    private static List<String> canonicalValues(@Nullable Collection<String> values) {
+        List<String> canonical = new ArrayList<>();
+        if (values == null) {
+            return canonical;
+        }
+        if (values.contains(null)) {
+            canonical.add(null);
+        }
+        values.stream()
+                .filter(Objects::nonNull)
+                .distinct()
+                .sorted()
+                .forEach(canonical::add);
+        return canonical;
+    }
+
+    private static @Nullable
+    Map<String, Map<String, String>> canonicalRanges(@Nullable Map<String, Map<String, String>> ranges) {
+        if (ranges == null || ranges.isEmpty()) {
+            return null;
+        }
+        Map<String, Map<String, String>> canonical = new TreeMap<>();
+        ranges.forEach((field, bounds) -> {
+            Map<String, String> canonicalBounds = new TreeMap<>();
+            if (bounds != null) {
+                bounds.forEach((bound, value) -> {
+                    if (value != null) {
+                        canonicalBounds.put(bound, value);
+                    }
+                });
+            }
+            canonical.put(field, canonicalBounds);
+        });
+        return canonical;
+    }
+
+    private static @Nullable
+    List<String> distinct(@Nullable List<String> fields) {
+        if (fields == null || fields.isEmpty()) {
+            return null;
+        }
+        return new ArrayList<>(new LinkedHashSet<>(fields));
+    }
+}
@@ -19,11 +19,30 @@ package org.metastringfoundation.healthheatmap.beanconverters;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.beans.Filter;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.TreeSet;
+
 public class FilterToDataQuery {
     public static DataQuery convert(Filter filter) {
-        DataQuery dataQuery = new DataQuery();
-        dataQuery.setTerms(filter.getTerms());
-        dataQuery.setRanges(filter.getRanges());
+        return CanonicalQueries.of(DataQuery.of(filter.getTerms(), filter.getRanges()));
+    }
+
+    public static DataQuery convertProjecting(Filter filter, @Nullable List<String> fields) {
+        DataQuery dataQuery = convert(filter);
+        if (fields != null && !fields.isEmpty()) {
+            dataQuery.setFields(new ArrayList<>(new LinkedHashSet<>(fields)));
+        }
+        return dataQuery;
+    }
+
+    public static DataQuery convert(Filter filter, @Nullable List<String> includes) {
+        DataQuery dataQuery = convert(filter);
+        if (includes != null && !includes.isEmpty()) {
+            dataQuery.setIncludes(new ArrayList<>(new TreeSet<>(includes)));
+        }
         return dataQuery;
     }
 }
@@ -0,0 +1,165 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.helpers;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A data point that keeps only its values, at the positions its {@link RowSchema} gives their fields. Rows of a
+ * dataset share one schema, so field names are stored once per dataset instead of once per row, and equal values
+ * are the same string.
+ * <p>
+ * Behaves as any other map, except that fields come in the order the schema first saw them, and null values are not
+ * kept: putting one removes the field. Not thread safe, like the maps it replaces.
+ */
+public final class CompactRow extends AbstractMap<String, String> {
+    private final RowSchema schema;
+    private String[] values;
+    private int size = 0;
+
+    public CompactRow(RowSchema schema) {
+        this.schema = schema;
+        this.values = new String[schema.size()];
+    }
+
+    /**
+     * @return copies of the rows, all sharing a new schema
+     */
+    public static List<CompactRow> compact(List<? extends Map<String, String>> rows) {
+        RowSchema schema = new RowSchema();
+        List<CompactRow> compacted = new ArrayList<>(rows.size());
+        for (Map<String, String> row : rows) {
+            CompactRow compactRow = new CompactRow(schema);
+            compactRow.putAll(row);
+            compacted.add(compactRow);
+        }
+        return compacted;
+    }
+
+    @Override
+    public String get(Object key) {
+        int position = schema.positionOf(key);
+        return position < 0 || position >= values.length ? null : values[position];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (value == null) {
+            return remove(key);
+        }
+        int position = schema.positionOfOrAdd(key);
+        if (position >= values.length) {
+            values = Arrays.copyOf(values, schema.size());
+        }
+        String previous = values[position];
+        values[position] = schema.intern(value);
+        if (previous == null) {
+            size += 1;
+        }
+        return previous;
+    }
+
+    @Override
+    public String remove(Object key) {
+        int position = schema.positionOf(key);
+        if (position < 0 || position >= values.length || values[position] == null) {
+            return null;
+        }
+        return removeAt(position);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Entries();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private String removeAt(int position) {
+        String previous = values[position];
+        values[position] = null;
+        size -= 1;
+        return previous;
+    }
+
+    private class Entries implements Iterator<Entry<String, String>> {
+        private int next = advanceFrom(0);
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = advanceFrom(next + 1);
+            return new SimpleImmutableEntry<>(schema.fieldAt(last), values[last]);
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0 || values[last] == null) {
+                throw new IllegalStateException();
+            }
+            removeAt(last);
+        }
+
+        private int advanceFrom(int position) {
+            while (position < values.length && values[position] == null) {
+                position += 1;
+            }
+            return position;
+        }
+    }
+}
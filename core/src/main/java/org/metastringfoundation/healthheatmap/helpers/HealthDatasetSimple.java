@@ -30,8 +30,11 @@ public class HealthDatasetSimple implements HealthDataset {
         this.dataPointsWithError = dataPointsWithError;
     }
 
+    /**
+     * Takes the data points of the dataset as {@link CompactRow}s, so that they needn't each carry their field names
+     */
     public static HealthDatasetSimple from(HealthDatasetFromDataset preTransformDataset) {
-        return new HealthDatasetSimple(preTransformDataset.getData(), preTransformDataset.getDataPointsWithError());
+        return new HealthDatasetSimple(CompactRow.compact(preTransformDataset.getData()), preTransformDataset.getDataPointsWithError());
     }
 
     @Override
@@ -18,6 +18,7 @@ package org.metastringfoundation.healthheatmap.helpers;
 
 import javax.json.bind.Jsonb;
 import javax.json.bind.JsonbBuilder;
+import java.lang.reflect.Type;
 
 public class Jsonizer {
     private static final Jsonb jsonb = JsonbBuilder.create();
@@ -29,4 +30,12 @@ public class Jsonizer {
     public static String asJSON(Object anything) {
         return jsonb.toJson(anything);
     }
+
+    public static <T> T fromJSON(String json, Class<T> clazz) {
+        return jsonb.fromJson(json, clazz);
+    }
+
+    public static <T> T fromJSON(String json, Type type) {
+        return jsonb.fromJson(json, type);
+    }
 }
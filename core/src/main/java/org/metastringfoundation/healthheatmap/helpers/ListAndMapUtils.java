@@ -18,8 +18,10 @@ package org.metastringfoundation.healthheatmap.helpers;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.stream.Collectors;
 
 public class ListAndMapUtils {
@@ -101,4 +103,43 @@ public class ListAndMapUtils {
         }
         return cast;
     }
+
+    /**
+     * Pivots cells, such as the distinct combinations of values from a composite aggregation, so that each value of
+     * dimensionToTranspose becomes a column holding that cell's "value". Rows are told apart by the values of
+     * rowFields; a row leaves out the fields it has no value for. Unlike {@link #reshapeCast(List, String)}, a cell
+     * that turns up twice with the same value is taken once, since several data points agreeing on it is no conflict.
+     *
+     * @throws IllegalArgumentException if a row has two different values in the same column
+     */
+    public static List<Map<String, String>> pivot(List<Map<String, Object>> cells, List<String> rowFields, String dimensionToTranspose) {
+        // rows are keyed by a list of their values, which is cheaper to hash than the whole row
+        Map<List<String>, Map<String, String>> columnsOfRows = new LinkedHashMap<>();
+        for (Map<String, Object> cell : cells) {
+            List<String> row = new ArrayList<>(rowFields.size());
+            for (String field : rowFields) {
+                row.add((String) cell.get(field));
+            }
+            String column = (String) cell.get(dimensionToTranspose);
+            String value = (String) cell.get("value");
+            Map<String, String> columns = columnsOfRows.computeIfAbsent(row, whatever -> new HashMap<>());
+            if (columns.containsKey(column) && !Objects.equals(columns.get(column), value)) {
+                throw new IllegalArgumentException("Both " + columns.get(column) + " and " + value + " for " + column
+                        + " at " + row);
+            }
+            columns.put(column, value);
+        }
+        List<Map<String, String>> cast = new ArrayList<>(columnsOfRows.size());
+        columnsOfRows.forEach((row, columns) -> {
+            Map<String, String> merged = new LinkedHashMap<>();
+            for (int i = 0; i < rowFields.size(); i++) {
+                if (row.get(i) != null) {
+                    merged.put(rowFields.get(i), row.get(i));
+                }
+            }
+            merged.putAll(columns);
+            cast.add(merged);
+        });
+        return cast;
+    }
 }
@@ -0,0 +1,69 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.helpers;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fields shared by the {@link CompactRow}s of a dataset, each at a fixed position, along with a single copy of every
+ * value those rows hold. Fields are added as rows bring new ones and are never removed. Safe to share between threads.
+ */
+public final class RowSchema {
+    private final Map<String, Integer> positions = new ConcurrentHashMap<>();
+    private final Interner<String> values = Interners.newStrongInterner();
+    private volatile String[] fields = new String[0];
+
+    /**
+     * @return position of the field, or -1 if no row has had it
+     */
+    int positionOf(Object field) {
+        if (field == null) {
+            return -1;
+        }
+        return positions.getOrDefault(field, -1);
+    }
+
+    synchronized int positionOfOrAdd(String field) {
+        Integer position = positions.get(field);
+        if (position == null) {
+            position = fields.length;
+            String[] extended = Arrays.copyOf(fields, position + 1);
+            extended[position] = field;
+            // the field must be visible at its position before the position is
+            fields = extended;
+            positions.put(field, position);
+        }
+        return position;
+    }
+
+    String fieldAt(int position) {
+        return fields[position];
+    }
+
+    int size() {
+        return fields.length;
+    }
+
+    String intern(String value) {
+        return values.intern(value);
+    }
+}
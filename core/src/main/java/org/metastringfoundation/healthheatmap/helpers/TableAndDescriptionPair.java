@@ -33,6 +33,13 @@ public class TableAndDescriptionPair {
     public TableAndDescriptionPair(Table table, List<Path> metadataFilesApplicable) throws IOException {
         this.table = table;
         LOG.debug("table is " + table.getTable().toString());
+        this.tableDescription = describe(metadataFilesApplicable);
+    }
+
+    /**
+     * Merges the metadata files that exist, later ones taking precedence, without needing the table itself
+     */
+    public static TableDescription describe(List<Path> metadataFilesApplicable) throws IOException {
         List<Path> metadataThatExists = FileManager.restrictToExistingFiles(metadataFilesApplicable);
 
         if (metadataThatExists.size() == 0) {
@@ -41,14 +48,15 @@ public class TableAndDescriptionPair {
         LOG.debug("Reading metadata files: ");
         metadataFilesApplicable.forEach(LOG::debug);
 
-        tableDescription = calculateTableDescription(metadataThatExists);
+        TableDescription tableDescription = calculateTableDescription(metadataThatExists);
         if (tableDescription == null) {
             throw new IOException("Couldn't read any table metadata");
         }
         LOG.debug("Metadata is " + tableDescription);
+        return tableDescription;
     }
 
-    private TableDescription calculateTableDescription(List<Path> metadataFilesApplicable) {
+    private static TableDescription calculateTableDescription(List<Path> metadataFilesApplicable) {
         TableDescription tableDescription = null;
         for (Path metadata: metadataFilesApplicable) {
             try {
@@ -26,14 +26,16 @@ import org.metastringfoundation.healthheatmap.beans.HealthDatasetBatchRead;
 import org.metastringfoundation.healthheatmap.beans.VerificationResultField;
 import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
 import org.metastringfoundation.healthheatmap.helpers.TableAndDescriptionPair;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
-public interface Application extends DatasetStore, ApplicationMetadataStore {
+public interface Application extends AsyncDatasetStore, ApplicationMetadataStore {
     void shutdown() throws IOException;
 
     HealthDataset asHealthDataset(TableAndDescriptionPair tableAndDescriptionPair, List<DataTransformer> transformers) throws DatasetIntegrityError;
@@ -76,6 +78,14 @@ public interface Application extends DatasetStore, ApplicationMetadataStore {
 
     Map<String, List<String>> getFieldsPossibleAt(Filter filter) throws IOException;
 
+    CompletionStage<Map<String, List<String>>> getFieldsPossibleAtAsync(Filter filter);
+
+    /**
+     * @return what scoring the entities under the filter needs, along with the values of every dimension other than
+     * indicator and entity, each of which should have a single value for scores to be meaningful
+     */
+    ScoringData getScoringData(Filter filter) throws IOException;
+
     HealthDatasetBatchRead getTheseDatasets(List<String> names);
 
     List<String> getAllIndicatorsWithAssociations();
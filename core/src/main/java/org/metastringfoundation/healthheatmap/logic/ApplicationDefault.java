@@ -16,6 +16,8 @@
 
 package org.metastringfoundation.healthheatmap.logic;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.jboss.logging.Logger;
 import org.metastringfoundation.data.DataPoint;
 import org.metastringfoundation.data.Dataset;
@@ -26,17 +28,28 @@ import org.metastringfoundation.datareader.dataset.table.TableToDatasetAdapter;
 import org.metastringfoundation.healthheatmap.beans.*;
 import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
 import org.metastringfoundation.healthheatmap.helpers.TableAndDescriptionPair;
+import org.metastringfoundation.healthheatmap.logic.etl.StreamingIngestPipeline;
 import org.metastringfoundation.healthheatmap.logic.etl.TableDatasetInterpreter;
+import org.metastringfoundation.healthheatmap.storage.SelectedStore;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
-import org.metastringfoundation.healthheatmap.storage.elastic.ElasticStore;
-
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
+import org.metastringfoundation.healthheatmap.storage.cache.CachedStore;
+import org.metastringfoundation.healthheatmap.storage.elastic.DataPointIds;
+import org.metastringfoundation.healthheatmap.storage.file.CorpusSnapshot;
+
+import javax.annotation.Nullable;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
 
 /**
@@ -47,23 +60,25 @@ import java.util.stream.Collectors;
 public class ApplicationDefault implements Application {
     private static final Logger LOG = Logger.getLogger(ApplicationDefault.class);
 
-    private final DatasetStore datasetStore;
+    private final AsyncDatasetStore datasetStore;
     private final ApplicationMetadataStore metadataStore;
     private final FileStore fileStore;
     private final DatafilesManager datafilesManager;
     private final HealthDatasetsManager healthDatasetsManager;
     private final TransformersManager transformersManager;
     private final DimensionsManager dimensionsManager;
+    private final IngestSettings ingestSettings;
 
     @Inject
     public ApplicationDefault(
-            @ElasticStore DatasetStore datasetStore,
-            @ElasticStore ApplicationMetadataStore metadataStore,
+            @CachedStore AsyncDatasetStore datasetStore,
+            @SelectedStore ApplicationMetadataStore metadataStore,
             FileStore fileStore,
             DatafilesManager datafilesManager,
             HealthDatasetsManager healthDatasetsManager,
             TransformersManager transformersManager,
-            DimensionsManager dimensionsManager
+            DimensionsManager dimensionsManager,
+            IngestSettings ingestSettings
     ) {
         this.datasetStore = datasetStore;
         this.metadataStore = metadataStore;
@@ -72,21 +87,46 @@ public class ApplicationDefault implements Application {
         this.healthDatasetsManager = healthDatasetsManager;
         this.transformersManager = transformersManager;
         this.dimensionsManager = dimensionsManager;
+        this.ingestSettings = ingestSettings;
     }
 
     @Override
-    public void save(HealthDataset dataset) throws IOException {
-        datasetStore.save(dataset);
+    public IngestReport save(HealthDataset dataset) throws IOException {
+        return datasetStore.save(dataset);
     }
 
 
-    private void save(Map<String, HealthDataset> healthDatasets) throws IOException {
+    private Map<String, IngestReport> save(Map<String, HealthDataset> healthDatasets) throws IOException {
+        Map<String, IngestReport> reports = new LinkedHashMap<>();
         int count = 0;
         for (Map.Entry<String, HealthDataset> entry : healthDatasets.entrySet()) {
             count += 1;
             System.out.print("\rSaving " + count + "/" + healthDatasets.entrySet().size() + ": " + entry.getKey());
-            save(entry.getValue());
+            IngestReport repeats = DataPointIds.repeatsIn(entry.getValue().getData());
+            reports.put(entry.getKey(), repeats.plus(save(entry.getValue())));
+        }
+        System.out.println();
+        return reports;
+    }
+
+    private static void printIngestReports(Map<String, IngestReport> reports) {
+        IngestReport total = IngestReport.empty();
+        for (Map.Entry<String, IngestReport> entry : reports.entrySet()) {
+            IngestReport report = entry.getValue();
+            total = total.plus(report);
+            if (report.hasFailures()) {
+                LOG.warn(entry.getKey() + ": indexed " + report.getIndexed() + ", failed " + report.getFailed()
+                        + ". Some failures: " + report.getFailureSamples());
+            } else {
+                LOG.info(entry.getKey() + ": indexed " + report.getIndexed());
+            }
         }
+        LOG.info("Indexed " + total.getIndexed() + " documents in total, " + total.getFailed() + " failed");
+    }
+
+    @Override
+    public void deleteDatafile(String datafile) throws IOException {
+        datasetStore.deleteDatafile(datafile);
     }
 
     @Override
@@ -94,15 +134,51 @@ public class ApplicationDefault implements Application {
         return datasetStore.query(dataQuery);
     }
 
+    @Override
+    public CompletionStage<DataQueryResult> queryAsync(DataQuery dataQuery) {
+        return datasetStore.queryAsync(dataQuery);
+    }
+
+    @Override
+    public void stream(DataQuery dataQuery, DataPointConsumer consumer) throws IOException {
+        datasetStore.stream(dataQuery, consumer);
+    }
+
     @Override
     public List<Map<String, Object>> getAllTermsOfFields(FilterAndSelectFields filterAndFields) throws IOException {
         return datasetStore.getAllTermsOfFields(filterAndFields);
     }
 
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields) {
+        return datasetStore.getAllTermsOfFieldsAsync(filterAndFields);
+    }
+
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields, int limit) {
+        return datasetStore.getAllTermsOfFieldsAsync(filterAndFields, limit);
+    }
+
     @Override
     public void factoryReset() throws IOException {
         datasetStore.factoryReset();
         metadataStore.factoryReset();
+        dimensionsManager.clearAssociations();
+    }
+
+    @Override
+    public void publish() throws IOException {
+        datasetStore.publish();
+    }
+
+    @Override
+    public void beginBulkLoad() throws IOException {
+        datasetStore.beginBulkLoad();
+    }
+
+    @Override
+    public Map<String, IngestReport> endBulkLoad() throws IOException {
+        return datasetStore.endBulkLoad();
     }
 
     @Override
@@ -125,6 +201,16 @@ public class ApplicationDefault implements Application {
         metadataStore.markDatafileAsSaved(datafile);
     }
 
+    @Override
+    public void markDatafileAsSaved(String datafile, @Nullable String fingerprint) throws IOException {
+        metadataStore.markDatafileAsSaved(datafile, fingerprint);
+    }
+
+    @Override
+    public void unmarkDatafileAsSaved(String datafile) throws IOException {
+        metadataStore.unmarkDatafileAsSaved(datafile);
+    }
+
     @Override
     public boolean getHealth() throws IOException {
         return datasetStore.getHealth();
@@ -135,6 +221,21 @@ public class ApplicationDefault implements Application {
         return metadataStore.getSavedDataFiles();
     }
 
+    @Override
+    public Map<String, String> getSavedDataFileFingerprints() throws IOException {
+        return metadataStore.getSavedDataFileFingerprints();
+    }
+
+    @Override
+    public String getDataGeneration() throws IOException {
+        return metadataStore.getDataGeneration();
+    }
+
+    @Override
+    public void bumpDataGeneration() throws IOException {
+        metadataStore.bumpDataGeneration();
+    }
+
     @Override
     public List<VerificationResultField> verify(Table table, List<TableDescription> tableDescriptions) throws DatasetIntegrityError {
         Dataset dataset = TableToDatasetAdapter.of(table, tableDescriptions);
@@ -223,9 +324,37 @@ public class ApplicationDefault implements Application {
 
     @Override
     public Map<String, List<String>> getFieldsPossibleAt(Filter filter) throws IOException {
+        return getDimensionsPossibleAt(getFieldsFilteredOn(), filter);
+    }
+
+    @Override
+    public CompletionStage<Map<String, List<String>>> getFieldsPossibleAtAsync(Filter filter) {
+        return getDimensionsPossibleAtAsync(getFieldsFilteredOn(), filter);
+    }
+
+    @Override
+    public ScoringData getScoringData(Filter filter) throws IOException {
+        List<String> dimensionsToCheck = getFieldsFilteredOn();
+        // these are expected to have many values
+        dimensionsToCheck.remove("indicator.id");
+        dimensionsToCheck.remove("entity.id");
+        return getScoringData(filter, dimensionsToCheck);
+    }
+
+    @Override
+    public ScoringData getScoringData(Filter filter, List<String> dimensionsToCheck) throws IOException {
+        return datasetStore.getScoringData(filter, dimensionsToCheck);
+    }
+
+    @Override
+    public List<ValueStatistics> getValueStatistics(@Nullable Filter filter, @Nullable String groupBy, List<Double> percents) throws IOException {
+        return datasetStore.getValueStatistics(filter, groupBy, percents);
+    }
+
+    private List<String> getFieldsFilteredOn() {
         List<String> knownDimensions = dimensionsManager.getKnownDimensions().stream().map(d -> d + ".id").collect(Collectors.toList());
         knownDimensions.add("entity.type");
-        return getDimensionsPossibleAt(knownDimensions, filter);
+        return knownDimensions;
     }
 
 
@@ -234,11 +363,16 @@ public class ApplicationDefault implements Application {
         return datasetStore.getDimensionsPossibleAt(dimensions, filter);
     }
 
+    @Override
+    public CompletionStage<Map<String, List<String>>> getDimensionsPossibleAtAsync(List<String> dimensions, Filter filter) {
+        return datasetStore.getDimensionsPossibleAtAsync(dimensions, filter);
+    }
+
 
     @Override
     public HealthDatasetBatchRead getTheseDatasets(List<String> names) {
         List<DatasetPointer> datasetPointers = datafilesManager.getTheseDatasets(names);
-        return TableDatasetInterpreter.readHealthDatasetBatch(datasetPointers);
+        return TableDatasetInterpreter.readHealthDatasetBatch(datasetPointers, ingestSettings.getWorkers());
     }
 
 
@@ -284,30 +418,181 @@ public class ApplicationDefault implements Application {
         dimensionsManager.refresh();
     }
 
+    /**
+     * Takes up the indicator associations saved by the last upload, as the web tier does when it starts
+     */
     @Override
     public void reloadMemoryStores() throws IOException {
-        LOG.info("Reading already saved datasets");
-        List<String> datasetsUploaded = metadataStore.getSavedDataFiles();
-        LOG.info("Found about " + datasetsUploaded.size() + " datasets.");
-//        Map<String, HealthDataset> datasetsReloaded = healthDatasetsManager.getDatasetsWithAugmentation(datasetsUploaded);
-        // performance penalty for in memory associations manager
-//        dimensionsManager.persistAssociationWithIndicator(datasetsReloaded.values());
-    }
-
+        dimensionsManager.reloadAssociations();
+    }
+
+    /**
+     * For stores filled before associations were saved: reads them off the id fields of everything stored, once, so
+     * that the datafiles an upload leaves alone still have theirs
+     */
+    private void rebuildAssociationsFromStore() throws IOException {
+        LOG.info("No associations were saved yet. Reading them from the store");
+        DataQuery ids = DataQuery.of(null, null);
+        List<String> fields = new ArrayList<>(List.of("meta.datafile"));
+        dimensionsManager.getKnownDimensions().forEach(dimension -> fields.add(dimension + ".id"));
+        ids.setFields(fields);
+        dimensionsManager.clearAssociations();
+        datasetStore.stream(ids, dimensionsManager::persistAssociationWithIndicator);
+    }
+
+    /**
+     * Brings the store in line with the datafiles under the given path. Datafiles whose fingerprint matches the one
+     * recorded at their last upload are left alone; changed ones are deleted and indexed again, and ones that are
+     * no longer on disk are deleted. Indicator associations follow the same datafiles and are saved alongside.
+     * Finally, the result is published for readers.
+     */
     @Override
     public void makeAvailableInAPI(String path) throws IOException {
-        Map<String, HealthDataset> datasetsAtPath = healthDatasetsManager.getDatasetsUnderNameWithAugmentation(path);
-        LOG.info("Saving " + datasetsAtPath.keySet().size() + " datasets. This might take a while");
-        save(datasetsAtPath);
-        // in memory association manager has performance issues
-//        dimensionsManager.persistAssociationWithIndicator(datasetsAtPath.values());
-        for (String file : datasetsAtPath.keySet()) {
-            markDatafileAsSaved(file);
+        List<DatasetPointer> datasetPointers = datafilesManager.getTheseDatasets(datafilesManager.getDatasetsAtName(path));
+        Map<String, String> savedFingerprints = metadataStore.getSavedDataFileFingerprints();
+        Map<String, String> fingerprints = getFingerprints(datasetPointers);
+        if (!savedFingerprints.isEmpty() && !Files.exists(fileStore.getAssociationsFile())) {
+            rebuildAssociationsFromStore();
+        }
+        boolean deleted = deleteDatafilesNoLongerPresent(path, savedFingerprints.keySet(), fingerprints.keySet());
+
+        List<DatasetPointer> changed = new ArrayList<>();
+        for (DatasetPointer datasetPointer : datasetPointers) {
+            String name = datasetPointer.getName();
+            String fingerprint = fingerprints.get(name);
+            if (fingerprint == null || !fingerprint.equals(savedFingerprints.get(name))) {
+                changed.add(datasetPointer);
+                if (savedFingerprints.containsKey(name)) {
+                    datasetStore.deleteDatafile(name);
+                }
+                dimensionsManager.forgetAssociationsOf(name);
+                // recorded without a fingerprint until saved in full, so that what an upload failing halfway leaves
+                // behind is deleted by the next one
+                metadataStore.markDatafileAsSaved(name, null);
+            }
+        }
+        LOG.info((datasetPointers.size() - changed.size()) + " datasets are unchanged since they were last saved");
+
+        Map<String, IngestReport> reports = new LinkedHashMap<>();
+        datasetStore.beginBulkLoad();
+        try {
+            reports.putAll(ingestSettings.isStreaming()
+                    ? saveStreaming(changed)
+                    : saveFromMemory(changed));
+        } finally {
+            // writes still in flight at the end of saving are only accounted for here
+            datasetStore.endBulkLoad().forEach((datafile, report) -> reports.merge(datafile, report, IngestReport::plus));
+        }
+        printIngestReports(reports);
+        datasetStore.publish();
+        // even files that were only partly saved change what readers see
+        metadataStore.bumpDataGeneration();
+        for (Map.Entry<String, IngestReport> entry : reports.entrySet()) {
+            // files with failures keep their record without a fingerprint, so they are cleared and saved again on the
+            // next upload
+            if (!entry.getValue().hasFailures()) {
+                metadataStore.markDatafileAsSaved(entry.getKey(), fingerprints.get(entry.getKey()));
+            }
         }
+        dimensionsManager.saveAssociations();
+        writeSnapshot(deleted || !changed.isEmpty());
         LOG.info("Here are the datasets with errors");
         TableDatasetInterpreter.printTransformersReport(transformersManager.getAll());
     }
 
+    /**
+     * Copies everything published, along with the dimensions, into a snapshot for the web tier to start from. A
+     * snapshot that can't be brought up to date is removed, so that nothing starts from stale data.
+     */
+    private void writeSnapshot(boolean corpusChanged) throws IOException {
+        Path snapshotFile = fileStore.getSnapshotFile();
+        if (!ingestSettings.isSnapshotting()) {
+            Files.deleteIfExists(snapshotFile);
+            return;
+        }
+        if (!corpusChanged && Files.exists(snapshotFile)) {
+            LOG.info("Nothing was saved or deleted, so " + snapshotFile + " is still current");
+            return;
+        }
+        LOG.info("Writing snapshot to " + snapshotFile);
+        DataQuery everything = DataQuery.of(null, null);
+        everything.setIncludes(List.of("meta.lineage"));
+        Path dimensionsDirectory = fileStore.getDimensionsDirectory();
+        try (CorpusSnapshot.Writer writer = CorpusSnapshot.writer(snapshotFile, CorpusSnapshot.stampOf(dimensionsDirectory, fileStore.getFiles(dimensionsDirectory)))) {
+            datasetStore.stream(everything, dataPoint -> writer.addRow(dataPoint.get("_id"), dataPoint));
+            dimensionsManager.getDimensionTables().forEach(writer::addDimension);
+            writer.commit();
+        } catch (IOException e) {
+            LOG.error("Could not write snapshot. The web tier will read datafiles instead", e);
+            Files.deleteIfExists(snapshotFile);
+        }
+    }
+
+    private Map<String, String> getFingerprints(List<DatasetPointer> datasetPointers) throws IOException {
+        String dimensionsFingerprint = getDimensionsFingerprint();
+        Map<String, String> fingerprints = new HashMap<>();
+        for (DatasetPointer datasetPointer : datasetPointers) {
+            try {
+                String fingerprint = Hashing.sha256().newHasher()
+                        .putString(datasetPointer.getFingerprint(), StandardCharsets.UTF_8)
+                        .putString(dimensionsFingerprint, StandardCharsets.UTF_8)
+                        .hash().toString();
+                fingerprints.put(datasetPointer.getName(), fingerprint);
+            } catch (IOException e) {
+                LOG.warn("Could not fingerprint " + datasetPointer.getName() + "; it will be saved again", e);
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Dimension files decide how every datafile gets augmented, so they are a part of each datafile's fingerprint
+     */
+    private String getDimensionsFingerprint() throws IOException {
+        Path dimensionsDirectory = fileStore.getDimensionsDirectory();
+        List<Path> files = new ArrayList<>(fileStore.getFiles(dimensionsDirectory));
+        Collections.sort(files);
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Path file : files) {
+            hasher.putString(fileStore.getRelativeName(file, dimensionsDirectory), StandardCharsets.UTF_8);
+            hasher.putString(fileStore.getFileAsString(file), StandardCharsets.UTF_8);
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * @return whether any datafile was deleted
+     */
+    private boolean deleteDatafilesNoLongerPresent(String path, Set<String> saved, Set<String> present) throws IOException {
+        boolean deleted = false;
+        for (String datafile : saved) {
+            if (DatafilesManager.isUnderName(datafile, path) && !present.contains(datafile)) {
+                LOG.info(datafile + " is no longer present. Deleting it from the store");
+                datasetStore.deleteDatafile(datafile);
+                metadataStore.unmarkDatafileAsSaved(datafile);
+                dimensionsManager.forgetAssociationsOf(datafile);
+                deleted = true;
+            }
+        }
+        return deleted;
+    }
+
+    private Map<String, IngestReport> saveStreaming(List<DatasetPointer> datasetPointers) throws IOException {
+        LOG.info("Streaming " + datasetPointers.size() + " datasets into the store. This might take a while");
+        StreamingIngestPipeline.Result result = new StreamingIngestPipeline(dimensionsManager, datasetStore, ingestSettings)
+                .run(datasetPointers);
+        result.getErrors().forEach((datafile, error) -> LOG.error("Could not read " + datafile, error));
+        return result.getReports();
+    }
+
+    private Map<String, IngestReport> saveFromMemory(List<DatasetPointer> datasetPointers) throws IOException {
+        List<String> names = datasetPointers.stream().map(DatasetPointer::getName).collect(Collectors.toList());
+        Map<String, HealthDataset> datasets = healthDatasetsManager.getDatasetsWithAugmentation(names);
+        LOG.info("Saving " + datasets.keySet().size() + " datasets. This might take a while");
+        dimensionsManager.persistAssociationWithIndicator(datasets.values());
+        return save(datasets);
+    }
+
     @Override
     public void dryMakeAvailableInAPI(String path) throws IOException, DatasetIntegrityError {
         TableDatasetInterpreter.print(fileStore.getDataFiles(path));
@@ -18,17 +18,46 @@ package org.metastringfoundation.healthheatmap.logic;
 
 import org.metastringfoundation.healthheatmap.beans.DownloadRequest;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 public interface ApplicationMetadataStore {
     void logDownload(DownloadRequest downloadRequest) throws IOException;
 
     void markDatafileAsSaved(String datafile) throws IOException;
 
+    /**
+     * Records the datafile as saved. Like {@link #unmarkDatafileAsSaved(String)}, this leaves the data generation
+     * alone; whoever changes the data bumps it once they are done, see {@link #bumpDataGeneration()}
+     */
+    void markDatafileAsSaved(String datafile, @Nullable String fingerprint) throws IOException;
+
+    void unmarkDatafileAsSaved(String datafile) throws IOException;
+
     void factoryReset() throws IOException;
 
     boolean getHealth() throws IOException;
 
     List<String> getSavedDataFiles() throws IOException;
+
+    /**
+     * @return fingerprint each datafile had when it was saved; null for datafiles saved without one
+     * @throws IOException if the store cannot be reached
+     */
+    Map<String, String> getSavedDataFileFingerprints() throws IOException;
+
+    /**
+     * @return a token that changes whenever the uploaded data changes; empty if nothing has been uploaded yet
+     * @throws IOException if the store cannot be reached
+     */
+    String getDataGeneration() throws IOException;
+
+    /**
+     * Changes the token returned by {@link #getDataGeneration()}, telling readers (in any process) that data has changed
+     *
+     * @throws IOException if the store cannot be reached
+     */
+    void bumpDataGeneration() throws IOException;
 }
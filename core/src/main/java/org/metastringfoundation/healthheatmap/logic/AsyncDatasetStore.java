@@ -0,0 +1,48 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.logic;
+
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A {@link DatasetStore} that can also answer reads without holding on to the calling thread. The returned stages
+ * complete on the store's own I/O threads, so whatever is chained onto them must not block.
+ */
+public interface AsyncDatasetStore extends DatasetStore {
+    CompletionStage<DataQueryResult> queryAsync(DataQuery dataQuery);
+
+    CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields);
+
+    /**
+     * Same as {@link #getAllTermsOfFieldsAsync(FilterAndSelectFields)}, except that reading stops once more than
+     * {@code limit} combinations are in, so that fields with too many of them don't have to be read in full
+     *
+     * @param filterAndFields filter and the fields whose combinations are wanted
+     * @param limit           most combinations wanted
+     * @return every combination if there are at most {@code limit}; otherwise more than {@code limit} of them, cut short
+     */
+    CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields, int limit);
+
+    CompletionStage<Map<String, List<String>>> getDimensionsPossibleAtAsync(List<String> dimensions, Filter filter);
+}
@@ -37,4 +37,16 @@ public interface DatafilesManager {
     Optional<Dataset> getDatasetByName(String filename) throws IOException, DatasetIntegrityError;
 
     List<String> getDatasetsAtName(String name);
+
+    /**
+     * @param datafile relative name of a datafile
+     * @param name     relative name of a file or folder, empty for the whole data directory
+     * @return whether the datafile is the file named, or within the folder named
+     */
+    static boolean isUnderName(String datafile, String name) {
+        if (name == null || name.isEmpty()) {
+            return true;
+        }
+        return datafile.equals(name) || datafile.startsWith(name + "/") || (name.endsWith("/") && datafile.startsWith(name)); // NOPMD - improved readability of operator precedence
+    }
 }
@@ -26,4 +26,11 @@ public interface DatasetPointer {
     Dataset getDataset() throws IOException, DatasetIntegrityError;
     List<DataTransformer> getTransformers();
     String getName();
+
+    /**
+     * @return a hash of everything that decides what this dataset looks like once read: the data, its metadata and
+     * the rules of its transformers. Changes whenever any of those change.
+     * @throws IOException if any of those couldn't be read
+     */
+    String getFingerprint() throws IOException;
 }
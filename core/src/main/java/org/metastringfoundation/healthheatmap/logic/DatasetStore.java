@@ -21,23 +21,101 @@ import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
 import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
 public interface DatasetStore {
-    void save(HealthDataset dataset) throws IOException;
+    /**
+     * Writes the data points of the dataset. Between {@link #beginBulkLoad()} and {@link #endBulkLoad()}, writes may
+     * still be in flight when this returns, and what becomes of them is reported by {@link #endBulkLoad()} instead.
+     *
+     * @param dataset data points to write
+     * @return counts of data points written and failed, as far as they are known by now
+     * @throws IOException if the store cannot be reached
+     */
+    IngestReport save(HealthDataset dataset) throws IOException;
+
+    /**
+     * Removes every data point that came from the given datafile
+     *
+     * @param datafile relative name of the datafile, as recorded in meta.datafile
+     * @throws IOException if the store cannot be reached
+     */
+    void deleteDatafile(String datafile) throws IOException;
 
     void shutdown() throws IOException;
 
     DataQueryResult query(DataQuery dataQuery) throws IOException;
 
+    /**
+     * Hands every data point matching the query to the consumer as it is read, without holding them all in memory
+     *
+     * @param dataQuery filters and fields, as for {@link #query(DataQuery)}
+     * @param consumer  called once per data point, in no particular order
+     * @throws IOException if the store cannot be reached or the consumer fails
+     */
+    void stream(DataQuery dataQuery, DataPointConsumer consumer) throws IOException;
+
     List<Map<String, Object>> getAllTermsOfFields(FilterAndSelectFields filterAndFields) throws IOException;
 
     void factoryReset() throws IOException;
 
+    /**
+     * Makes everything written since the last factory reset visible to readers, all at once
+     *
+     * @throws IOException if the store cannot be reached
+     */
+    void publish() throws IOException;
+
+    /**
+     * Tunes the store for a large batch of writes. Must be followed by {@link #endBulkLoad()}, even if the writes fail.
+     *
+     * @throws IOException if the store cannot be reached
+     */
+    void beginBulkLoad() throws IOException;
+
+    /**
+     * Waits for writes still in flight, undoes {@link #beginBulkLoad()} and makes the written data ready for querying
+     *
+     * @return what became of the writes that were still in flight when they were saved, by meta.datafile
+     * @throws IOException if the store cannot be reached
+     */
+    Map<String, IngestReport> endBulkLoad() throws IOException;
+
     boolean getHealth() throws IOException;
 
     Map<String, List<String>> getDimensionsPossibleAt(List<String> dimensions, Filter filter) throws IOException;
+
+    /**
+     * Gathers what scoring the entities under a filter takes, without handing over the data points themselves
+     *
+     * @param filter            the entities and indicators to score
+     * @param dimensionsToCheck dimensions whose values under the filter should come along, as in
+     *                          {@link #getDimensionsPossibleAt(List, Filter)}
+     * @return values of each indicator in each entity, and the values of the dimensions to check
+     * @throws IOException if the store cannot be reached
+     */
+    ScoringData getScoringData(Filter filter, List<String> dimensionsToCheck) throws IOException;
+
+    /**
+     * Summarizes the values that are numbers among the data points under a filter
+     *
+     * @param filter   the data points to summarize; null for all of them
+     * @param groupBy  field whose every value gets a summary of its own; null for a single summary
+     * @param percents percentiles wanted, like 50.0 for the median
+     * @return one summary, or one per value of groupBy in ascending order
+     * @throws IOException if the store cannot be reached
+     */
+    List<ValueStatistics> getValueStatistics(@Nullable Filter filter, @Nullable String groupBy, List<Double> percents) throws IOException;
+
+    @FunctionalInterface
+    interface DataPointConsumer {
+        void accept(Map<String, String> dataPoint) throws IOException;
+    }
 }
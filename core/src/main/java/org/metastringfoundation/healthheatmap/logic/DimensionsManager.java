@@ -42,14 +42,44 @@ public interface DimensionsManager {
 
     HealthDataset augmentDatasetWithDimensionInfo(HealthDataset dataset);
 
-    // TODO: Use a graph database here
     void persistAssociationWithIndicator(Collection<HealthDataset> datasets);
 
+    /**
+     * Remembers which known dimension ids the (augmented or stored) data point has alongside its indicator, as part of
+     * the datafile it came from
+     */
+    void persistAssociationWithIndicator(Map<String, String> dataPoint);
+
+    void forgetAssociationsOf(String datafile);
+
+    /**
+     * Keeps the associations of every datafile for later runs, see {@link #reloadAssociations()}
+     */
+    void saveAssociations() throws IOException;
+
+    /**
+     * Replaces the associations with what was last saved; none if nothing was
+     */
+    void reloadAssociations() throws IOException;
+
     Map<String, List<String>> fieldsAssociatedWithIndicator(String indicator);
 
     List<String> getAllIndicatorsWithAssociations();
 
+    void clearAssociations();
+
     List<ValuePointAssociation> getDimensionAssociationsOf(List<? extends Map<String, String>> data);
 
     List<String> getKnownDimensions();
+
+    /**
+     * @param dimension name of a known dimension
+     * @return every column that records of the dimension have, like id or name; empty for an unknown dimension
+     */
+    Set<String> getPropertiesOf(String dimension);
+
+    /**
+     * @return dimension -> id -> property -> value, for every known dimension; not to be modified
+     */
+    Map<String, Map<String, Map<String, String>>> getDimensionTables();
 }
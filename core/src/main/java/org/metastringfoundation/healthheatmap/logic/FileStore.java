@@ -32,6 +32,16 @@ public interface FileStore {
     Path getDataFilesDirectory();
     Path getDimensionsDirectory();
 
+    /**
+     * @return where the snapshot of the last upload lives; the file need not exist
+     */
+    Path getSnapshotFile();
+
+    /**
+     * @return where the indicator associations of everything uploaded live; the file need not exist
+     */
+    Path getAssociationsFile();
+
     Path getAbsolutePath(Path path);
     List<Path> getDataFiles(Path path) throws IOException;
     List<Path> getDataFiles(String path) throws IOException;
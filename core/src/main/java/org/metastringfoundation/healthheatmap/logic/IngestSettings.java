@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.logic;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+/**
+ * Knobs for how datafiles flow from disk into the dataset store.
+ */
+@ApplicationScoped
+public class IngestSettings {
+    private static final boolean DEFAULT_STREAMING = true;
+    private static final int DEFAULT_CHUNK_SIZE = 10000;
+    private static final int DEFAULT_BUFFERED_CHUNKS = 4;
+    private static final int DEFAULT_WORKERS = 0;
+    private static final boolean DEFAULT_SNAPSHOT = false;
+
+    private final boolean streaming;
+    private final int chunkSize;
+    private final int bufferedChunks;
+    private final int workers;
+    private final boolean snapshot;
+
+    @Inject
+    public IngestSettings(
+            @ConfigProperty(name = "hhm.ingest.streaming", defaultValue = "" + DEFAULT_STREAMING) boolean streaming,
+            @ConfigProperty(name = "hhm.ingest.chunk-size", defaultValue = "" + DEFAULT_CHUNK_SIZE) int chunkSize,
+            @ConfigProperty(name = "hhm.ingest.buffered-chunks", defaultValue = "" + DEFAULT_BUFFERED_CHUNKS) int bufferedChunks,
+            @ConfigProperty(name = "hhm.ingest.workers", defaultValue = "" + DEFAULT_WORKERS) int workers,
+            @ConfigProperty(name = "hhm.ingest.snapshot", defaultValue = "" + DEFAULT_SNAPSHOT) boolean snapshot
+    ) {
+        this.streaming = streaming;
+        this.chunkSize = chunkSize;
+        this.bufferedChunks = bufferedChunks;
+        this.workers = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        this.snapshot = snapshot;
+    }
+
+    public static IngestSettings defaults() {
+        return new IngestSettings(DEFAULT_STREAMING, DEFAULT_CHUNK_SIZE, DEFAULT_BUFFERED_CHUNKS, DEFAULT_WORKERS, DEFAULT_SNAPSHOT);
+    }
+
+    /**
+     * @return whether uploads flow through the bounded pipeline instead of reading everything into memory first
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return data points handed from one pipeline stage to the next in one go
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return chunks that may wait between two pipeline stages before the earlier stage blocks
+     */
+    public int getBufferedChunks() {
+        return bufferedChunks;
+    }
+
+    /**
+     * @return datafiles read and transformed at the same time; defaults to the number of cores
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return whether an upload ends by writing a snapshot of everything published, for the web tier to start from.
+     * Off by default, since it reads back the whole corpus; worth turning on with {@code hhm.store=memory}, whose
+     * store is loaded from it
+     */
+    public boolean isSnapshotting() {
+        return snapshot;
+    }
+}
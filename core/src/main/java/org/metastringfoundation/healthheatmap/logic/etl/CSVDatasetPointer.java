@@ -16,14 +16,18 @@
 
 package org.metastringfoundation.healthheatmap.logic.etl;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.jboss.logging.Logger;
 import org.metastringfoundation.data.Dataset;
 import org.metastringfoundation.data.DatasetIntegrityError;
 import org.metastringfoundation.datareader.dataset.table.Table;
+import org.metastringfoundation.datareader.dataset.table.TableDescription;
 import org.metastringfoundation.datareader.dataset.table.TableToDatasetAdapter;
 import org.metastringfoundation.datareader.dataset.table.csv.CSVTable;
 import org.metastringfoundation.healthheatmap.beans.HealthDatasetMetadata;
 import org.metastringfoundation.healthheatmap.beans.TransformerMeta;
+import org.metastringfoundation.healthheatmap.helpers.FileManager;
 import org.metastringfoundation.healthheatmap.helpers.Jsonizer;
 import org.metastringfoundation.healthheatmap.helpers.TableAndDescriptionPair;
 import org.metastringfoundation.healthheatmap.logic.DataTransformer;
@@ -32,8 +36,14 @@ import org.metastringfoundation.healthheatmap.logic.FileStore;
 import org.metastringfoundation.healthheatmap.logic.TransformersManager;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import static org.metastringfoundation.healthheatmap.helpers.PathManager.guessMetadataPath;
 
@@ -43,33 +53,51 @@ public class CSVDatasetPointer implements DatasetPointer {
     private final Path path;
     private final FileStore fileStore;
     private final TransformersManager transformersManager;
-    private final TableAndDescriptionPair tableAndDescriptionPair;
+    private final List<Path> metadataFilesApplicable;
 
-    public CSVDatasetPointer(Path path, FileStore fileStore, TransformersManager transformersManager) throws IOException, DatasetIntegrityError {
+    public CSVDatasetPointer(Path path, FileStore fileStore, TransformersManager transformersManager) {
         this.path = path;
         this.fileStore = fileStore;
         this.transformersManager = transformersManager;
-        this.tableAndDescriptionPair = calculateTableAndDescription();
+        this.metadataFilesApplicable = calculateMetadataFilesApplicable();
     }
 
-    private TableAndDescriptionPair calculateTableAndDescription() throws IOException, DatasetIntegrityError {
-        Table table = new CSVTable(this.path);
-        List<Path> metadataFilesApplicable = fileStore.resolveInAllAncestors("metadata.json", this.path);
-        metadataFilesApplicable.add(guessMetadataPath(this.path));
-        return new TableAndDescriptionPair(table, metadataFilesApplicable);
+    private List<Path> calculateMetadataFilesApplicable() {
+        List<Path> metadataFiles = fileStore.resolveInAllAncestors("metadata.json", this.path);
+        metadataFiles.add(guessMetadataPath(this.path));
+        return metadataFiles;
     }
 
+    /**
+     * Parses the table afresh every time rather than holding on to it, so that pointers (which live as long as the
+     * datafiles manager) don't keep every datafile on the heap
+     */
     @Override
-    public Dataset getDataset() throws DatasetIntegrityError {
+    public Dataset getDataset() throws IOException, DatasetIntegrityError {
+        Table table = new CSVTable(this.path);
+        TableAndDescriptionPair tableAndDescription = new TableAndDescriptionPair(table, metadataFilesApplicable);
         return new TableToDatasetAdapter(
-                tableAndDescriptionPair.getTable(),
-                tableAndDescriptionPair.getTableDescription()
+                tableAndDescription.getTable(),
+                tableAndDescription.getTableDescription()
         );
     }
 
     @Override
     public List<DataTransformer> getTransformers() {
-        HealthDatasetMetadata metadata = Jsonizer.convert(tableAndDescriptionPair.getTableDescription().getMetadata(), HealthDatasetMetadata.class);
+        try {
+            return readTransformers();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Transformers come from the metadata files alone, so working them out (as fingerprinting does for every datafile
+     * on every upload) never parses the CSV
+     */
+    private List<DataTransformer> readTransformers() throws IOException {
+        TableDescription description = TableAndDescriptionPair.describe(metadataFilesApplicable);
+        HealthDatasetMetadata metadata = Jsonizer.convert(description.getMetadata(), HealthDatasetMetadata.class);
         if (metadata == null || metadata.getTransformers() == null) {
             LOG.info("No transformers found in metadata");
             return List.of();
@@ -82,4 +110,41 @@ public class CSVDatasetPointer implements DatasetPointer {
     public String getName() {
         return fileStore.getRelativeName(path, fileStore.getDataFilesDirectory());
     }
+
+    @Override
+    public String getFingerprint() throws IOException {
+        Hasher hasher = Hashing.sha256().newHasher();
+        hasher.putBytes(Files.readAllBytes(path));
+        for (Path metadata : FileManager.restrictToExistingFiles(metadataFilesApplicable)) {
+            hasher.putString(fileStore.getRelativeName(metadata, fileStore.getDataFilesDirectory()), StandardCharsets.UTF_8);
+            hasher.putBytes(Files.readAllBytes(metadata));
+        }
+        for (DataTransformer transformer : readTransformers()) {
+            if (transformer != null) {
+                hasher.putString(transformer.getClass().getName(), StandardCharsets.UTF_8);
+                putRules(hasher, transformer.getRules());
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Hashes what the rules say rather than how they happen to be held: each rule as JSON with its fields sorted, and
+     * the rules themselves in sorted order
+     */
+    private static void putRules(Hasher hasher, Map<Map<String, String>, List<Map<String, String>>> rules) {
+        List<String> encoded = rules.entrySet().stream()
+                .map(rule -> Jsonizer.asJSON(List.of(
+                        new TreeMap<>(rule.getKey()),
+                        rule.getValue().stream().map(TreeMap::new).collect(Collectors.toList())
+                )))
+                .sorted()
+                .collect(Collectors.toList());
+        hasher.putInt(encoded.size());
+        for (String rule : encoded) {
+            hasher.putString(rule, StandardCharsets.UTF_8);
+            // JSON never has a raw newline, so rules can't run into each other
+            hasher.putChar('\n');
+        }
+    }
 }
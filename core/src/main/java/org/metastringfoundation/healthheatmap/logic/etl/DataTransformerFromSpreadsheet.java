@@ -32,7 +32,7 @@ public class DataTransformerFromSpreadsheet implements DataTransformer {
     private final List<String> keyRawHeaders;
     private final List<String> keyHeaders;
     private final List<String> valueHeaders;
-    private final Set<Map<String, String>> lookupFailureKeys = new LinkedHashSet<>();
+    private final Set<Map<String, String>> lookupFailureKeys = Collections.synchronizedSet(new LinkedHashSet<>());
 
     public DataTransformerFromSpreadsheet(String spreadsheet) throws IOException {
         CSVParser csvParser = CSVParser.parse(spreadsheet, CSVFormat.DEFAULT.withFirstRecordAsHeader());
@@ -117,7 +117,9 @@ public class DataTransformerFromSpreadsheet implements DataTransformer {
 
     @Override
     public List<Map<String, String>> getUnmatchedKeysFound() {
-        return new ArrayList<>(lookupFailureKeys);
+        synchronized (lookupFailureKeys) {
+            return new ArrayList<>(lookupFailureKeys);
+        }
     }
 
     @Override
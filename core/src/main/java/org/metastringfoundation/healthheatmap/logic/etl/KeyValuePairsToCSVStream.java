@@ -0,0 +1,60 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.logic.etl;
+
+import com.google.common.collect.Iterables;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.metastringfoundation.healthheatmap.logic.DatasetStore;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Like {@link KeyValuePairsToCSV}, but writes each record out as it comes instead of building the CSV in memory.
+ * The columns have to be known up front.
+ */
+public class KeyValuePairsToCSVStream implements DatasetStore.DataPointConsumer, Flushable {
+    private final List<String> headers;
+    private final CSVPrinter csvPrinter;
+
+    public KeyValuePairsToCSVStream(Writer writer, List<String> headers) throws IOException {
+        this.headers = headers;
+        this.csvPrinter = new CSVPrinter(
+                writer,
+                CSVFormat.DEFAULT.withHeader(Iterables.toArray(headers, String.class)).withSystemRecordSeparator()
+        );
+    }
+
+    @Override
+    public void accept(Map<String, String> record) throws IOException {
+        List<String> printable = new ArrayList<>(headers.size());
+        for (String header : headers) {
+            printable.add(record.get(header));
+        }
+        csvPrinter.printRecord(printable);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        csvPrinter.flush();
+    }
+}
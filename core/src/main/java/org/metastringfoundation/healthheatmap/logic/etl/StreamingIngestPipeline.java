@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.logic.etl;
+
+import com.google.common.collect.Lists;
+import org.jboss.logging.Logger;
+import org.metastringfoundation.data.DatasetIntegrityError;
+import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
+import org.metastringfoundation.healthheatmap.helpers.HealthDatasetSimple;
+import org.metastringfoundation.healthheatmap.logic.DatasetPointer;
+import org.metastringfoundation.healthheatmap.logic.DatasetStore;
+import org.metastringfoundation.healthheatmap.logic.DimensionsManager;
+import org.metastringfoundation.healthheatmap.logic.IngestSettings;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.elastic.DataPointIds;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves datafiles into the dataset store through a chain of bounded stages:
+ * <p>
+ * read and transform (a few files at a time) -> augment with dimension info (noting indicator associations) -> save
+ * <p>
+ * Each stage hands chunks of data points to the next through a bounded queue, so a slow store holds back the
+ * reading instead of letting augmented data pile up. Readers parse a datafile in full before cutting it into chunks,
+ * so peak memory is one whole datafile per reader, plus the queued chunks, plus whatever the store is still writing.
+ * It grows with the largest datafile rather than with how many are uploaded.
+ * <p>
+ * Meant to be run between {@link DatasetStore#beginBulkLoad()} and {@link DatasetStore#endBulkLoad()}, so that the
+ * store queues each chunk onto one stream of bulk writes instead of waiting for it. Writes still in flight when the
+ * pipeline returns are reported by {@link DatasetStore#endBulkLoad()} rather than in {@link Result#getReports()}.
+ */
+public class StreamingIngestPipeline {
+    private static final Logger LOG = Logger.getLogger(StreamingIngestPipeline.class);
+    private static final Chunk END = new Chunk("", List.of(), IngestReport.empty());
+
+    private final DimensionsManager dimensionsManager;
+    private final DatasetStore datasetStore;
+    private final int chunkSize;
+    private final int bufferedChunks;
+    private final int readers;
+
+    public StreamingIngestPipeline(DimensionsManager dimensionsManager, DatasetStore datasetStore, IngestSettings settings) {
+        this.dimensionsManager = dimensionsManager;
+        this.datasetStore = datasetStore;
+        this.chunkSize = settings.getChunkSize();
+        this.bufferedChunks = settings.getBufferedChunks();
+        this.readers = settings.getWorkers();
+    }
+
+    /**
+     * Runs the whole pipeline over the given datafiles, returning once everything has been saved
+     *
+     * @param datasetPointers the datafiles to upload
+     * @return per-datafile reports of what got saved, along with datafiles that couldn't be read at all
+     * @throws IOException if the store fails or the pipeline is interrupted
+     */
+    public Result run(List<DatasetPointer> datasetPointers) throws IOException {
+        BlockingQueue<Chunk> transformed = new ArrayBlockingQueue<>(bufferedChunks);
+        BlockingQueue<Chunk> augmented = new ArrayBlockingQueue<>(bufferedChunks);
+        Map<String, Exception> errors = Collections.synchronizedMap(new LinkedHashMap<>());
+        Map<String, IngestReport> reports = new LinkedHashMap<>();
+        Queue<DatasetPointer> unread = new ConcurrentLinkedQueue<>(datasetPointers);
+        int readerCount = Math.max(1, Math.min(readers, datasetPointers.size()));
+        AtomicInteger readersLeft = new AtomicInteger(readerCount);
+        ExecutorService stages = Executors.newFixedThreadPool(readerCount + 2);
+        CompletionService<Void> running = new ExecutorCompletionService<>(stages);
+        try {
+            for (int i = 0; i < readerCount; i++) {
+                running.submit(() -> read(unread, readersLeft, transformed, errors));
+            }
+            running.submit(() -> augment(transformed, augmented));
+            running.submit(() -> save(augmented, reports));
+            // stages are waited on as they finish, so the first one to fail stops the rest before they block on a
+            // queue nobody takes from any more
+            for (int i = 0; i < readerCount + 2; i++) {
+                running.take().get();
+            }
+            return new Result(reports, errors);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while ingesting", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Ingest pipeline failed", e.getCause());
+        } finally {
+            // interrupts any stage still blocked on a queue, and lets go of whatever chunks were waiting
+            stages.shutdownNow();
+            transformed.clear();
+            augmented.clear();
+        }
+    }
+
+    private Void read(Queue<DatasetPointer> unread, AtomicInteger readersLeft, BlockingQueue<Chunk> out, Map<String, Exception> errors) throws InterruptedException {
+        for (DatasetPointer datasetPointer = unread.poll(); datasetPointer != null; datasetPointer = unread.poll()) {
+            String name = datasetPointer.getName();
+            LOG.info("Interpreting file: " + name);
+            List<? extends Map<String, String>> data;
+            try {
+                data = TableDatasetInterpreter.readHealthDataset(datasetPointer).getData();
+            } catch (DatasetIntegrityError | IOException | RuntimeException exception) {
+                errors.put(name, exception);
+                continue;
+            }
+            // only the first chunk carries the repeats, so that they're counted once
+            IngestReport repeats = DataPointIds.repeatsIn(data);
+            if (data.isEmpty()) {
+                out.put(new Chunk(name, List.of(), repeats));
+            }
+            for (List<? extends Map<String, String>> part : Lists.partition(data, chunkSize)) {
+                out.put(new Chunk(name, new ArrayList<>(part), repeats));
+                repeats = IngestReport.empty();
+            }
+        }
+        // the last reader to finish tells the next stage there's nothing more coming
+        if (readersLeft.decrementAndGet() == 0) {
+            out.put(END);
+        }
+        return null;
+    }
+
+    private Void augment(BlockingQueue<Chunk> in, BlockingQueue<Chunk> out) throws InterruptedException {
+        for (Chunk chunk = in.take(); chunk != END; chunk = in.take()) {
+            HealthDataset augmented = dimensionsManager.augmentDatasetWithDimensionInfo(
+                    new HealthDatasetSimple(chunk.dataPoints, Map.of())
+            );
+            dimensionsManager.persistAssociationWithIndicator(List.of(augmented));
+            out.put(new Chunk(chunk.datafile, augmented.getData(), chunk.report));
+        }
+        out.put(END);
+        return null;
+    }
+
+    private Void save(BlockingQueue<Chunk> in, Map<String, IngestReport> reports) throws IOException, InterruptedException {
+        for (Chunk chunk = in.take(); chunk != END; chunk = in.take()) {
+            IngestReport report = chunk.report;
+            if (!chunk.dataPoints.isEmpty()) {
+                report = report.plus(datasetStore.save(new HealthDatasetSimple(chunk.dataPoints, Map.of())));
+            }
+            reports.merge(chunk.datafile, report, IngestReport::plus);
+        }
+        return null;
+    }
+
+    private static class Chunk {
+        private final String datafile;
+        private final List<? extends Map<String, String>> dataPoints;
+        // what is already known of how the datafile fares, before any of it is saved
+        private final IngestReport report;
+
+        private Chunk(String datafile, List<? extends Map<String, String>> dataPoints, IngestReport report) {
+            this.datafile = datafile;
+            this.dataPoints = dataPoints;
+            this.report = report;
+        }
+    }
+
+    public static class Result {
+        private final Map<String, IngestReport> reports;
+        private final Map<String, Exception> errors;
+
+        private Result(Map<String, IngestReport> reports, Map<String, Exception> errors) {
+            this.reports = reports;
+            this.errors = errors;
+        }
+
+        public Map<String, IngestReport> getReports() {
+            return reports;
+        }
+
+        public Map<String, Exception> getErrors() {
+            return errors;
+        }
+    }
+}
@@ -34,6 +34,10 @@ import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import static org.metastringfoundation.healthheatmap.helpers.PathManager.guessMetadataPath;
@@ -66,20 +70,61 @@ public class TableDatasetInterpreter {
     }
 
     public static HealthDatasetBatchRead readHealthDatasetBatch(List<DatasetPointer> datasetPointers) {
-        Map<String, HealthDataset> result = new LinkedHashMap<>();
-        Map<String, Exception> errors = new HashMap<>();
-        for (DatasetPointer datasetPointer: datasetPointers) {
-            LOG.info("Interpreting file: " + datasetPointer.getName());
-            try {
-                result.put(datasetPointer.getName(), asHealthDataset(datasetPointer));
-            } catch (DatasetIntegrityError | IOException exception) {
-                errors.put(datasetPointer.getName(), exception);
+        return readHealthDatasetBatch(datasetPointers, 1);
+    }
+
+    /**
+     * Reads datafiles on a pool of workers. A failure in one file doesn't affect the others, and the result is
+     * in the same order as the pointers given, however many workers are used.
+     *
+     * @param datasetPointers datafiles to read
+     * @param workers         number of datafiles read at the same time
+     * @return datasets that could be read, along with errors of those that couldn't
+     */
+    public static HealthDatasetBatchRead readHealthDatasetBatch(List<DatasetPointer> datasetPointers, int workers) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, datasetPointers.size())));
+        try {
+            Map<String, Future<HealthDataset>> pending = new LinkedHashMap<>();
+            for (DatasetPointer datasetPointer : datasetPointers) {
+                pending.put(datasetPointer.getName(), executor.submit(() -> {
+                    LOG.info("Interpreting file: " + datasetPointer.getName());
+                    return readHealthDataset(datasetPointer);
+                }));
+            }
+            Map<String, HealthDataset> result = new LinkedHashMap<>();
+            Map<String, Exception> errors = new LinkedHashMap<>();
+            for (Map.Entry<String, Future<HealthDataset>> entry : pending.entrySet()) {
+                try {
+                    result.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    errors.put(entry.getKey(), asException(e.getCause()));
+                }
             }
+            return new HealthDatasetBatchRead(result, errors);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading datafiles", e);
+        } finally {
+            executor.shutdownNow();
         }
-        return new HealthDatasetBatchRead(result, errors);
     }
 
-    private static HealthDataset asHealthDataset(DatasetPointer datasetPointer) throws IOException, DatasetIntegrityError {
+    private static Exception asException(Throwable cause) {
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        throw new IllegalStateException(cause);
+    }
+
+    /**
+     * Reads and transforms a single datafile, tagging every data point with the datafile it came from
+     *
+     * @param datasetPointer the datafile to read
+     * @return transformed dataset of the datafile
+     * @throws IOException           if the datafile or its metadata cannot be read
+     * @throws DatasetIntegrityError if there is an issue with the data
+     */
+    public static HealthDataset readHealthDataset(DatasetPointer datasetPointer) throws IOException, DatasetIntegrityError {
         HealthDataset dataset = asHealthDataset(datasetPointer.getDataset(), datasetPointer.getTransformers());
         return addSourceName(dataset, datasetPointer.getName());
     }
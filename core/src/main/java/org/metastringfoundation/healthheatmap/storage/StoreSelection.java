@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.metastringfoundation.healthheatmap.logic.ApplicationMetadataStore;
+import org.metastringfoundation.healthheatmap.logic.AsyncDatasetStore;
+import org.metastringfoundation.healthheatmap.storage.elastic.ElasticStore;
+import org.metastringfoundation.healthheatmap.storage.memory.MemoryStore;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.enterprise.inject.Produces;
+import javax.enterprise.util.AnnotationLiteral;
+import javax.inject.Inject;
+import java.lang.annotation.Annotation;
+
+/**
+ * Picks the stores through hhm.store: "elastic" (the default) or "memory", which keeps data in this JVM and needs
+ * no external service. Only the picked stores get created.
+ */
+@ApplicationScoped
+public class StoreSelection {
+    public static final String ELASTIC = "elastic";
+    public static final String MEMORY = "memory";
+
+    private final Annotation qualifier;
+    private final Instance<AsyncDatasetStore> datasetStores;
+    private final Instance<ApplicationMetadataStore> metadataStores;
+
+    @Inject
+    public StoreSelection(
+            @ConfigProperty(name = "hhm.store", defaultValue = ELASTIC) String store,
+            @Any Instance<AsyncDatasetStore> datasetStores,
+            @Any Instance<ApplicationMetadataStore> metadataStores
+    ) {
+        switch (store) {
+            case ELASTIC:
+                qualifier = new AnnotationLiteral<ElasticStore>() {
+                };
+                break;
+            case MEMORY:
+                qualifier = new AnnotationLiteral<MemoryStore>() {
+                };
+                break;
+            default:
+                throw new IllegalArgumentException("hhm.store should be " + ELASTIC + " or " + MEMORY + ", not " + store);
+        }
+        this.datasetStores = datasetStores;
+        this.metadataStores = metadataStores;
+    }
+
+    @Produces
+    @SelectedStore
+    AsyncDatasetStore getDatasetStore() {
+        return datasetStores.select(qualifier).get();
+    }
+
+    @Produces
+    @SelectedStore
+    ApplicationMetadataStore getMetadataStore() {
+        return metadataStores.select(qualifier).get();
+    }
+}
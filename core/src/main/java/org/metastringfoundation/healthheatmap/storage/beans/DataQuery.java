@@ -26,6 +26,10 @@ public class DataQuery {
     Map<String, List<String>> terms;
     private @Nullable
     Map<String, Map<String, String>> ranges;
+    private @Nullable
+    List<String> includes;
+    private @Nullable
+    List<String> fields;
 
     public static DataQuery of(@Nullable Map<String, List<String>> terms, @Nullable Map<String, Map<String, String>> ranges) {
         DataQuery dataQuery = new DataQuery();
@@ -52,11 +56,37 @@ public class DataQuery {
         this.ranges = ranges;
     }
 
+    /**
+     * @return prefixes of fields that are left out of results by default but should be in them, like meta.original
+     */
+    public @Nullable
+    List<String> getIncludes() {
+        return includes;
+    }
+
+    public void setIncludes(@Nullable List<String> includes) {
+        this.includes = includes;
+    }
+
+    /**
+     * @return the only fields each result should have; all of them if null or empty
+     */
+    public @Nullable
+    List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(@Nullable List<String> fields) {
+        this.fields = fields;
+    }
+
     @Override
     public String toString() {
         return "DataQuery{" +
                 "terms=" + terms +
                 ", ranges=" + ranges +
+                ", includes=" + includes +
+                ", fields=" + fields +
                 '}';
     }
 
@@ -66,11 +96,13 @@ public class DataQuery {
         if (o == null || getClass() != o.getClass()) return false;
         DataQuery dataQuery = (DataQuery) o;
         return Objects.equals(terms, dataQuery.terms) &&
-                Objects.equals(ranges, dataQuery.ranges);
+                Objects.equals(ranges, dataQuery.ranges) &&
+                Objects.equals(includes, dataQuery.includes) &&
+                Objects.equals(fields, dataQuery.fields);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(terms, ranges);
+        return Objects.hash(terms, ranges, includes, fields);
     }
 }
@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.beans;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of saving a dataset: how many documents made it into the store and how many did not.
+ * Only a handful of failure messages are kept so that a badly broken dataset doesn't blow up the report itself.
+ */
+public class IngestReport {
+    public static final int MAX_FAILURE_SAMPLES = 10;
+
+    private final long indexed;
+    private final long failed;
+    private final List<String> failureSamples;
+
+    private IngestReport(long indexed, long failed, List<String> failureSamples) {
+        this.indexed = indexed;
+        this.failed = failed;
+        this.failureSamples = failureSamples;
+    }
+
+    public static IngestReport of(long indexed, long failed, List<String> failureSamples) {
+        return new IngestReport(indexed, failed, List.copyOf(failureSamples));
+    }
+
+    public static IngestReport empty() {
+        return new IngestReport(0, 0, List.of());
+    }
+
+    public IngestReport plus(IngestReport other) {
+        List<String> samples = new ArrayList<>(failureSamples);
+        other.failureSamples.stream()
+                .limit(Math.max(0, MAX_FAILURE_SAMPLES - samples.size()))
+                .forEach(samples::add);
+        return of(indexed + other.indexed, failed + other.failed, samples);
+    }
+
+    public long getIndexed() {
+        return indexed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public List<String> getFailureSamples() {
+        return failureSamples;
+    }
+
+    public boolean hasFailures() {
+        return failed > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestReport{" +
+                "indexed=" + indexed +
+                ", failed=" + failed +
+                ", failureSamples=" + failureSamples +
+                '}';
+    }
+}
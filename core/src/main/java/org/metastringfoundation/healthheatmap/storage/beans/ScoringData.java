@@ -0,0 +1,144 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.beans;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What scoring a filter needs from the store, already boiled down by it: each distinct value of each indicator in each
+ * entity (with how many data points have it), the lowest and highest number of each indicator, and the values other
+ * dimensions take, to check that the filter pins them down. Can't be modified.
+ */
+public class ScoringData {
+    private final List<Cell> cells;
+    private final Map<String, Range> ranges;
+    private final Map<String, List<String>> possibleValues;
+
+    private ScoringData(List<Cell> cells, Map<String, Range> ranges, Map<String, List<String>> possibleValues) {
+        this.cells = cells;
+        this.ranges = ranges;
+        this.possibleValues = possibleValues;
+    }
+
+    public static ScoringData of(List<Cell> cells, Map<String, Range> ranges, Map<String, List<String>> possibleValues) {
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        possibleValues.forEach((field, fieldValues) -> values.put(field, Collections.unmodifiableList(new ArrayList<>(fieldValues))));
+        return new ScoringData(List.copyOf(cells), Map.copyOf(ranges), Collections.unmodifiableMap(values));
+    }
+
+    public List<Cell> getCells() {
+        return cells;
+    }
+
+    /**
+     * @return lowest and highest number of each indicator; indicators without any number are left out
+     */
+    public Map<String, Range> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * @return values of the dimensions that were asked to be checked, as in {@code getDimensionsPossibleAt}
+     */
+    public Map<String, List<String>> getPossibleValues() {
+        return possibleValues;
+    }
+
+    public static class Cell {
+        private final @Nullable
+        String entity;
+        private final @Nullable
+        String indicator;
+        private final @Nullable
+        String type;
+        private final @Nullable
+        String value;
+        private final @Nullable
+        Double number;
+        private final long count;
+
+        public Cell(@Nullable String entity, @Nullable String indicator, @Nullable String type, @Nullable String value, @Nullable Double number, long count) {
+            this.entity = entity;
+            this.indicator = indicator;
+            this.type = type;
+            this.value = value;
+            this.number = number;
+            this.count = count;
+        }
+
+        public @Nullable
+        String getEntity() {
+            return entity;
+        }
+
+        public @Nullable
+        String getIndicator() {
+            return indicator;
+        }
+
+        /**
+         * @return whether the indicator is POSITIVE or NEGATIVE
+         */
+        public @Nullable
+        String getType() {
+            return type;
+        }
+
+        public @Nullable
+        String getValue() {
+            return value;
+        }
+
+        /**
+         * @return the value as a number, or null if it isn't one
+         */
+        public @Nullable
+        Double getNumber() {
+            return number;
+        }
+
+        /**
+         * @return data points with this very value for the entity and indicator
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+
+    public static class Range {
+        private final double min;
+        private final double max;
+
+        public Range(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -16,11 +16,17 @@
 
 package org.metastringfoundation.healthheatmap.storage.beans;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
+/**
+ * Can't be modified, since it is used as a key and indexed by its dimensions
+ */
 public class ValuePointAssociation {
-    public Map<String, String> staticValues;
-    public Map<String, String> dynamicDimensions;
+    public final Map<String, String> staticValues;
+    public final Map<String, String> dynamicDimensions;
 
     private ValuePointAssociation(Map<String, String> staticValues, Map<String, String> dynamicDimensions) {
         this.staticValues = staticValues;
@@ -28,6 +34,23 @@ public class ValuePointAssociation {
     }
 
     public static ValuePointAssociation of(Map<String, String> staticValues, Map<String, String> dynamicDimensions) {
-        return new ValuePointAssociation(staticValues, dynamicDimensions);
+        return new ValuePointAssociation(
+                Collections.unmodifiableMap(new HashMap<>(staticValues)),
+                Collections.unmodifiableMap(new HashMap<>(dynamicDimensions))
+        );
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ValuePointAssociation that = (ValuePointAssociation) o;
+        return Objects.equals(staticValues, that.staticValues) &&
+                Objects.equals(dynamicDimensions, that.dynamicDimensions);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(staticValues, dynamicDimensions);
     }
 }
@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.beans;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+
+/**
+ * Summary of the numbers among the values of some data points. Everything but the count is null when none of the
+ * values is a number. Can't be modified.
+ */
+public class ValueStatistics {
+    private final @Nullable
+    String group;
+    private final long count;
+    private final @Nullable
+    Double min;
+    private final @Nullable
+    Double max;
+    private final @Nullable
+    Double avg;
+    private final @Nullable
+    Double sum;
+    private final Map<String, Double> percentiles;
+
+    public ValueStatistics(
+            @Nullable String group,
+            long count,
+            @Nullable Double min,
+            @Nullable Double max,
+            @Nullable Double avg,
+            @Nullable Double sum,
+            Map<String, Double> percentiles
+    ) {
+        this.group = group;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.avg = avg;
+        this.sum = sum;
+        this.percentiles = Map.copyOf(percentiles);
+    }
+
+    /**
+     * @return value of the field the data points were grouped by, or null if they weren't
+     */
+    public @Nullable
+    String getGroup() {
+        return group;
+    }
+
+    /**
+     * @return data points whose value is a number
+     */
+    public long getCount() {
+        return count;
+    }
+
+    public @Nullable
+    Double getMin() {
+        return min;
+    }
+
+    public @Nullable
+    Double getMax() {
+        return max;
+    }
+
+    public @Nullable
+    Double getAvg() {
+        return avg;
+    }
+
+    public @Nullable
+    Double getSum() {
+        return sum;
+    }
+
+    /**
+     * @return the number below which the given percentage of numbers fall, keyed by the percentage (like "50.0")
+     */
+    public Map<String, Double> getPercentiles() {
+        return percentiles;
+    }
+}
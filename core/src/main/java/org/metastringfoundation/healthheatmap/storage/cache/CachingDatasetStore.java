@@ -0,0 +1,466 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.beanconverters.CanonicalQueries;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
+import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
+import org.metastringfoundation.healthheatmap.helpers.Jsonizer;
+import org.metastringfoundation.healthheatmap.logic.ApplicationMetadataStore;
+import org.metastringfoundation.healthheatmap.logic.AsyncDatasetStore;
+import org.metastringfoundation.healthheatmap.storage.SelectedStore;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
+
+import javax.annotation.Nullable;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps results of reads in memory, in front of the actual store.
+ * <p>
+ * Every cached result is filed under the data generation it was read at. The generation changes when this process
+ * writes to the store, and when the shared generation in the metadata store changes (which an upload from any process
+ * bumps). That one is looked up at most once every {@code hhm.cache.generation-check-ms}. Results of an older generation
+ * are never served again; they are dropped as soon as the change is noticed. The cache is bounded by an estimate of
+ * the memory its results take up, and results too big for a fair share of it aren't cached at all. Whatever is handed
+ * out is a copy, so callers are free to modify it. Identical requests that miss at the same time share a single read
+ * of the store.
+ * <p>
+ * Possible values of fields are answered from a {@link CooccurrenceCube} of those fields instead, whenever the filter
+ * only picks terms. The cube is built in the background the first time it's needed at a generation; until then, such
+ * requests are cached like any other. Only the last cube built is kept, and fields with more than
+ * {@value #MAX_CUBE_COMBINATIONS} combinations don't get one.
+ */
+@CachedStore
+@ApplicationScoped
+public class CachingDatasetStore implements AsyncDatasetStore {
+    private static final Logger LOG = Logger.getLogger(CachingDatasetStore.class);
+    private static final int DEFAULT_MAX_MB = 128;
+    private static final long DEFAULT_GENERATION_CHECK_MS = 1000;
+    private static final int MAX_CUBE_COMBINATIONS = 1_000_000;
+    // a single result may take up at most this share of the cache, so that one huge read doesn't push out the rest
+    private static final int MAX_ENTRY_SHARE = 16;
+
+    private final AsyncDatasetStore store;
+    private final ApplicationMetadataStore metadataStore;
+    private final boolean enabled;
+    private final long maxWeight;
+    private final long generationCheckMillis;
+    private final boolean cubeEnabled;
+    private final Cache<String, Object> cache;
+    // reads on their way to the store; identical requests arriving meanwhile wait on these instead of reading again
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong localGeneration = new AtomicLong();
+    private volatile String sharedGeneration = "";
+    private volatile long generationCheckedAt = Long.MIN_VALUE;
+    private volatile CooccurrenceCube cube;
+    // generation and fields that had too many combinations for a cube, so that it isn't tried again for every request
+    private volatile String cubeRefused = "";
+    private final AtomicBoolean cubeBuilding = new AtomicBoolean();
+
+    @Inject
+    public CachingDatasetStore(
+            @SelectedStore AsyncDatasetStore store,
+            @SelectedStore ApplicationMetadataStore metadataStore,
+            @ConfigProperty(name = "hhm.cache.enabled", defaultValue = "true") boolean enabled,
+            @ConfigProperty(name = "hhm.cache.max-mb", defaultValue = "" + DEFAULT_MAX_MB) int maxMb,
+            @ConfigProperty(name = "hhm.cache.generation-check-ms", defaultValue = "" + DEFAULT_GENERATION_CHECK_MS) long generationCheckMillis,
+            @ConfigProperty(name = "hhm.cache.cube.enabled", defaultValue = "true") boolean cubeEnabled
+    ) {
+        this.store = store;
+        this.metadataStore = metadataStore;
+        this.enabled = enabled;
+        this.maxWeight = maxMb * 1024L * 1024L;
+        this.generationCheckMillis = generationCheckMillis;
+        this.cubeEnabled = cubeEnabled;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher(ResultWeigher::weigh)
+                .recordStats()
+                .build();
+    }
+
+    @Override
+    public DataQueryResult query(DataQuery dataQuery) throws IOException {
+        return cached("query", CanonicalQueries.of(dataQuery), () -> store.query(dataQuery), CachingDatasetStore::copyOf);
+    }
+
+    @Override
+    public CompletionStage<DataQueryResult> queryAsync(DataQuery dataQuery) {
+        return cachedAsync("query", CanonicalQueries.of(dataQuery), () -> store.queryAsync(dataQuery), CachingDatasetStore::copyOf);
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllTermsOfFields(FilterAndSelectFields filterAndFields) throws IOException {
+        return cached("terms", CanonicalQueries.of(filterAndFields), () -> store.getAllTermsOfFields(filterAndFields), CachingDatasetStore::copyOfRecords);
+    }
+
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields) {
+        return cachedAsync("terms", CanonicalQueries.of(filterAndFields), () -> store.getAllTermsOfFieldsAsync(filterAndFields), CachingDatasetStore::copyOfRecords);
+    }
+
+    /**
+     * Not cached, since a result cut short at the limit says little besides that there are too many
+     */
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields, int limit) {
+        return store.getAllTermsOfFieldsAsync(filterAndFields, limit);
+    }
+
+    @Override
+    public Map<String, List<String>> getDimensionsPossibleAt(List<String> dimensions, Filter filter) throws IOException {
+        CooccurrenceCube current = getCube(dimensions);
+        if (current != null && current.canAnswer(filter)) {
+            return current.possibleAt(dimensions, filter);
+        }
+        return cached("possible", List.of(dimensions, describe(filter)), () -> store.getDimensionsPossibleAt(dimensions, filter), CachingDatasetStore::copyOfValues);
+    }
+
+    @Override
+    public CompletionStage<Map<String, List<String>>> getDimensionsPossibleAtAsync(List<String> dimensions, Filter filter) {
+        CooccurrenceCube current = getCube(dimensions);
+        if (current != null && current.canAnswer(filter)) {
+            return CompletableFuture.completedFuture(current.possibleAt(dimensions, filter));
+        }
+        return cachedAsync("possible", List.of(dimensions, describe(filter)), () -> store.getDimensionsPossibleAtAsync(dimensions, filter), CachingDatasetStore::copyOfValues);
+    }
+
+    @Override
+    public ScoringData getScoringData(Filter filter, List<String> dimensionsToCheck) throws IOException {
+        // can't be modified, so it can be handed out as it is
+        return cached("scoring", List.of(dimensionsToCheck, describe(filter)), () -> store.getScoringData(filter, dimensionsToCheck), UnaryOperator.identity());
+    }
+
+    @Override
+    public List<ValueStatistics> getValueStatistics(@Nullable Filter filter, @Nullable String groupBy, List<Double> percents) throws IOException {
+        // the statistics themselves can't be modified; only the list needs copying
+        return cached("statistics", Arrays.asList(groupBy, percents, describe(filter)), () -> store.getValueStatistics(filter, groupBy, percents), List::copyOf);
+    }
+
+    @Override
+    public void stream(DataQuery dataQuery, DataPointConsumer consumer) throws IOException {
+        store.stream(dataQuery, consumer);
+    }
+
+    @Override
+    public IngestReport save(HealthDataset dataset) throws IOException {
+        try {
+            return store.save(dataset);
+        } finally {
+            localGeneration.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void deleteDatafile(String datafile) throws IOException {
+        try {
+            store.deleteDatafile(datafile);
+        } finally {
+            localGeneration.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void factoryReset() throws IOException {
+        try {
+            store.factoryReset();
+        } finally {
+            localGeneration.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void publish() throws IOException {
+        try {
+            store.publish();
+        } finally {
+            localGeneration.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void beginBulkLoad() throws IOException {
+        store.beginBulkLoad();
+    }
+
+    @Override
+    public Map<String, IngestReport> endBulkLoad() throws IOException {
+        try {
+            return store.endBulkLoad();
+        } finally {
+            localGeneration.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        store.shutdown();
+    }
+
+    @Override
+    public boolean getHealth() throws IOException {
+        return store.getHealth();
+    }
+
+    /**
+     * @return hit, miss and eviction counts, along with how full the cache is
+     */
+    public Map<String, Object> getStatistics() {
+        CacheStats stats = cache.stats();
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", enabled);
+        statistics.put("generation", getGeneration());
+        statistics.put("entries", cache.size());
+        statistics.put("maxWeightBytes", maxWeight);
+        statistics.put("hits", stats.hitCount());
+        statistics.put("misses", stats.missCount());
+        statistics.put("hitRate", stats.hitRate());
+        statistics.put("evictions", stats.evictionCount());
+        CooccurrenceCube current = cube;
+        statistics.put("cubeGeneration", current == null ? null : current.getGeneration());
+        return statistics;
+    }
+
+    private <T> T cached(String kind, Object query, Read<T> read, UnaryOperator<T> copy) throws IOException {
+        if (!enabled) {
+            return read.read();
+        }
+        String key = keyOf(kind, query);
+        @SuppressWarnings("unchecked")
+        T hit = (T) cache.getIfPresent(key);
+        if (hit != null) {
+            return copy.apply(hit);
+        }
+        CompletableFuture<Object> reading = new CompletableFuture<>();
+        CompletableFuture<Object> already = inFlight.putIfAbsent(key, reading);
+        if (already != null) {
+            return copyOrNull(await(already), copy);
+        }
+        try {
+            T result = read.read();
+            finishReading(key, reading, result, null);
+            return copyOrNull(result, copy);
+        } catch (Throwable e) {
+            finishReading(key, reading, null, e);
+            throw e;
+        }
+    }
+
+    private <T> CompletionStage<T> cachedAsync(String kind, Object query, AsyncRead<T> read, UnaryOperator<T> copy) {
+        if (!enabled) {
+            return read.read();
+        }
+        String key = keyOf(kind, query);
+        @SuppressWarnings("unchecked")
+        T hit = (T) cache.getIfPresent(key);
+        if (hit != null) {
+            return CompletableFuture.completedFuture(copy.apply(hit));
+        }
+        CompletableFuture<Object> reading = new CompletableFuture<>();
+        CompletableFuture<Object> already = inFlight.putIfAbsent(key, reading);
+        if (already != null) {
+            return already.thenApply(result -> copyOrNull(result, copy));
+        }
+        try {
+            read.read().whenComplete((result, error) -> finishReading(key, reading, result, error));
+        } catch (RuntimeException e) {
+            finishReading(key, reading, null, e);
+        }
+        return reading.thenApply(result -> copyOrNull(result, copy));
+    }
+
+    /**
+     * Caches the result before letting go of the key, so that a request coming in between finds one or the other
+     */
+    private void finishReading(String key, CompletableFuture<Object> reading,
+                               @Nullable Object result, @Nullable Throwable error) {
+        if (error == null && result != null && ResultWeigher.weigh(key, result) <= maxWeight / MAX_ENTRY_SHARE) {
+            cache.put(key, result);
+        }
+        inFlight.remove(key, reading);
+        if (error == null) {
+            reading.complete(result);
+        } else {
+            reading.completeExceptionally(error);
+        }
+    }
+
+    @Nullable
+    private static Object await(CompletableFuture<Object> reading) throws IOException {
+        try {
+            return reading.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting on the same read from another request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    @Nullable
+    private static <T> T copyOrNull(@Nullable Object result, UnaryOperator<T> copy) {
+        @SuppressWarnings("unchecked")
+        T typed = (T) result;
+        return typed == null ? null : copy.apply(typed);
+    }
+
+    /**
+     * @return the cube of the fields at the current generation, or null if there isn't one yet; one is then started
+     * unless another is being built already
+     */
+    @Nullable
+    private CooccurrenceCube getCube(List<String> dimensions) {
+        if (!enabled || !cubeEnabled) {
+            return null;
+        }
+        String generation = getGeneration();
+        List<String> fields = CooccurrenceCube.fieldsOf(dimensions);
+        CooccurrenceCube current = cube;
+        if (current != null && current.getGeneration().equals(generation) && current.getFields().equals(fields)) {
+            return current;
+        }
+        String attempt = generation + "\n" + fields;
+        if (attempt.equals(cubeRefused)) {
+            return null;
+        }
+        if (cubeBuilding.compareAndSet(false, true)) {
+            LOG.debug("Building co-occurrence cube of " + fields + " at generation " + generation);
+            FilterAndSelectFields everything = new FilterAndSelectFields();
+            everything.setFields(List.copyOf(fields));
+            try {
+                // stops reading once there are too many, rather than reading them all only to throw them away
+                store.getAllTermsOfFieldsAsync(everything, MAX_CUBE_COMBINATIONS).whenComplete((terms, error) -> {
+                    try {
+                        if (error != null) {
+                            LOG.warn("Could not build co-occurrence cube: " + error.getMessage());
+                        } else if (terms.size() > MAX_CUBE_COMBINATIONS) {
+                            LOG.info("Not building a co-occurrence cube of " + fields + "; it has more than "
+                                    + MAX_CUBE_COMBINATIONS + " combinations");
+                            cubeRefused = attempt;
+                        } else {
+                            cube = new CooccurrenceCube(generation, fields, terms);
+                        }
+                    } finally {
+                        cubeBuilding.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                cubeBuilding.set(false);
+                throw e;
+            }
+        }
+        return null;
+    }
+
+    private String keyOf(String kind, Object query) {
+        // serialized right away, so that callers changing their query afterwards doesn't change the key
+        return getGeneration() + "\n" + kind + "\n" + Jsonizer.asJSON(query);
+    }
+
+    private String getGeneration() {
+        long now = System.currentTimeMillis();
+        if (now - generationCheckedAt >= generationCheckMillis) {
+            checkSharedGeneration(now);
+        }
+        return sharedGeneration + "/" + localGeneration.get();
+    }
+
+    private synchronized void checkSharedGeneration(long now) {
+        if (now - generationCheckedAt < generationCheckMillis) {
+            return;
+        }
+        String latest;
+        try {
+            latest = metadataStore.getDataGeneration();
+        } catch (IOException e) {
+            // no telling whether data has changed, so nothing cached so far can be trusted
+            LOG.warn("Could not look up data generation: " + e.getMessage());
+            latest = "unknown@" + now;
+        }
+        if (!latest.equals(sharedGeneration)) {
+            LOG.debug("Data generation changed from " + sharedGeneration + " to " + latest);
+            sharedGeneration = latest;
+            cache.invalidateAll();
+        }
+        generationCheckedAt = now;
+    }
+
+    private static String describe(Filter filter) {
+        return filter == null ? "" : Jsonizer.asJSON(CanonicalQueries.of(filter));
+    }
+
+    private static DataQueryResult copyOf(DataQueryResult result) {
+        return DataQueryResult.of(result.getResult().stream()
+                .<Map<String, String>>map(LinkedHashMap::new)
+                .collect(Collectors.toList()));
+    }
+
+    private static List<Map<String, Object>> copyOfRecords(List<Map<String, Object>> records) {
+        return records.stream()
+                .<Map<String, Object>>map(LinkedHashMap::new)
+                .collect(Collectors.toList());
+    }
+
+    private static Map<String, List<String>> copyOfValues(Map<String, List<String>> values) {
+        Map<String, List<String>> copy = new LinkedHashMap<>();
+        values.forEach((field, fieldValues) -> copy.put(field, new ArrayList<>(fieldValues)));
+        return copy;
+    }
+
+    @FunctionalInterface
+    private interface Read<T> {
+        T read() throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface AsyncRead<T> {
+        CompletionStage<T> read();
+    }
+}
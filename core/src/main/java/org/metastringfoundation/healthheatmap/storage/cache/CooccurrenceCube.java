@@ -0,0 +1,168 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.cache;
+
+import org.metastringfoundation.healthheatmap.beans.Filter;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * The combinations of values that some fields take together in the data, enough to tell which values of each field
+ * are still possible once others are picked.
+ * <p>
+ * Every distinct combination is numbered, and every value of every field gets a bitmap of the combinations that have
+ * it (null standing for not having the field). A filter on terms of these fields then becomes unions and
+ * intersections of bitmaps, without going to the store. Built once per data generation, and not modified after.
+ * <p>
+ * The fields are kept sorted, so one cube serves the same fields asked for in any order. It takes about a bitmap bit
+ * and an int per combination for every field, plus the distinct values; while it's being built, the combinations
+ * themselves are on the heap too, as maps.
+ */
+class CooccurrenceCube {
+    private final String generation;
+    private final List<String> fields;
+    private final int combinations;
+    // per field: its values in ascending order with null first, a value's position in that order, the combinations
+    // having each value, and the value each combination has
+    private final List<List<String>> values = new ArrayList<>();
+    private final List<Map<String, Integer>> codes = new ArrayList<>();
+    private final List<List<BitSet>> combinationsOf = new ArrayList<>();
+    private final List<int[]> codesOf = new ArrayList<>();
+
+    /**
+     * @param fields distinct and sorted, as {@link #fieldsOf(List)} gives them
+     * @param terms  every combination the fields take, as {@code getAllTermsOfFields} gives them
+     */
+    CooccurrenceCube(String generation, List<String> fields, List<Map<String, Object>> terms) {
+        this.generation = generation;
+        this.fields = List.copyOf(fields);
+        this.combinations = terms.size();
+        for (String field : fields) {
+            TreeSet<String> distinct = new TreeSet<>(Comparator.nullsFirst(Comparator.naturalOrder()));
+            terms.forEach(combination -> distinct.add(asString(combination.get(field))));
+            List<String> fieldValues = new ArrayList<>(distinct);
+            Map<String, Integer> fieldCodes = new HashMap<>();
+            List<BitSet> fieldCombinations = new ArrayList<>();
+            for (int code = 0; code < fieldValues.size(); code++) {
+                fieldCodes.put(fieldValues.get(code), code);
+                fieldCombinations.add(new BitSet(combinations));
+            }
+            int[] fieldCodesOf = new int[combinations];
+            for (int combination = 0; combination < combinations; combination++) {
+                int code = fieldCodes.get(asString(terms.get(combination).get(field)));
+                fieldCombinations.get(code).set(combination);
+                fieldCodesOf[combination] = code;
+            }
+            values.add(fieldValues);
+            codes.add(fieldCodes);
+            combinationsOf.add(fieldCombinations);
+            codesOf.add(fieldCodesOf);
+        }
+    }
+
+    /**
+     * @return the fields a cube answering for these dimensions is made of
+     */
+    static List<String> fieldsOf(List<String> dimensions) {
+        return List.copyOf(new TreeSet<>(dimensions));
+    }
+
+    String getGeneration() {
+        return generation;
+    }
+
+    List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return whether the filter only picks terms of the fields in this cube; ranges need the data points themselves
+     */
+    boolean canAnswer(@Nullable Filter filter) {
+        if (filter == null) {
+            return true;
+        }
+        boolean noRanges = filter.getRanges() == null || filter.getRanges().isEmpty();
+        return noRanges && (filter.getTerms() == null || fields.containsAll(filter.getTerms().keySet()));
+    }
+
+    /**
+     * Same as {@code getDimensionsPossibleAt}: values of each dimension under the filter in ascending order, with null
+     * first if some data points don't have it; dimensions without any values are left out
+     *
+     * @param dimensions the fields of this cube, in the order the result should have them
+     * @param filter     one that {@link #canAnswer(Filter)}
+     */
+    Map<String, List<String>> possibleAt(List<String> dimensions, @Nullable Filter filter) {
+        BitSet selected = new BitSet(combinations);
+        selected.set(0, combinations);
+        if (filter != null && filter.getTerms() != null) {
+            filter.getTerms().forEach((field, picked) -> {
+                int position = fields.indexOf(field);
+                BitSet matching = new BitSet(combinations);
+                for (String value : picked) {
+                    Integer code = codes.get(position).get(value);
+                    if (code != null) {
+                        matching.or(combinationsOf.get(position).get(code));
+                    }
+                }
+                selected.and(matching);
+            });
+        }
+        int selectedCount = selected.cardinality();
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (String dimension : dimensions) {
+            int position = fields.indexOf(dimension);
+            List<String> fieldValues = values.get(position);
+            List<String> possible = new ArrayList<>();
+            if (fieldValues.size() < selectedCount) {
+                // fewer values than combinations: ask each value's bitmap whether it meets the selection
+                for (int code = 0; code < fieldValues.size(); code++) {
+                    if (combinationsOf.get(position).get(code).intersects(selected)) {
+                        possible.add(fieldValues.get(code));
+                    }
+                }
+            } else {
+                BitSet present = new BitSet(fieldValues.size());
+                int[] fieldCodesOf = codesOf.get(position);
+                for (int combination = selected.nextSetBit(0); combination >= 0; combination = selected.nextSetBit(combination + 1)) {
+                    present.set(fieldCodesOf[combination]);
+                }
+                for (int code = present.nextSetBit(0); code >= 0; code = present.nextSetBit(code + 1)) {
+                    possible.add(fieldValues.get(code));
+                }
+            }
+            if (!possible.isEmpty()) {
+                result.put(dimension, possible);
+            }
+        }
+        return result;
+    }
+
+    private static @Nullable
+    String asString(@Nullable Object value) {
+        return value == null ? null : value.toString();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.cache;
+
+import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Rough estimate of the heap a cached result holds on to. Only needs to be good enough to keep the cache within a
+ * memory budget, so it assumes a 64-bit JVM and ignores strings being shared between results.
+ */
+class ResultWeigher {
+    private static final long REFERENCE = 8;
+    private static final long OBJECT_HEADER = 16;
+
+    static int weigh(String key, Object value) {
+        long bytes = sizeOf(key) + sizeOf(value);
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    private static long sizeOf(Object object) {
+        if (object == null) {
+            return 0;
+        }
+        if (object instanceof String) {
+            return OBJECT_HEADER + 24 + ((String) object).length();
+        }
+        if (object instanceof DataQueryResult) {
+            return OBJECT_HEADER + sizeOf(((DataQueryResult) object).getResult());
+        }
+        if (object instanceof ScoringData) {
+            ScoringData scoringData = (ScoringData) object;
+            long size = OBJECT_HEADER + sizeOf(scoringData.getPossibleValues()) + 40;
+            size += scoringData.getRanges().size() * (2 * REFERENCE + OBJECT_HEADER + 16);
+            for (ScoringData.Cell cell : scoringData.getCells()) {
+                size += REFERENCE + OBJECT_HEADER + 8 + sizeOf(cell.getEntity()) + sizeOf(cell.getIndicator())
+                        + sizeOf(cell.getType()) + sizeOf(cell.getValue()) + OBJECT_HEADER + 8;
+            }
+            return size;
+        }
+        if (object instanceof ValueStatistics) {
+            ValueStatistics statistics = (ValueStatistics) object;
+            return OBJECT_HEADER + 64 + sizeOf(statistics.getGroup()) + sizeOf(statistics.getPercentiles());
+        }
+        if (object instanceof Map) {
+            long size = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+                size += 32 + REFERENCE + sizeOf(entry.getKey()) + sizeOf(entry.getValue());
+            }
+            return size;
+        }
+        if (object instanceof Collection) {
+            long size = 40;
+            for (Object element : (Collection<?>) object) {
+                size += REFERENCE + sizeOf(element);
+            }
+            return size;
+        }
+        return OBJECT_HEADER + REFERENCE;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Derives a document ID from what identifies a data point, so that saving the same data point again overwrites it.
+ * <p>
+ * A data point is identified by the datafile it came from and its dimensions as they were after transformation
+ * (the meta.transformed.* copies), leaving out the value. Data points saved without those copies fall back to all
+ * their fields except the value. Rows of one datafile that repeat the same dimensions with different values therefore
+ * get the same ID, and only the last of them is kept; {@link #repeatsIn(List)} finds those so they can be reported.
+ */
+public class DataPointIds {
+    private static final String DATAFILE = "meta.datafile";
+    private static final String TRANSFORMED_PREFIX = "meta.transformed.";
+
+    public static String of(Map<String, String> dataPoint) {
+        Map<String, String> identifying = new TreeMap<>();
+        dataPoint.forEach((key, value) -> {
+            if (key.startsWith(TRANSFORMED_PREFIX) && !isValue(key.substring(TRANSFORMED_PREFIX.length()))) {
+                identifying.put(key, value);
+            }
+        });
+        if (identifying.isEmpty()) {
+            dataPoint.forEach((key, value) -> {
+                if (!isValue(key) && !key.startsWith("meta.original.")) {
+                    identifying.put(key, value);
+                }
+            });
+        }
+        identifying.put(DATAFILE, dataPoint.get(DATAFILE));
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        identifying.forEach((key, value) -> hasher
+                .putString(key, StandardCharsets.UTF_8)
+                .putByte((byte) 0)
+                .putString(String.valueOf(value), StandardCharsets.UTF_8)
+                .putByte((byte) 0));
+        return hasher.hash().toString();
+    }
+
+    /**
+     * Finds data points that have the ID of an earlier one but a different value
+     *
+     * @param dataPoints data points of a single datafile, in the order they were read
+     * @return a report counting each such data point as failed, since saving keeps only one value per ID
+     */
+    public static IngestReport repeatsIn(List<? extends Map<String, String>> dataPoints) {
+        Map<String, Integer> firstSeenAt = new HashMap<>();
+        long repeats = 0;
+        List<String> samples = new ArrayList<>();
+        for (int i = 0; i < dataPoints.size(); i++) {
+            Integer earlier = firstSeenAt.putIfAbsent(of(dataPoints.get(i)), i);
+            if (earlier == null || valuesOf(dataPoints.get(earlier)).equals(valuesOf(dataPoints.get(i)))) {
+                continue;
+            }
+            repeats++;
+            if (samples.size() < IngestReport.MAX_FAILURE_SAMPLES) {
+                samples.add("Data point " + (i + 1) + " has the same dimensions as data point " + (earlier + 1)
+                        + " but a different value; only one of them is kept");
+            }
+        }
+        return IngestReport.of(0, repeats, samples);
+    }
+
+    private static Map<String, String> valuesOf(Map<String, String> dataPoint) {
+        Map<String, String> values = new HashMap<>();
+        dataPoint.forEach((key, value) -> {
+            if (isValue(key)) {
+                values.put(key, value);
+            }
+        });
+        return values;
+    }
+
+    private static boolean isValue(String key) {
+        return key.equals("value") || key.startsWith("value.");
+    }
+}
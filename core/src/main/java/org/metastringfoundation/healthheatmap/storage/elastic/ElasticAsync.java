@@ -0,0 +1,47 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Turns the listener-taking calls of the client into futures, so that several of them can be chained
+ */
+class ElasticAsync {
+    static CompletableFuture<SearchResponse> search(RestHighLevelClient elastic, SearchRequest request) {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        elastic.searchAsync(request, RequestOptions.DEFAULT, listenerOf(future));
+        return future;
+    }
+
+    static CompletableFuture<SearchResponse> scroll(RestHighLevelClient elastic, SearchScrollRequest request) {
+        CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+        elastic.scrollAsync(request, RequestOptions.DEFAULT, listenerOf(future));
+        return future;
+    }
+
+    private static <T> ActionListener<T> listenerOf(CompletableFuture<T> future) {
+        return ActionListener.wrap(future::complete, future::completeExceptionally);
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Pushes documents into elastic through a {@link BulkProcessor}.
+ * <p>
+ * Bulk requests are cut whenever either the document count or the payload size crosses the configured limit,
+ * several of them are kept in flight at once, and items rejected by a busy cluster (HTTP 429) are retried
+ * with exponential backoff. Each document is added along with the source it came from (a datafile, say), and once
+ * {@link #finish()} is called, the counts of indexed and failed documents are returned per source. Only documents
+ * still in flight are tracked, so one ingester can be kept open across any number of sources.
+ */
+public class ElasticBulkIngester {
+    private static final Logger LOG = Logger.getLogger(ElasticBulkIngester.class);
+    private static final String UNKNOWN_SOURCE = "";
+
+    private final BulkProcessor processor;
+    private final ElasticBulkSettings settings;
+    private final Map<String, Tally> tallies = new LinkedHashMap<>();
+    // by document id, since retried items come back at other positions than they were sent at
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+
+    public ElasticBulkIngester(RestHighLevelClient elastic, ElasticBulkSettings settings) {
+        this((request, bulkListener) -> elastic.bulkAsync(request, RequestOptions.DEFAULT, bulkListener), settings);
+    }
+
+    /**
+     * @param bulk     sends a bulk request and reports back to the listener
+     * @param settings limits on bulk requests
+     */
+    public ElasticBulkIngester(BiConsumer<BulkRequest, ActionListener<BulkResponse>> bulk, ElasticBulkSettings settings) {
+        this.settings = settings;
+        this.processor = BulkProcessor.builder(bulk, new CountingListener())
+                .setBulkActions(settings.getMaxActions())
+                .setBulkSize(new ByteSizeValue(settings.getMaxSizeMb(), ByteSizeUnit.MB))
+                .setConcurrentRequests(settings.getConcurrentRequests())
+                .setBackoffPolicy(BackoffPolicy.exponentialBackoff(
+                        TimeValue.timeValueMillis(settings.getBackoffInitialMillis()),
+                        settings.getBackoffRetries()
+                ))
+                .build();
+    }
+
+    /**
+     * Queues a document. Blocks if the configured number of bulk requests are already in flight.
+     *
+     * @param request index (or any other write) request, with an id so that its outcome can be traced to the source
+     * @param source  what the document came from, which its outcome is counted against
+     */
+    public void add(DocWriteRequest<?> request, String source) {
+        synchronized (tallies) {
+            tallies.computeIfAbsent(source, s -> new Tally());
+            if (request.id() != null) {
+                inFlight.computeIfAbsent(request.id(), id -> new InFlight(source)).copies++;
+            }
+        }
+        processor.add(request);
+    }
+
+    /**
+     * Flushes whatever is pending and waits for all the in-flight requests to come back
+     *
+     * @return counts of documents indexed and failed, by the source they were added with
+     * @throws IOException if the requests couldn't complete within the configured timeout
+     */
+    public Map<String, IngestReport> finish() throws IOException {
+        try {
+            if (!processor.awaitClose(settings.getTimeoutMinutes(), TimeUnit.MINUTES)) {
+                throw new IOException("Bulk requests did not complete within " + settings.getTimeoutMinutes() + " minutes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for bulk requests to complete", e);
+        }
+        Map<String, IngestReport> reports = new LinkedHashMap<>();
+        synchronized (tallies) {
+            tallies.forEach((source, tally) -> reports.put(source, tally.toReport()));
+        }
+        return reports;
+    }
+
+    private void record(@Nullable String id, @Nullable String failure) {
+        synchronized (tallies) {
+            String source = UNKNOWN_SOURCE;
+            InFlight document = id == null ? null : inFlight.get(id);
+            if (document != null) {
+                source = document.source;
+                if (--document.copies == 0) {
+                    inFlight.remove(id);
+                }
+            }
+            Tally tally = tallies.computeIfAbsent(source, s -> new Tally());
+            if (failure == null) {
+                tally.indexed++;
+            } else {
+                tally.failed++;
+                if (tally.failureSamples.size() < IngestReport.MAX_FAILURE_SAMPLES) {
+                    tally.failureSamples.add(failure);
+                }
+            }
+        }
+    }
+
+    private static class Tally {
+        private long indexed;
+        private long failed;
+        private final List<String> failureSamples = new ArrayList<>();
+
+        private IngestReport toReport() {
+            return IngestReport.of(indexed, failed, failureSamples);
+        }
+    }
+
+    private static class InFlight {
+        private final String source;
+        // the same id can be sent more than once before the first comes back
+        private int copies;
+
+        private InFlight(String source) {
+            this.source = source;
+        }
+    }
+
+    private class CountingListener implements BulkProcessor.Listener {
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            LOG.debug("Sending bulk request " + executionId + " with " + request.numberOfActions() + " documents");
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            for (BulkItemResponse item : response) {
+                record(item.getId(), item.isFailed() ? String.valueOf(item.getFailureMessage()) : null);
+            }
+            if (response.hasFailures()) {
+                LOG.warn("Bulk request " + executionId + " had failures");
+            }
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            LOG.error("Bulk request " + executionId + " failed entirely", failure);
+            for (DocWriteRequest<?> item : request.requests()) {
+                record(item.id(), String.valueOf(failure.getMessage()));
+            }
+        }
+    }
+}
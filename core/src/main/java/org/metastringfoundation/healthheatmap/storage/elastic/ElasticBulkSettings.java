@@ -0,0 +1,115 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+
+/**
+ * Knobs for bulk ingestion into elastic. All of them can be set through application.properties or environment.
+ */
+@ApplicationScoped
+public class ElasticBulkSettings {
+    private static final int DEFAULT_ACTIONS = 5000;
+    private static final int DEFAULT_SIZE_MB = 10;
+    private static final int DEFAULT_CONCURRENT_REQUESTS = 4;
+    private static final int DEFAULT_BACKOFF_INITIAL_MS = 200;
+    private static final int DEFAULT_BACKOFF_RETRIES = 8;
+    private static final int DEFAULT_TIMEOUT_MINUTES = 30;
+    private static final int DEFAULT_FORCE_MERGE_MAX_SEGMENTS = 0;
+
+    private final int maxActions;
+    private final int maxSizeMb;
+    private final int concurrentRequests;
+    private final int backoffInitialMillis;
+    private final int backoffRetries;
+    private final int timeoutMinutes;
+    private final int forceMergeMaxSegments;
+
+    @Inject
+    public ElasticBulkSettings(
+            @ConfigProperty(name = "hhm.elastic.bulk.actions", defaultValue = "" + DEFAULT_ACTIONS) int maxActions,
+            @ConfigProperty(name = "hhm.elastic.bulk.size-mb", defaultValue = "" + DEFAULT_SIZE_MB) int maxSizeMb,
+            @ConfigProperty(name = "hhm.elastic.bulk.concurrent-requests", defaultValue = "" + DEFAULT_CONCURRENT_REQUESTS) int concurrentRequests,
+            @ConfigProperty(name = "hhm.elastic.bulk.backoff.initial-ms", defaultValue = "" + DEFAULT_BACKOFF_INITIAL_MS) int backoffInitialMillis,
+            @ConfigProperty(name = "hhm.elastic.bulk.backoff.retries", defaultValue = "" + DEFAULT_BACKOFF_RETRIES) int backoffRetries,
+            @ConfigProperty(name = "hhm.elastic.bulk.timeout-minutes", defaultValue = "" + DEFAULT_TIMEOUT_MINUTES) int timeoutMinutes,
+            @ConfigProperty(name = "hhm.elastic.bulk.force-merge.max-segments", defaultValue = "" + DEFAULT_FORCE_MERGE_MAX_SEGMENTS) int forceMergeMaxSegments
+    ) {
+        this.maxActions = maxActions;
+        this.maxSizeMb = maxSizeMb;
+        this.concurrentRequests = concurrentRequests;
+        this.backoffInitialMillis = backoffInitialMillis;
+        this.backoffRetries = backoffRetries;
+        this.timeoutMinutes = timeoutMinutes;
+        this.forceMergeMaxSegments = forceMergeMaxSegments;
+    }
+
+    public static ElasticBulkSettings defaults() {
+        return new ElasticBulkSettings(
+                DEFAULT_ACTIONS,
+                DEFAULT_SIZE_MB,
+                DEFAULT_CONCURRENT_REQUESTS,
+                DEFAULT_BACKOFF_INITIAL_MS,
+                DEFAULT_BACKOFF_RETRIES,
+                DEFAULT_TIMEOUT_MINUTES,
+                DEFAULT_FORCE_MERGE_MAX_SEGMENTS
+        );
+    }
+
+    /**
+     * @return number of documents after which a bulk request is sent
+     */
+    public int getMaxActions() {
+        return maxActions;
+    }
+
+    /**
+     * @return payload size (in megabytes) after which a bulk request is sent, even if it has fewer documents
+     */
+    public int getMaxSizeMb() {
+        return maxSizeMb;
+    }
+
+    /**
+     * @return bulk requests allowed in flight at the same time; adding documents blocks beyond this
+     */
+    public int getConcurrentRequests() {
+        return concurrentRequests;
+    }
+
+    public int getBackoffInitialMillis() {
+        return backoffInitialMillis;
+    }
+
+    public int getBackoffRetries() {
+        return backoffRetries;
+    }
+
+    public int getTimeoutMinutes() {
+        return timeoutMinutes;
+    }
+
+    /**
+     * @return segments a freshly loaded index is merged down to before it is served; 0 leaves segments as they are
+     */
+    public int getForceMergeMaxSegments() {
+        return forceMergeMaxSegments;
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.bucket.missing.Missing;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the values each of several fields takes under a filter, all in one search.
+ * <p>
+ * Every field gets a terms aggregation, for its values in ascending order, and a missing aggregation, for whether some
+ * documents don't have it at all (given as a null value, first in the list). The output is the same as running
+ * {@link ElasticQueryCompositeAggregation} field by field. Only a field with more values than fit in one terms
+ * aggregation falls back to that.
+ */
+class ElasticFacets {
+    private static final Logger LOG = Logger.getLogger(ElasticFacets.class);
+    private static final int MAX_TERMS = 10000;
+    private static final String TERMS_PREFIX = "terms_";
+    private static final String MISSING_PREFIX = "missing_";
+
+    /**
+     * @param elastic the client
+     * @param limiter through which searches go
+     * @param index   on which the aggregations are run
+     * @param fields  whose values are wanted
+     * @param filter  restricts the documents looked at; null for all of them
+     * @return values of each field; fields no document has a say in are left out
+     * @throws IOException if elastic is down
+     */
+    static Map<String, List<String>> valuesOf(
+            RestHighLevelClient elastic,
+            ElasticLimiter limiter,
+            String index,
+            List<String> fields,
+            @Nullable Filter filter
+    ) throws IOException {
+        SearchResponse response = limiter.search(elastic, getRequest(index, fields, filter));
+        return valuesFrom(response.getAggregations(), elastic, limiter, index, fields, filter);
+    }
+
+    /**
+     * Reads the values of fields out of a search that had {@link #addAggregations(SearchSourceBuilder, List)} done
+     * to it, paging through any field that had too many values to fit
+     */
+    static Map<String, List<String>> valuesFrom(
+            Aggregations aggregations,
+            RestHighLevelClient elastic,
+            ElasticLimiter limiter,
+            String index,
+            List<String> fields,
+            @Nullable Filter filter
+    ) throws IOException {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (int i = 0; i < fields.size(); i++) {
+            List<String> values = getValuesFrom(aggregations, i);
+            if (values == null) {
+                LOG.debug(fields.get(i) + " has more than " + MAX_TERMS + " values; paging through them");
+                values = getValuesFrom(
+                        ElasticQueryHelpers.getAllTermsOfFields(elastic, limiter, index, getFilterAndField(fields.get(i), filter)),
+                        fields.get(i)
+                );
+            }
+            if (!values.isEmpty()) {
+                result.put(fields.get(i), values);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #valuesOf(RestHighLevelClient, ElasticLimiter, String, List, Filter)}, without blocking on elastic
+     */
+    static CompletableFuture<Map<String, List<String>>> valuesOfAsync(
+            RestHighLevelClient elastic,
+            ElasticLimiter limiter,
+            String index,
+            List<String> fields,
+            @Nullable Filter filter
+    ) {
+        return limiter.searchAsync(elastic, getRequest(index, fields, filter)).thenCompose(response -> {
+            List<CompletableFuture<List<String>>> pending = new ArrayList<>();
+            for (int i = 0; i < fields.size(); i++) {
+                String field = fields.get(i);
+                List<String> values = getValuesFrom(response.getAggregations(), i);
+                if (values == null) {
+                    LOG.debug(field + " has more than " + MAX_TERMS + " values; paging through them");
+                    pending.add(ElasticQueryCompositeAggregation
+                            .getResultAsync(elastic, limiter, index, getFilterAndField(field, filter))
+                            .thenApply(terms -> getValuesFrom(terms, field)));
+                } else {
+                    pending.add(CompletableFuture.completedFuture(values));
+                }
+            }
+            return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).thenApply(allDone -> {
+                Map<String, List<String>> result = new LinkedHashMap<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    List<String> values = pending.get(i).join();
+                    if (!values.isEmpty()) {
+                        result.put(fields.get(i), values);
+                    }
+                }
+                return result;
+            });
+        });
+    }
+
+    private static SearchRequest getRequest(String index, List<String> fields, @Nullable Filter filter) {
+        SearchSourceBuilder source = new SearchSourceBuilder().size(0);
+        if (filter != null) {
+            source.query(ElasticQueryHelpers.getElasticQuery(filter));
+        }
+        addAggregations(source, fields);
+        return new SearchRequest(index).source(source).requestCache(true);
+    }
+
+    /**
+     * Adds the aggregations that find the values of the fields to a search
+     */
+    static void addAggregations(SearchSourceBuilder source, List<String> fields) {
+        for (int i = 0; i < fields.size(); i++) {
+            source.aggregation(AggregationBuilders.terms(TERMS_PREFIX + i)
+                    .field(fields.get(i))
+                    .size(MAX_TERMS)
+                    .order(BucketOrder.key(true)));
+            source.aggregation(AggregationBuilders.missing(MISSING_PREFIX + i).field(fields.get(i)));
+        }
+    }
+
+    /**
+     * @return values of the i-th field, or null if there were too many to fit
+     */
+    @Nullable
+    private static List<String> getValuesFrom(Aggregations aggregations, int i) {
+        Terms terms = aggregations.get(TERMS_PREFIX + i);
+        if (terms.getSumOfOtherDocCounts() > 0) {
+            return null;
+        }
+        List<String> values = new ArrayList<>();
+        Missing missing = aggregations.get(MISSING_PREFIX + i);
+        if (missing.getDocCount() > 0) {
+            values.add(null);
+        }
+        for (Terms.Bucket bucket : terms.getBuckets()) {
+            values.add(bucket.getKeyAsString());
+        }
+        return values;
+    }
+
+    private static List<String> getValuesFrom(List<Map<String, Object>> terms, String field) {
+        return terms.stream()
+                .map(term -> (String) term.get(field))
+                .collect(Collectors.toList());
+    }
+
+    private static FilterAndSelectFields getFilterAndField(String field, @Nullable Filter filter) {
+        FilterAndSelectFields filterAndFields = new FilterAndSelectFields();
+        filterAndFields.setFilter(filter);
+        filterAndFields.setFields(List.of(field));
+        return filterAndFields;
+    }
+}
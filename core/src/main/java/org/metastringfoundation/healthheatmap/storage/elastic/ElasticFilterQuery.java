@@ -30,6 +30,9 @@ import java.util.stream.Collectors;
 import static org.elasticsearch.index.query.QueryBuilders.*;
 
 public class ElasticFilterQuery {
+    // fields kept as keywords, whose ranges are instead taken on a numeric sub-field (see ElasticIndexMapping)
+    private static final Map<String, String> NUMERIC_FIELDS = Map.of("value", "value.number");
+
     private final BoolQueryBuilder query = boolQuery();
 
     private final @Nullable
@@ -82,7 +85,7 @@ public class ElasticFilterQuery {
     }
 
     private QueryBuilder getRangeQuery(Map.Entry<String, Map<String, String>> range) {
-        RangeQueryBuilder query = rangeQuery(range.getKey());
+        RangeQueryBuilder query = rangeQuery(NUMERIC_FIELDS.getOrDefault(range.getKey(), range.getKey()));
         Map<String, String> filters = range.getValue();
         if (filters.containsKey("lt")) query.lt(filters.get("lt"));
         if (filters.containsKey("lte")) query.lte(filters.get("lte"));
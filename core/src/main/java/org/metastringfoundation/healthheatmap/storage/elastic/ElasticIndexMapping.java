@@ -0,0 +1,179 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mapping of a data index, laid out up front so that bulk loads don't keep stopping for mapping updates.
+ * <p>
+ * Every property of a known dimension is a keyword. {@code value} and {@code duration.start/end} stay keywords, so
+ * that existing terms filters and aggregations see them as before, and get a typed sub-field ({@code value.number},
+ * {@code duration.start.date}) for ranges and statistics. Provenance ({@code meta.lineage}, see {@link ElasticLineage})
+ * is kept in the source for display but not indexed. Anything else that turns up is a keyword.
+ */
+class ElasticIndexMapping {
+    private static final Set<String> RESERVED = Set.of("value", "duration", "meta");
+
+    static XContentBuilder of(Map<String, Set<String>> dimensionProperties, ElasticMappingSettings settings) throws IOException {
+        XContentBuilder mapping = XContentFactory.jsonBuilder();
+        mapping.startObject();
+        {
+            mapping.startArray("dynamic_templates");
+            {
+                mapping.startObject();
+                {
+                    mapping.startObject("strings_as_keywords");
+                    {
+                        mapping.field("match_mapping_type", "string");
+                        mapping.startObject("mapping");
+                        {
+                            mapping.field("type", "keyword");
+                        }
+                        mapping.endObject();
+                    }
+                    mapping.endObject();
+                }
+                mapping.endObject();
+            }
+            mapping.endArray();
+            mapping.startObject("properties");
+            {
+                for (Map.Entry<String, Set<String>> dimension : dimensionProperties.entrySet()) {
+                    if (!RESERVED.contains(dimension.getKey())) {
+                        addDimension(mapping, dimension.getKey(), dimension.getValue(), settings);
+                    }
+                }
+                mapping.startObject("value");
+                {
+                    mapping.field("type", "keyword");
+                    mapping.startObject("fields");
+                    {
+                        mapping.startObject("number");
+                        {
+                            mapping.field("type", "double");
+                            mapping.field("ignore_malformed", true);
+                        }
+                        mapping.endObject();
+                    }
+                    mapping.endObject();
+                }
+                mapping.endObject();
+                mapping.startObject("duration");
+                {
+                    mapping.startObject("properties");
+                    {
+                        addDate(mapping, "start");
+                        addDate(mapping, "end");
+                        addKeyword(mapping, "type", "duration.type", settings);
+                    }
+                    mapping.endObject();
+                }
+                mapping.endObject();
+                mapping.startObject("meta");
+                {
+                    mapping.startObject("properties");
+                    {
+                        addKeyword(mapping, "datafile", "meta.datafile", settings);
+                        addBlob(mapping, "lineage");
+                        addDisabledObject(mapping, "original");
+                        addDisabledObject(mapping, "transformed");
+                    }
+                    mapping.endObject();
+                }
+                mapping.endObject();
+            }
+            mapping.endObject();
+        }
+        mapping.endObject();
+        return mapping;
+    }
+
+    private static void addDimension(XContentBuilder mapping, String dimension, Set<String> properties, ElasticMappingSettings settings) throws IOException {
+        mapping.startObject(dimension);
+        {
+            mapping.startObject("properties");
+            {
+                addKeyword(mapping, "id", dimension + ".id", settings);
+                for (String property : properties) {
+                    if (!property.equals("id") && !property.contains(".")) {
+                        addKeyword(mapping, property, dimension + "." + property, settings);
+                    }
+                }
+            }
+            mapping.endObject();
+        }
+        mapping.endObject();
+    }
+
+    private static void addKeyword(XContentBuilder mapping, String name, String field, ElasticMappingSettings settings) throws IOException {
+        mapping.startObject(name);
+        {
+            mapping.field("type", "keyword");
+            if (settings.getDisplayOnly().contains(field)) {
+                mapping.field("index", false);
+                mapping.field("doc_values", false);
+            } else if (settings.getEagerGlobalOrdinals().contains(field)) {
+                mapping.field("eager_global_ordinals", true);
+            }
+        }
+        mapping.endObject();
+    }
+
+    private static void addDate(XContentBuilder mapping, String name) throws IOException {
+        mapping.startObject(name);
+        {
+            mapping.field("type", "keyword");
+            mapping.startObject("fields");
+            {
+                mapping.startObject("date");
+                {
+                    mapping.field("type", "date");
+                    mapping.field("format", "yyyy-MM-dd||strict_date_optional_time||epoch_millis");
+                    mapping.field("ignore_malformed", true);
+                }
+                mapping.endObject();
+            }
+            mapping.endObject();
+        }
+        mapping.endObject();
+    }
+
+    private static void addBlob(XContentBuilder mapping, String name) throws IOException {
+        mapping.startObject(name);
+        {
+            mapping.field("type", "keyword");
+            mapping.field("index", false);
+            mapping.field("doc_values", false);
+        }
+        mapping.endObject();
+    }
+
+    private static void addDisabledObject(XContentBuilder mapping, String name) throws IOException {
+        mapping.startObject(name);
+        {
+            mapping.field("type", "object");
+            mapping.field("enabled", false);
+        }
+        mapping.endObject();
+    }
+}
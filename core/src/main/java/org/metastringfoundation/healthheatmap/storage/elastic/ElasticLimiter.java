@@ -0,0 +1,360 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.rest.RestStatus;
+import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.logic.StoreOverloadedException;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Caps how many searches this process has in flight against elastic, and adapts the cap to how elastic is coping.
+ * <p>
+ * Recent latency is compared with a slowly moving baseline. While it stays within tolerance of the baseline the cap
+ * grows; as it stretches out, the cap shrinks in proportion. Elastic pushing back (429, 503, timeouts) halves it.
+ * A search beyond the cap waits briefly for room and is then turned away with {@link StoreOverloadedException}, so
+ * callers get a quick, retryable answer instead of queueing behind slow work. Async searches wait too, but without
+ * holding a thread: they are handed a future that is completed once room frees up. Follow-ups of work already let in,
+ * like further pages of a scroll behind a download, count against the cap like anything else, but as lower priority
+ * work: room goes to fresh searches first, and follow-ups are given longer to wait so that a download that has started
+ * is held back rather than cut off halfway.
+ */
+@ApplicationScoped
+public class ElasticLimiter {
+    private static final Logger LOG = Logger.getLogger(ElasticLimiter.class);
+    private static final boolean DEFAULT_ENABLED = true;
+    private static final int DEFAULT_INITIAL_LIMIT = 16;
+    private static final int DEFAULT_MIN_LIMIT = 2;
+    private static final int DEFAULT_MAX_LIMIT = 128;
+    private static final int DEFAULT_MAX_WAIT_MS = 100;
+    // well within the keep-alive of a scroll, so that its context is still there once the next page gets room
+    private static final int DEFAULT_FOLLOW_UP_MAX_WAIT_MS = 20_000;
+    private static final double DEFAULT_TOLERANCE = 1.5;
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 2;
+    private static final double SHORT_SMOOTHING = 0.1;
+    private static final double BASELINE_SMOOTHING = 0.01;
+    private static final double LIMIT_SMOOTHING = 0.2;
+
+    private final boolean enabled;
+    private final int minLimit;
+    private final int maxLimit;
+    private final long maxWaitNanos;
+    private final long followUpMaxWaitNanos;
+    private final double tolerance;
+    private final int retryAfterSeconds;
+
+    // all guarded by this
+    private double limit;
+    private int inFlight;
+    private double recentNanos;
+    private double baselineNanos;
+    private long rejected;
+    // waiting for room, which is handed out in order as searches finish; fresh searches go before follow-ups
+    private final Deque<Waiter> waitingFresh = new ArrayDeque<>();
+    private final Deque<Waiter> waitingFollowUps = new ArrayDeque<>();
+
+    @Inject
+    public ElasticLimiter(
+            @ConfigProperty(name = "hhm.elastic.limiter.enabled", defaultValue = "" + DEFAULT_ENABLED) boolean enabled,
+            @ConfigProperty(name = "hhm.elastic.limiter.initial-limit", defaultValue = "" + DEFAULT_INITIAL_LIMIT) int initialLimit,
+            @ConfigProperty(name = "hhm.elastic.limiter.min-limit", defaultValue = "" + DEFAULT_MIN_LIMIT) int minLimit,
+            @ConfigProperty(name = "hhm.elastic.limiter.max-limit", defaultValue = "" + DEFAULT_MAX_LIMIT) int maxLimit,
+            @ConfigProperty(name = "hhm.elastic.limiter.max-wait-ms", defaultValue = "" + DEFAULT_MAX_WAIT_MS) int maxWaitMillis,
+            @ConfigProperty(name = "hhm.elastic.limiter.follow-up-max-wait-ms", defaultValue = "" + DEFAULT_FOLLOW_UP_MAX_WAIT_MS) int followUpMaxWaitMillis,
+            @ConfigProperty(name = "hhm.elastic.limiter.tolerance", defaultValue = "" + DEFAULT_TOLERANCE) double tolerance,
+            @ConfigProperty(name = "hhm.elastic.limiter.retry-after-seconds", defaultValue = "" + DEFAULT_RETRY_AFTER_SECONDS) int retryAfterSeconds
+    ) {
+        this.enabled = enabled;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMillis));
+        this.followUpMaxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, followUpMaxWaitMillis));
+        this.tolerance = Math.max(1, tolerance);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public static ElasticLimiter defaults() {
+        return new ElasticLimiter(
+                DEFAULT_ENABLED,
+                DEFAULT_INITIAL_LIMIT,
+                DEFAULT_MIN_LIMIT,
+                DEFAULT_MAX_LIMIT,
+                DEFAULT_MAX_WAIT_MS,
+                DEFAULT_FOLLOW_UP_MAX_WAIT_MS,
+                DEFAULT_TOLERANCE,
+                DEFAULT_RETRY_AFTER_SECONDS
+        );
+    }
+
+    SearchResponse search(RestHighLevelClient elastic, SearchRequest request) throws IOException {
+        return call(() -> elastic.search(request, RequestOptions.DEFAULT), false);
+    }
+
+    SearchResponse scroll(RestHighLevelClient elastic, SearchScrollRequest request) throws IOException {
+        return call(() -> elastic.scroll(request, RequestOptions.DEFAULT), true);
+    }
+
+    CompletableFuture<SearchResponse> searchAsync(RestHighLevelClient elastic, SearchRequest request) {
+        return callAsync(() -> ElasticAsync.search(elastic, request), false);
+    }
+
+    CompletableFuture<SearchResponse> scrollAsync(RestHighLevelClient elastic, SearchScrollRequest request) {
+        return callAsync(() -> ElasticAsync.scroll(elastic, request), true);
+    }
+
+    /**
+     * Runs the call once there is room for it
+     *
+     * @param isFollowUp whether the call continues work already let in; those wait longer, behind fresh calls
+     * @throws StoreOverloadedException if there was no room in time
+     */
+    public <T> T call(Call<T> call, boolean isFollowUp) throws IOException {
+        if (!enabled) {
+            return call.call();
+        }
+        awaitRoom(isFollowUp);
+        long start = System.nanoTime();
+        boolean pushedBack = false;
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException e) {
+            pushedBack = isPushBack(e);
+            throw e;
+        } finally {
+            release(System.nanoTime() - start, pushedBack);
+        }
+    }
+
+    /**
+     * Same as {@link #call(Call, boolean)} for calls that give a future. Waiting for room doesn't block; the call is
+     * made from whichever thread frees up room for it.
+     */
+    public <T> CompletableFuture<T> callAsync(Supplier<CompletableFuture<T>> call, boolean isFollowUp) {
+        if (!enabled) {
+            return call.get();
+        }
+        return admit(isFollowUp).admission.thenCompose(admitted -> {
+            long start = System.nanoTime();
+            CompletableFuture<T> future;
+            try {
+                future = call.get();
+            } catch (RuntimeException e) {
+                release(System.nanoTime() - start, false);
+                return CompletableFuture.failedFuture(e);
+            }
+            return future.whenComplete((result, error) -> release(System.nanoTime() - start, error != null && isPushBack(error)));
+        });
+    }
+
+    public synchronized Map<String, Object> getStatistics() {
+        Map<String, Object> statistics = new LinkedHashMap<>();
+        statistics.put("enabled", enabled);
+        statistics.put("limit", (int) limit);
+        statistics.put("inFlight", inFlight);
+        statistics.put("waiting", waitingFresh.size());
+        statistics.put("waitingFollowUps", waitingFollowUps.size());
+        statistics.put("recentLatencyMs", recentNanos / 1e6);
+        statistics.put("baselineLatencyMs", baselineNanos / 1e6);
+        statistics.put("rejected", rejected);
+        return statistics;
+    }
+
+    private void awaitRoom(boolean isFollowUp) throws IOException {
+        Waiter waiter = admit(isFollowUp);
+        try {
+            waiter.admission.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            withdraw(waiter);
+            throw new InterruptedIOException("Interrupted while waiting to search");
+        } catch (ExecutionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+
+    /**
+     * Takes room right away if there is some and nobody ahead is waiting for it; otherwise joins the queue, which
+     * is given up on after the wait allowed
+     */
+    private Waiter admit(boolean isFollowUp) {
+        Waiter waiter = new Waiter(isFollowUp);
+        long waitNanos = isFollowUp ? followUpMaxWaitNanos : maxWaitNanos;
+        synchronized (this) {
+            boolean anyoneAhead = !waitingFresh.isEmpty() || (isFollowUp && !waitingFollowUps.isEmpty());
+            if (inFlight < (int) limit && !anyoneAhead) {
+                inFlight++;
+                waiter.admitted = true;
+                waiter.admission.complete(null);
+                return waiter;
+            }
+            if (waitNanos <= 0) {
+                waiter.admission.completeExceptionally(turnAway());
+                return waiter;
+            }
+            queueOf(waiter).add(waiter);
+        }
+        CompletableFuture.delayedExecutor(waitNanos, TimeUnit.NANOSECONDS).execute(() -> expire(waiter));
+        return waiter;
+    }
+
+    private void expire(Waiter waiter) {
+        StoreOverloadedException turnedAway;
+        synchronized (this) {
+            if (!queueOf(waiter).remove(waiter)) {
+                return;
+            }
+            turnedAway = turnAway();
+        }
+        waiter.admission.completeExceptionally(turnedAway);
+    }
+
+    /**
+     * Gives back the room of a waiter that stops waiting, whether or not it has been let in meanwhile
+     */
+    private void withdraw(Waiter waiter) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            if (queueOf(waiter).remove(waiter) || !waiter.admitted) {
+                return;
+            }
+            inFlight--;
+            admitted = admitWaiting();
+        }
+        admitted.forEach(next -> next.admission.complete(null));
+    }
+
+    private void release(long latencyNanos, boolean pushedBack) {
+        List<Waiter> admitted;
+        synchronized (this) {
+            int wasInFlight = inFlight;
+            inFlight--;
+            if (pushedBack) {
+                setLimit(limit / 2);
+            } else {
+                adaptTo(latencyNanos, wasInFlight);
+            }
+            admitted = admitWaiting();
+        }
+        // completed outside the lock, since that runs the calls waiting on them
+        admitted.forEach(waiter -> waiter.admission.complete(null));
+    }
+
+    /**
+     * Hands the room there is to the waiters first in line, fresh searches before follow-ups. The caller completes
+     * their admissions once out of the lock.
+     */
+    private List<Waiter> admitWaiting() {
+        List<Waiter> admitted = new ArrayList<>();
+        while (inFlight < (int) limit) {
+            Waiter next = waitingFresh.isEmpty() ? waitingFollowUps.poll() : waitingFresh.poll();
+            if (next == null) {
+                break;
+            }
+            inFlight++;
+            next.admitted = true;
+            admitted.add(next);
+        }
+        return admitted;
+    }
+
+    private Deque<Waiter> queueOf(Waiter waiter) {
+        return waiter.isFollowUp ? waitingFollowUps : waitingFresh;
+    }
+
+    private StoreOverloadedException turnAway() {
+        rejected++;
+        LOG.debug("Turning away a search with " + inFlight + " in flight");
+        return new StoreOverloadedException("Too many requests at the moment. Please try again shortly.", retryAfterSeconds);
+    }
+
+    private void adaptTo(long latencyNanos, int wasInFlight) {
+        if (baselineNanos == 0) {
+            recentNanos = latencyNanos;
+            baselineNanos = latencyNanos;
+            return;
+        }
+        recentNanos += (latencyNanos - recentNanos) * SHORT_SMOOTHING;
+        baselineNanos += (latencyNanos - baselineNanos) * BASELINE_SMOOTHING;
+        if (baselineNanos > 2 * recentNanos) {
+            // things got a lot faster; let the baseline catch up instead of growing the cap on stale numbers
+            baselineNanos *= 0.95;
+        }
+        if (wasInFlight < limit / 2) {
+            // the cap wasn't what held things back, so latency says nothing about it
+            return;
+        }
+        double gradient = Math.max(0.5, Math.min(1, tolerance * baselineNanos / recentNanos));
+        double target = limit * gradient + Math.sqrt(limit);
+        setLimit(limit * (1 - LIMIT_SMOOTHING) + target * LIMIT_SMOOTHING);
+    }
+
+    private void setLimit(double newLimit) {
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+    }
+
+    private static boolean isPushBack(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SocketTimeoutException) {
+                return true;
+            }
+            if (cause instanceof ElasticsearchException) {
+                RestStatus status = ((ElasticsearchException) cause).status();
+                return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+            }
+        }
+        return false;
+    }
+
+    private static class Waiter {
+        private final boolean isFollowUp;
+        private final CompletableFuture<Void> admission = new CompletableFuture<>();
+        // guarded by the limiter; set once it has been given room
+        private boolean admitted;
+
+        private Waiter(boolean isFollowUp) {
+            this.isFollowUp = isFollowUp;
+        }
+    }
+
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.metastringfoundation.healthheatmap.helpers.Jsonizer;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the provenance of a data point (its meta.original.* and meta.transformed.* fields) in one non-indexed blob,
+ * meta.lineage, instead of as fields of their own. The blob is left out of search responses unless the query asks
+ * for provenance, in which case it is unpacked back into the original fields.
+ */
+class ElasticLineage {
+    static final String LINEAGE = "meta.lineage";
+    private static final String META = "meta.";
+    private static final List<String> PROVENANCE = List.of("meta.original.", "meta.transformed.");
+
+    /**
+     * @param dataPoint data point as it comes out of augmentation
+     * @return the same data point with its provenance folded into meta.lineage
+     */
+    static Map<String, String> pack(Map<String, String> dataPoint) {
+        Map<String, String> packed = new LinkedHashMap<>();
+        Map<String, String> lineage = new LinkedHashMap<>();
+        dataPoint.forEach((key, value) -> {
+            if (isProvenance(key)) {
+                lineage.put(key.substring(META.length()), value);
+            } else {
+                packed.put(key, value);
+            }
+        });
+        if (!lineage.isEmpty()) {
+            packed.put(LINEAGE, Jsonizer.asJSON(lineage));
+        }
+        return packed;
+    }
+
+    /**
+     * Leaves meta.lineage out of the response unless the includes ask for any provenance
+     */
+    static void applySourceFilter(SearchSourceBuilder source, @Nullable List<String> includes) {
+        if (!isWanted(includes)) {
+            source.fetchSource(null, new String[]{LINEAGE});
+        }
+    }
+
+    /**
+     * @param hit source of a search hit; meta.lineage in it is replaced by the fields it was made from
+     */
+    static void unpack(Map<String, Object> hit) {
+        Object lineage = hit.remove(LINEAGE);
+        if (lineage != null) {
+            Map<?, ?> fields = Jsonizer.fromJSON(lineage.toString(), Map.class);
+            fields.forEach((key, value) -> hit.put(META + key, value));
+        }
+    }
+
+    static boolean isWanted(@Nullable List<String> includes) {
+        if (includes == null) {
+            return false;
+        }
+        return includes.stream().anyMatch(include -> include.startsWith(LINEAGE)
+                || PROVENANCE.stream().anyMatch(p -> p.startsWith(include) || include.startsWith(p)));
+    }
+
+    private static boolean isProvenance(String key) {
+        return PROVENANCE.stream().anyMatch(key::startsWith);
+    }
+}
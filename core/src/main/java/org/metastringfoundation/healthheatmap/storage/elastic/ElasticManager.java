@@ -16,59 +16,139 @@
 
 package org.metastringfoundation.healthheatmap.storage.elastic;
 
-import com.google.common.collect.Lists;
 import org.apache.http.HttpHost;
+import org.apache.http.client.config.RequestConfig;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
-import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest.AliasActions;
+import org.elasticsearch.action.admin.indices.alias.get.GetAliasesRequest;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
-import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.admin.indices.forcemerge.ForceMergeRequest;
+import org.elasticsearch.action.admin.indices.refresh.RefreshRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsRequest;
+import org.elasticsearch.action.admin.indices.settings.get.GetSettingsResponse;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.CreateIndexRequest;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.BulkByScrollResponse;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.index.reindex.ReindexRequest;
 import org.elasticsearch.search.SearchHit;
 import org.jboss.logging.Logger;
 import org.metastringfoundation.healthheatmap.beans.Filter;
 import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
 import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
-import org.metastringfoundation.healthheatmap.logic.DatasetStore;
+import org.metastringfoundation.healthheatmap.logic.AsyncDatasetStore;
+import org.metastringfoundation.healthheatmap.logic.DimensionsManager;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
 
+import javax.annotation.Nullable;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicReference;
 
-import static org.metastringfoundation.healthheatmap.storage.elastic.ElasticQueryHelpers.doSearch;
+import static org.metastringfoundation.healthheatmap.storage.elastic.ElasticQueryHelpers.startScroll;
 
+/**
+ * Data lives in generations of indices named {@code <data index>-<timestamp>}, and is read through an alias named
+ * {@code <data index>}. A factory reset starts writing into a new generation that readers don't see until
+ * {@link #publish()} swaps the alias over to it in one step. A few older generations are kept around to roll back to.
+ * A plain index named {@code <data index>}, left from before generations, is copied into a new generation on the
+ * first upload and dropped when that is published.
+ */
 @ElasticStore
 @ApplicationScoped
-public class ElasticManager implements DatasetStore {
+public class ElasticManager implements AsyncDatasetStore {
     private static final Logger LOG = Logger.getLogger(ElasticManager.class);
+    private static final DateTimeFormatter GENERATION_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+    private static final int DEFAULT_RETAINED_GENERATIONS = 2;
+    private static final String REFRESH_INTERVAL = "index.refresh_interval";
+    private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+    private static final String DATAFILE = "meta.datafile";
+    private static final int DEFAULT_MAX_QUERY_HITS = 100_000;
+    private static final int SCROLL_PAGE_SIZE = 5000;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
     private final RestHighLevelClient elastic;
+    private final ElasticLimiter limiter;
     private final String dataIndex;
+    private final ElasticBulkSettings bulkSettings;
+    private final int retainedGenerations;
+    private final int maxQueryHits;
+    private final ElasticMappingSettings mappingSettings;
+    @Nullable
+    private final DimensionsManager dimensionsManager;
+    private volatile String writeIndex;
+    private final Map<String, String> settingsBeforeBulkLoad = new HashMap<>();
+    // open from beginBulkLoad to endBulkLoad, so that saves in between share its bulk requests
+    @Nullable
+    private volatile ElasticBulkIngester bulkIngester;
 
     public ElasticManager(String hostname, int port, String dataIndex) {
         LOG.debug("Creating new elasticmanager instance");
         elastic = new RestHighLevelClient(RestClient.builder(
                 new HttpHost(hostname, port, "http")
         ));
+        this.limiter = ElasticLimiter.defaults();
         this.dataIndex = dataIndex;
+        this.bulkSettings = ElasticBulkSettings.defaults();
+        this.retainedGenerations = DEFAULT_RETAINED_GENERATIONS;
+        this.maxQueryHits = DEFAULT_MAX_QUERY_HITS;
+        this.mappingSettings = ElasticMappingSettings.defaults();
+        this.dimensionsManager = null;
     }
 
     @Inject
-    public ElasticManager(RestHighLevelClient elastic, @ConfigProperty(name = "hhm.elastic.data.index", defaultValue = "data") String dataIndex) {
+    public ElasticManager(
+            RestHighLevelClient elastic,
+            ElasticLimiter limiter,
+            @ConfigProperty(name = "hhm.elastic.data.index", defaultValue = "data") String dataIndex,
+            ElasticBulkSettings bulkSettings,
+            @ConfigProperty(name = "hhm.elastic.data.generations.retain", defaultValue = "" + DEFAULT_RETAINED_GENERATIONS) int retainedGenerations,
+            @ConfigProperty(name = "hhm.elastic.query.max-hits", defaultValue = "" + DEFAULT_MAX_QUERY_HITS) int maxQueryHits,
+            ElasticMappingSettings mappingSettings,
+            DimensionsManager dimensionsManager
+    ) {
         this.elastic = elastic;
+        this.limiter = limiter;
         this.dataIndex = dataIndex;
+        this.bulkSettings = bulkSettings;
+        this.retainedGenerations = Math.max(1, retainedGenerations);
+        this.maxQueryHits = maxQueryHits;
+        this.mappingSettings = mappingSettings;
+        this.dimensionsManager = dimensionsManager;
     }
 
     public void shutdown() throws IOException {
@@ -83,79 +163,354 @@ public class ElasticManager implements DatasetStore {
         return dataIndex;
     }
 
+    /**
+     * Outside a bulk load, waits for the data points to be indexed. During one, queues them on the bulk load's
+     * ingester and returns right away, leaving their outcome to {@link #endBulkLoad()}.
+     */
     @Override
-    public void save(HealthDataset dataset) throws IOException {
-        for (List<? extends Map<String, String>> dataPointsBatch : Lists.partition(dataset.getData(), 5000)) {
-            BulkRequest request = new BulkRequest();
-            dataPointsBatch.forEach(dataPoint -> request.add(new IndexRequest(dataIndex).source(dataPoint)));
-            elastic.bulk(request, RequestOptions.DEFAULT);
+    public IngestReport save(HealthDataset dataset) throws IOException {
+        ElasticBulkIngester shared = bulkIngester;
+        ElasticBulkIngester ingester = shared != null ? shared : new ElasticBulkIngester(elastic, bulkSettings);
+        String index = getWriteIndex();
+        dataset.getData().forEach(dataPoint -> ingester.add(
+                new IndexRequest(index).id(DataPointIds.of(dataPoint)).source(ElasticLineage.pack(dataPoint)),
+                dataPoint.getOrDefault(DATAFILE, "")
+        ));
+        if (shared != null) {
+            return IngestReport.empty();
         }
+        return ingester.finish().values().stream().reduce(IngestReport.empty(), IngestReport::plus);
+    }
+
+    @Override
+    public void deleteDatafile(String datafile) throws IOException {
+        DeleteByQueryRequest request = new DeleteByQueryRequest(getWriteIndex());
+        request.setQuery(QueryBuilders.termQuery(DATAFILE, datafile));
+        request.setAbortOnVersionConflict(false);
+        BulkByScrollResponse response = elastic.deleteByQuery(request, RequestOptions.DEFAULT);
+        LOG.info("Deleted " + response.getDeleted() + " data points of " + datafile);
     }
 
+    /**
+     * Starts a new, empty generation. Writes go there from now on, while readers keep seeing the current generation
+     * until {@link #publish()} is called.
+     */
     @Override
     public void factoryReset() throws IOException {
-        deleteIndex();
-        createIndexWithCorrectDynamicMapping();
-    }
-
-    private void createIndexWithCorrectDynamicMapping() throws IOException {
-        CreateIndexRequest request = new CreateIndexRequest(dataIndex);
-        XContentBuilder dynamicTemplate = XContentFactory.jsonBuilder();
-        dynamicTemplate.startObject();
-        dynamicTemplate.startArray("dynamic_templates");
-        {
-            dynamicTemplate.startObject();
-            {
-                dynamicTemplate.startObject("strings_as_keywords");
-                {
-                    dynamicTemplate.field("match_mapping_type", "string");
-                    dynamicTemplate.startObject("mapping");
-                    {
-                        dynamicTemplate.field("type", "keyword");
-                    }
-                    dynamicTemplate.endObject();
-                }
-                dynamicTemplate.endObject();
+        String generation = dataIndex + "-" + GENERATION_FORMAT.format(ZonedDateTime.now(ZoneOffset.UTC));
+        createIndexWithMapping(generation);
+        writeIndex = generation;
+        LOG.info("Writing into new index " + generation + ". It will be served once published");
+    }
+
+    @Override
+    public void publish() throws IOException {
+        String target = getWriteIndex();
+        Set<String> live = getIndicesBehindAlias();
+        if (live.equals(Set.of(target))) {
+            return;
+        }
+        elastic.indices().refresh(new RefreshRequest(target), RequestOptions.DEFAULT);
+        IndicesAliasesRequest request = new IndicesAliasesRequest();
+        request.addAliasAction(AliasActions.add().index(target).alias(dataIndex));
+        for (String index : live) {
+            request.addAliasAction(AliasActions.remove().index(index).alias(dataIndex));
+        }
+        if (live.isEmpty() && concreteIndexExists(dataIndex)) {
+            // from before data was served through an alias; has to go for the alias to take its name
+            request.addAliasAction(AliasActions.removeIndex().index(dataIndex));
+        }
+        elastic.indices().updateAliases(request, RequestOptions.DEFAULT);
+        LOG.info("Now serving " + target + " as " + dataIndex);
+        pruneGenerations(target);
+    }
+
+    /**
+     * Opens one bulk ingester for all the saves until {@link #endBulkLoad()}, and turns off refreshes and replicas of
+     * the index being written to, remembering what they were. An index that is being served is updated in place with
+     * its settings left alone, since readers are on it.
+     */
+    @Override
+    public synchronized void beginBulkLoad() throws IOException {
+        turnOffSettingsForBulkLoad();
+        if (bulkIngester == null) {
+            bulkIngester = new ElasticBulkIngester(elastic, bulkSettings);
+        }
+    }
+
+    private void turnOffSettingsForBulkLoad() throws IOException {
+        String index = getWriteIndex();
+        if (getIndicesBehindAlias().contains(index)) {
+            LOG.info("Updating " + index + " in place, as it is being served");
+            return;
+        }
+        GetSettingsRequest getRequest = new GetSettingsRequest().indices(index).names(REFRESH_INTERVAL, NUMBER_OF_REPLICAS);
+        GetSettingsResponse current = elastic.indices().getSettings(getRequest, RequestOptions.DEFAULT);
+        settingsBeforeBulkLoad.clear();
+        // null stands for "not set on the index", which is restored by unsetting it
+        String refreshInterval = current.getSetting(index, REFRESH_INTERVAL);
+        // -1 here is left over from a bulk load that never ended; the default is better than keeping refreshes off
+        settingsBeforeBulkLoad.put(REFRESH_INTERVAL, "-1".equals(refreshInterval) ? null : refreshInterval);
+        settingsBeforeBulkLoad.put(NUMBER_OF_REPLICAS, current.getSetting(index, NUMBER_OF_REPLICAS));
+        Settings bulkLoadSettings = Settings.builder()
+                .put(REFRESH_INTERVAL, "-1")
+                .put(NUMBER_OF_REPLICAS, 0)
+                .build();
+        elastic.indices().putSettings(new UpdateSettingsRequest(index).settings(bulkLoadSettings), RequestOptions.DEFAULT);
+        LOG.info("Bulk loading into " + index + " with refreshes and replicas turned off");
+    }
+
+    /**
+     * Flushes the bulk load's ingester and waits for it, then restores the settings changed by {@link #beginBulkLoad()},
+     * refreshes, and, if configured, merges the segments of an index that isn't being served yet
+     */
+    @Override
+    public synchronized Map<String, IngestReport> endBulkLoad() throws IOException {
+        ElasticBulkIngester ingester = bulkIngester;
+        bulkIngester = null;
+        try {
+            return ingester == null ? Map.of() : ingester.finish();
+        } finally {
+            restoreSettingsAfterBulkLoad();
+        }
+    }
+
+    private void restoreSettingsAfterBulkLoad() throws IOException {
+        if (settingsBeforeBulkLoad.isEmpty()) {
+            return;
+        }
+        String index = getWriteIndex();
+        Settings.Builder restored = Settings.builder();
+        settingsBeforeBulkLoad.forEach((name, value) -> {
+            if (value == null) {
+                restored.putNull(name);
+            } else {
+                restored.put(name, value);
             }
-            dynamicTemplate.endObject();
+        });
+        settingsBeforeBulkLoad.clear();
+        elastic.indices().putSettings(new UpdateSettingsRequest(index).settings(restored), RequestOptions.DEFAULT);
+        elastic.indices().refresh(new RefreshRequest(index), RequestOptions.DEFAULT);
+        int maxSegments = bulkSettings.getForceMergeMaxSegments();
+        if (maxSegments > 0 && !getIndicesBehindAlias().contains(index)) {
+            forceMerge(index, maxSegments);
         }
-        dynamicTemplate.endArray();
-        dynamicTemplate.endObject();
-        request.mapping(dynamicTemplate);
-        elastic.indices().create(request, RequestOptions.DEFAULT);
     }
 
-    private void deleteIndex() throws IOException {
-        LOG.info("Deleting index: " + dataIndex);
-        DeleteIndexRequest request = new DeleteIndexRequest(dataIndex);
+    private void forceMerge(String index, int maxSegments) {
+        LOG.info("Merging " + index + " down to " + maxSegments + " segments");
         try {
-            elastic.indices().delete(request, RequestOptions.DEFAULT);
-        } catch (ElasticsearchException ex) {
-            LOG.info("Tried deleting a non-existent index. Oops!");
+            elastic.indices().forcemerge(new ForceMergeRequest(index).maxNumSegments(maxSegments), RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            // the merge carries on in elastic even if the client gives up waiting on it
+            LOG.warn("Did not hear back on merging " + index + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized String getWriteIndex() throws IOException {
+        if (writeIndex == null) {
+            // without a reset, writes go into whatever is being served
+            Optional<String> served = getIndicesBehindAlias().stream().max(Comparator.naturalOrder());
+            if (served.isPresent()) {
+                writeIndex = served.get();
+            } else if (concreteIndexExists(dataIndex)) {
+                // from before data was served through an alias, with a mapping that misses typed sub-fields like
+                // value.number; a copy in a new generation gets them, and publish() replaces the old index with it
+                factoryReset();
+                copyLegacyIndexInto(writeIndex);
+            } else {
+                // nothing is served yet, as on a fresh install
+                factoryReset();
+            }
+        }
+        return writeIndex;
+    }
+
+    private void copyLegacyIndexInto(String generation) throws IOException {
+        LOG.info("Copying " + dataIndex + " into " + generation + ". It replaces " + dataIndex + " once published");
+        ReindexRequest request = new ReindexRequest()
+                .setSourceIndices(dataIndex)
+                .setDestIndex(generation)
+                // the copy has to be searchable for the deletes of changed datafiles that follow
+                .setRefresh(true);
+        RequestOptions waitLonger = RequestOptions.DEFAULT.toBuilder()
+                .setRequestConfig(RequestConfig.custom()
+                        .setSocketTimeout((int) TimeValue.timeValueMinutes(bulkSettings.getTimeoutMinutes()).millis())
+                        .build())
+                .build();
+        BulkByScrollResponse response = elastic.reindex(request, waitLonger);
+        if (!response.getBulkFailures().isEmpty() || !response.getSearchFailures().isEmpty()) {
+            throw new IOException("Could not copy " + dataIndex + " into " + generation + ": "
+                    + response.getBulkFailures().size() + " write and "
+                    + response.getSearchFailures().size() + " read failures");
+        }
+        LOG.info("Copied " + response.getCreated() + " data points from " + dataIndex);
+    }
+
+    private Set<String> getIndicesBehindAlias() throws IOException {
+        GetAliasesRequest request = new GetAliasesRequest(dataIndex);
+        return new TreeSet<>(elastic.indices().getAlias(request, RequestOptions.DEFAULT).getAliases().keySet());
+    }
+
+    private boolean concreteIndexExists(String index) throws IOException {
+        return elastic.indices().exists(new GetIndexRequest(index), RequestOptions.DEFAULT);
+    }
+
+    private void pruneGenerations(String live) throws IOException {
+        GetIndexRequest request = new GetIndexRequest(dataIndex + "-*").indicesOptions(IndicesOptions.lenientExpandOpen());
+        List<String> generations = new ArrayList<>(Arrays.asList(
+                elastic.indices().get(request, RequestOptions.DEFAULT).getIndices()
+        ));
+        generations.remove(live);
+        generations.sort(Comparator.reverseOrder());
+        for (String generation : generations.subList(Math.min(retainedGenerations - 1, generations.size()), generations.size())) {
+            LOG.info("Deleting old index: " + generation);
+            elastic.indices().delete(new DeleteIndexRequest(generation), RequestOptions.DEFAULT);
         }
     }
 
+    private void createIndexWithMapping(String index) throws IOException {
+        Map<String, Set<String>> dimensionProperties = new LinkedHashMap<>();
+        if (dimensionsManager != null) {
+            for (String dimension : dimensionsManager.getKnownDimensions()) {
+                dimensionProperties.put(dimension, dimensionsManager.getPropertiesOf(dimension));
+            }
+        }
+        CreateIndexRequest request = new CreateIndexRequest(index);
+        request.mapping(ElasticIndexMapping.of(dimensionProperties, mappingSettings));
+        elastic.indices().create(request, RequestOptions.DEFAULT);
+    }
+
+    /**
+     * Refuses queries matching more than {@code hhm.elastic.query.max-hits} data points, as the whole result is held in
+     * memory. Those can still be read through {@link #stream(DataQuery, DataPointConsumer)}.
+     */
     @Override
     public DataQueryResult query(DataQuery dataQuery) throws IOException {
         DataQueryResult searchResult = new DataQueryResult();
-        SearchResponse searchResponse = doSearch(elastic, dataQuery, dataIndex);
-        searchResult.setResult(Arrays.stream(searchResponse.getHits().getHits())
-                .map(this::getHitAsMapWithId)
-                .map(ElasticQueryHelpers::convertToStringOnlyMap)
-                .collect(Collectors.toList())
-        );
+        List<Map<String, String>> result = new ArrayList<>();
+        stream(dataQuery, dataPoint -> {
+            if (result.size() >= maxQueryHits) {
+                throw tooManyHits();
+            }
+            result.add(dataPoint);
+        });
+        searchResult.setResult(result);
         return searchResult;
     }
 
-    private Map<String, Object> getHitAsMapWithId(SearchHit hit) {
-        Map<String, Object> mapWithId = hit.getSourceAsMap();
-        mapWithId.put("_id", hit.getId());
-        return mapWithId;
+    @Override
+    public void stream(DataQuery dataQuery, DataPointConsumer consumer) throws IOException {
+        SearchResponse page = startScroll(elastic, limiter, dataQuery, dataIndex, SCROLL_PAGE_SIZE, SCROLL_KEEP_ALIVE);
+        String scrollId = page.getScrollId();
+        try {
+            while (page.getHits().getHits().length > 0) {
+                for (SearchHit hit : page.getHits().getHits()) {
+                    consumer.accept(ElasticQueryHelpers.convertToStringOnlyMap(getHitAsMap(hit, dataQuery.getFields())));
+                }
+                page = limiter.scroll(elastic, new SearchScrollRequest(scrollId).scroll(SCROLL_KEEP_ALIVE));
+                scrollId = page.getScrollId();
+            }
+        } finally {
+            clearScroll(scrollId);
+        }
+    }
+
+    /**
+     * Same limit on the number of hits as {@link #query(DataQuery)}
+     */
+    @Override
+    public CompletionStage<DataQueryResult> queryAsync(DataQuery dataQuery) {
+        SearchRequest request = ElasticQueryHelpers.getScrollRequest(dataQuery, dataIndex, SCROLL_PAGE_SIZE, SCROLL_KEEP_ALIVE);
+        List<Map<String, String>> result = new ArrayList<>();
+        // the scroll being read, to be cleared if a page fails
+        AtomicReference<String> scrollId = new AtomicReference<>();
+        return limiter.searchAsync(elastic, request)
+                .thenCompose(page -> collectPagesAsync(page, dataQuery.getFields(), result, scrollId))
+                .whenComplete((allCollected, error) -> {
+                    String openScroll = scrollId.get();
+                    if (error != null && openScroll != null) {
+                        clearScrollAsync(openScroll);
+                    }
+                })
+                .thenApply(allCollected -> DataQueryResult.of(result));
+    }
+
+    private CompletableFuture<Void> collectPagesAsync(SearchResponse page, @Nullable List<String> fields,
+                                                      List<Map<String, String>> result, AtomicReference<String> scrollId) {
+        scrollId.set(page.getScrollId());
+        if (page.getHits().getHits().length == 0) {
+            scrollId.set(null);
+            clearScrollAsync(page.getScrollId());
+            return CompletableFuture.completedFuture(null);
+        }
+        if (result.size() + page.getHits().getHits().length > maxQueryHits) {
+            return CompletableFuture.failedFuture(tooManyHits());
+        }
+        for (SearchHit hit : page.getHits().getHits()) {
+            result.add(ElasticQueryHelpers.convertToStringOnlyMap(getHitAsMap(hit, fields)));
+        }
+        SearchScrollRequest next = new SearchScrollRequest(page.getScrollId()).scroll(SCROLL_KEEP_ALIVE);
+        return limiter.scrollAsync(elastic, next)
+                .thenCompose(nextPage -> collectPagesAsync(nextPage, fields, result, scrollId));
+    }
+
+    private IllegalArgumentException tooManyHits() {
+        return new IllegalArgumentException("The filter matches more than " + maxQueryHits
+                + " data points. Please narrow it down, or download the data instead.");
+    }
+
+    private void clearScrollAsync(String scrollId) {
+        ClearScrollRequest request = new ClearScrollRequest();
+        request.addScrollId(scrollId);
+        elastic.clearScrollAsync(request, RequestOptions.DEFAULT, ActionListener.wrap(
+                response -> LOG.trace("Cleared scroll"),
+                e -> LOG.warn("Could not clear scroll: " + e.getMessage())
+        ));
+    }
+
+    private void clearScroll(String scrollId) {
+        ClearScrollRequest request = new ClearScrollRequest();
+        request.addScrollId(scrollId);
+        try {
+            elastic.clearScroll(request, RequestOptions.DEFAULT);
+        } catch (IOException e) {
+            // elastic lets go of it anyway once the keep-alive runs out
+            LOG.warn("Could not clear scroll: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Whole hits come with their _id; projected ones only have the fields asked for
+     */
+    private Map<String, Object> getHitAsMap(SearchHit hit, @Nullable List<String> fields) {
+        Map<String, Object> map = hit.getSourceAsMap();
+        ElasticLineage.unpack(map);
+        if (fields == null || fields.isEmpty()) {
+            map.put("_id", hit.getId());
+        } else {
+            // the lineage blob unpacks into more provenance than might have been asked for
+            map.keySet().retainAll(fields);
+            if (fields.contains("_id")) {
+                map.put("_id", hit.getId());
+            }
+        }
+        return map;
     }
 
     @Override
     public List<Map<String, Object>> getAllTermsOfFields(FilterAndSelectFields filterAndFields) throws IOException {
-        return ElasticQueryHelpers.getAllTermsOfFields(elastic, dataIndex, filterAndFields);
+        return ElasticQueryHelpers.getAllTermsOfFields(elastic, limiter, dataIndex, filterAndFields);
+    }
+
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields) {
+        return ElasticQueryCompositeAggregation.getResultAsync(elastic, limiter, dataIndex, filterAndFields);
+    }
+
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields, int limit) {
+        return ElasticQueryCompositeAggregation.getResultAsync(elastic, limiter, dataIndex, filterAndFields, limit);
     }
 
 
@@ -165,22 +520,22 @@ public class ElasticManager implements DatasetStore {
     }
 
     @Override
-    public Map<String, List<String>> getDimensionsPossibleAt(List<String> dimensions, Filter filter) {
-        return dimensions.stream()
-                .map(d -> getDimensionsPossibleAt(d, filter))
-                .flatMap(Collection::stream)
-                .flatMap(e -> e.entrySet().stream())
-                .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.mapping(e -> (String) e.getValue(), Collectors.toList())));
+    public Map<String, List<String>> getDimensionsPossibleAt(List<String> dimensions, Filter filter) throws IOException {
+        return ElasticFacets.valuesOf(elastic, limiter, dataIndex, dimensions, filter);
     }
 
-    private List<Map<String, Object>> getDimensionsPossibleAt(String dimension, Filter filter) {
-        FilterAndSelectFields filterAndSelectFields = new FilterAndSelectFields();
-        filterAndSelectFields.setFilter(filter);
-        filterAndSelectFields.setFields(List.of(dimension));
-        try {
-            return ElasticQueryHelpers.getAllTermsOfFields(elastic, dataIndex, filterAndSelectFields);
-        } catch (IOException e) {
-            return List.of();
-        }
+    @Override
+    public ScoringData getScoringData(Filter filter, List<String> dimensionsToCheck) throws IOException {
+        return ElasticScoringQuery.of(elastic, limiter, dataIndex, filter, dimensionsToCheck);
+    }
+
+    @Override
+    public List<ValueStatistics> getValueStatistics(@Nullable Filter filter, @Nullable String groupBy, List<Double> percents) throws IOException {
+        return ElasticValueStatistics.of(elastic, limiter, dataIndex, filter, groupBy, percents);
+    }
+
+    @Override
+    public CompletionStage<Map<String, List<String>>> getDimensionsPossibleAtAsync(List<String> dimensions, Filter filter) {
+        return ElasticFacets.valuesOfAsync(elastic, limiter, dataIndex, dimensions, filter);
     }
 }
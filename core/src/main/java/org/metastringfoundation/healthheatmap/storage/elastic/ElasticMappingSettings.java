@@ -0,0 +1,63 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Knobs for the mapping of new data indices. Field names are as they appear in data points, like indicator.id
+ */
+@ApplicationScoped
+public class ElasticMappingSettings {
+    private static final String DEFAULT_EAGER_GLOBAL_ORDINALS = "indicator.id,entity.id";
+
+    private final Set<String> eagerGlobalOrdinals;
+    private final Set<String> displayOnly;
+
+    @Inject
+    public ElasticMappingSettings(
+            @ConfigProperty(name = "hhm.elastic.mapping.eager-global-ordinals", defaultValue = DEFAULT_EAGER_GLOBAL_ORDINALS) List<String> eagerGlobalOrdinals,
+            @ConfigProperty(name = "hhm.elastic.mapping.display-only") Optional<List<String>> displayOnly
+    ) {
+        this.eagerGlobalOrdinals = Set.copyOf(eagerGlobalOrdinals);
+        this.displayOnly = Set.copyOf(displayOnly.orElse(List.of()));
+    }
+
+    public static ElasticMappingSettings defaults() {
+        return new ElasticMappingSettings(List.of(DEFAULT_EAGER_GLOBAL_ORDINALS.split(",")), Optional.empty());
+    }
+
+    /**
+     * @return fields filtered and aggregated on so often that their global ordinals are worth building at refresh
+     */
+    public Set<String> getEagerGlobalOrdinals() {
+        return eagerGlobalOrdinals;
+    }
+
+    /**
+     * @return fields that are only ever shown, never filtered or aggregated on, and so are kept out of the index
+     */
+    public Set<String> getDisplayOnly() {
+        return displayOnly;
+    }
+}
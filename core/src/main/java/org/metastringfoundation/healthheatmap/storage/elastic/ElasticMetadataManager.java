@@ -17,15 +17,23 @@
 package org.metastringfoundation.healthheatmap.storage.elastic;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.ClearScrollRequest;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.client.indices.CreateIndexRequest;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.reindex.DeleteByQueryRequest;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.jboss.logging.Logger;
@@ -33,12 +41,16 @@ import org.metastringfoundation.healthheatmap.beans.DownloadRequest;
 import org.metastringfoundation.healthheatmap.helpers.Jsonizer;
 import org.metastringfoundation.healthheatmap.logic.ApplicationMetadataStore;
 
+import javax.annotation.Nullable;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.io.IOException;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import java.util.stream.Collectors;
 
 @ElasticStore
@@ -46,6 +58,9 @@ import java.util.stream.Collectors;
 public class ElasticMetadataManager implements ApplicationMetadataStore {
     private static final Logger LOG = Logger.getLogger(ElasticMetadataManager.class);
     public static final String SAVED_DATA_FILE = "savedDataFile";
+    public static final String DATA_GENERATION = "dataGeneration";
+    private static final int RECORDS_PAGE_SIZE = 1000;
+    private static final TimeValue SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
     private final RestHighLevelClient elastic;
     private final String downloadsIndex = "downloads";
     private final String metadataIndex = "metadata";
@@ -60,6 +75,7 @@ public class ElasticMetadataManager implements ApplicationMetadataStore {
     public void factoryReset() throws IOException {
         deleteIndex();
         recreateIndex();
+        bumpDataGeneration();
     }
 
     private void recreateIndex() throws IOException {
@@ -87,12 +103,63 @@ public class ElasticMetadataManager implements ApplicationMetadataStore {
 
     @Override
     public void markDatafileAsSaved(String datafile) throws IOException {
-        IndexRequest request = new IndexRequest(metadataIndex);
-        String jsonData = Jsonizer.asJSON(Map.of("file", datafile, "type", SAVED_DATA_FILE));
+        markDatafileAsSaved(datafile, null);
+    }
+
+    @Override
+    public void markDatafileAsSaved(String datafile, @Nullable String fingerprint) throws IOException {
+        // keyed by file name, so saving again overwrites the previous record in place
+        Map<String, String> record = new HashMap<>();
+        record.put("file", datafile);
+        record.put("type", SAVED_DATA_FILE);
+        if (fingerprint != null) {
+            record.put("fingerprint", fingerprint);
+        }
+        IndexRequest request = new IndexRequest(metadataIndex).id(SAVED_DATA_FILE + ":" + datafile);
+        String jsonData = Jsonizer.asJSON(record);
         request.source(jsonData, XContentType.JSON);
         elastic.index(request, RequestOptions.DEFAULT);
     }
 
+    @Override
+    public void unmarkDatafileAsSaved(String datafile) throws IOException {
+        DeleteByQueryRequest request = new DeleteByQueryRequest(metadataIndex);
+        request.setQuery(QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("type.keyword", SAVED_DATA_FILE))
+                .filter(QueryBuilders.termQuery("file.keyword", datafile)));
+        request.setRefresh(true);
+        request.setAbortOnVersionConflict(false);
+        elastic.deleteByQuery(request, RequestOptions.DEFAULT);
+    }
+
+    @Override
+    public String getDataGeneration() throws IOException {
+        GetResponse response;
+        try {
+            response = elastic.get(new GetRequest(metadataIndex, DATA_GENERATION), RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                return "";
+            }
+            throw e;
+        }
+        if (!response.isExists()) {
+            return "";
+        }
+        return String.valueOf(response.getSourceAsMap().get("generation"));
+    }
+
+    @Override
+    public void bumpDataGeneration() throws IOException {
+        Map<String, String> record = Map.of(
+                "type", DATA_GENERATION,
+                "generation", UUID.randomUUID().toString()
+        );
+        IndexRequest request = new IndexRequest(metadataIndex).id(DATA_GENERATION);
+        request.source(Jsonizer.asJSON(record), XContentType.JSON);
+        elastic.index(request, RequestOptions.DEFAULT);
+    }
+
     @Override
     public boolean getHealth() throws IOException {
         return ElasticHealthCheck.indexes(elastic, downloadsIndex, metadataIndex);
@@ -100,18 +167,61 @@ public class ElasticMetadataManager implements ApplicationMetadataStore {
 
     @Override
     public List<String> getSavedDataFiles() throws IOException {
-        SearchRequest searchRequest = new SearchRequest();
-        SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
-        searchSourceBuilder.query(QueryBuilders.matchAllQuery());
-        searchSourceBuilder.size(1000);
-        searchRequest.indices(metadataIndex);
-        searchRequest.source(searchSourceBuilder);
-        SearchResponse searchResponse = elastic.search(searchRequest, RequestOptions.DEFAULT);
-        return Arrays.stream(searchResponse.getHits().getHits())
-                .map(SearchHit::getSourceAsMap)
-                .filter(m -> m.get("type").equals(SAVED_DATA_FILE))
+        return getSavedDataFileRecords().stream()
                 .map(m -> m.get("file"))
                 .map(e -> (String) e)
+                .distinct()
                 .collect(Collectors.toList());
     }
+
+    @Override
+    public Map<String, String> getSavedDataFileFingerprints() throws IOException {
+        Map<String, String> fingerprints = new LinkedHashMap<>();
+        for (Map<String, Object> record : getSavedDataFileRecords()) {
+            String file = (String) record.get("file");
+            String fingerprint = (String) record.get("fingerprint");
+            // records from before they were keyed by file name carry no fingerprint and must not hide the current one
+            if (fingerprint != null || !fingerprints.containsKey(file)) {
+                fingerprints.put(file, fingerprint);
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Scrolls through the records page by page, since there is one per datafile and those can be many
+     */
+    private List<Map<String, Object>> getSavedDataFileRecords() throws IOException {
+        SearchRequest searchRequest = new SearchRequest(metadataIndex);
+        searchRequest.source(new SearchSourceBuilder()
+                .query(QueryBuilders.termQuery("type.keyword", SAVED_DATA_FILE))
+                .size(RECORDS_PAGE_SIZE));
+        searchRequest.scroll(SCROLL_KEEP_ALIVE);
+        SearchResponse page;
+        try {
+            page = elastic.search(searchRequest, RequestOptions.DEFAULT);
+        } catch (ElasticsearchStatusException e) {
+            if (e.status() == RestStatus.NOT_FOUND) {
+                // nothing has been saved yet
+                return List.of();
+            }
+            throw e;
+        }
+        List<Map<String, Object>> records = new ArrayList<>();
+        String scrollId = page.getScrollId();
+        try {
+            while (page.getHits().getHits().length > 0) {
+                for (SearchHit hit : page.getHits().getHits()) {
+                    records.add(hit.getSourceAsMap());
+                }
+                page = elastic.scroll(new SearchScrollRequest(scrollId).scroll(SCROLL_KEEP_ALIVE), RequestOptions.DEFAULT);
+                scrollId = page.getScrollId();
+            }
+        } finally {
+            ClearScrollRequest clear = new ClearScrollRequest();
+            clear.addScrollId(scrollId);
+            elastic.clearScroll(clear, RequestOptions.DEFAULT);
+        }
+        return records;
+    }
 }
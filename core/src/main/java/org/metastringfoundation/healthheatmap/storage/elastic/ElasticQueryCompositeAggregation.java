@@ -34,6 +34,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import static org.metastringfoundation.healthheatmap.storage.elastic.ElasticQueryHelpers.doSearch;
@@ -45,10 +46,13 @@ import static org.metastringfoundation.healthheatmap.storage.elastic.ElasticQuer
  */
 public class ElasticQueryCompositeAggregation {
     private static final String AGGREGATION_NAME = "allTerms";
+    private static final int PAGE_SIZE = 1000;
 
     private final @Nonnull
     RestHighLevelClient elastic;
     private final @Nonnull
+    ElasticLimiter limiter;
+    private final @Nonnull
     String index;
     private final @Nonnull
     FilterAndSelectFields filterAndFields;
@@ -62,16 +66,19 @@ public class ElasticQueryCompositeAggregation {
      * The default constructor
      *
      * @param elastic         client through which the aggregation is run
+     * @param limiter         through which each page is searched
      * @param index           on which the aggregation is run
      * @param filterAndFields filters restrict the scope of the documents and fields are what gets returned in output
      * @throws IOException if elastic is down
      */
     public ElasticQueryCompositeAggregation(
             @Nonnull RestHighLevelClient elastic,
+            @Nonnull ElasticLimiter limiter,
             @Nonnull String index,
             @Nonnull FilterAndSelectFields filterAndFields
     ) throws IOException {
         this.elastic = elastic;
+        this.limiter = limiter;
         this.index = index;
         this.filterAndFields = filterAndFields;
         calculateResult();
@@ -86,10 +93,7 @@ public class ElasticQueryCompositeAggregation {
 
     private void calculateResult() throws IOException {
         do {
-            CompositeAggregationBuilder aggregation = getQueryForTermsOfField();
-            QueryBuilder query = getQuery();
-            SearchRequest request = getAnySearchRequest(query, aggregation, index, 0);
-            SearchResponse response = doSearch(elastic, request);
+            SearchResponse response = doSearch(elastic, limiter, getPageRequest(index, filterAndFields, afterKey), afterKey != null);
             CompositeAggregation compositeAggregation = response.getAggregations().get(AGGREGATION_NAME);
             Collection<CompositeAggregation.Bucket> buckets = getCompositeAggregationBuckets(compositeAggregation);
             afterKey = compositeAggregation.afterKey(); // .afterKey() returns null towards the end
@@ -97,17 +101,79 @@ public class ElasticQueryCompositeAggregation {
         } while (afterKey != null);
     }
 
-    private QueryBuilder getQuery() {
-        return filterAndFields.getFilter().map(ElasticQueryHelpers::getElasticQuery).orElse(null);
+    /**
+     * Same result as {@link #getResult()}, without blocking on elastic while paging
+     *
+     * @param elastic         client through which the aggregation is run
+     * @param limiter         through which each page is searched
+     * @param index           on which the aggregation is run
+     * @param filterAndFields filters restrict the scope of the documents and fields are what gets returned in output
+     * @return the records, once the last page is in
+     */
+    public static CompletableFuture<List<Map<String, Object>>> getResultAsync(
+            @Nonnull RestHighLevelClient elastic,
+            @Nonnull ElasticLimiter limiter,
+            @Nonnull String index,
+            @Nonnull FilterAndSelectFields filterAndFields
+    ) {
+        return getResultAsync(elastic, limiter, index, filterAndFields, Integer.MAX_VALUE);
     }
 
-    private List<CompositeValuesSourceBuilder<?>> getTermsBuilders() {
+    /**
+     * Same as {@link #getResultAsync(RestHighLevelClient, ElasticLimiter, String, FilterAndSelectFields)}, but stops
+     * paging as soon as more than {@code limit} records are in
+     *
+     * @param limit most records wanted; a result longer than this has been cut short
+     * @return the records, once the last page is in or the limit is passed
+     */
+    public static CompletableFuture<List<Map<String, Object>>> getResultAsync(
+            @Nonnull RestHighLevelClient elastic,
+            @Nonnull ElasticLimiter limiter,
+            @Nonnull String index,
+            @Nonnull FilterAndSelectFields filterAndFields,
+            int limit
+    ) {
+        return getPagesAsync(elastic, limiter, index, filterAndFields, limit, null, new ArrayList<>());
+    }
+
+    private static CompletableFuture<List<Map<String, Object>>> getPagesAsync(
+            RestHighLevelClient elastic,
+            ElasticLimiter limiter,
+            String index,
+            FilterAndSelectFields filterAndFields,
+            int limit,
+            @Nullable Map<String, Object> afterKey,
+            List<Map<String, Object>> resultSoFar
+    ) {
+        SearchRequest request = getPageRequest(index, filterAndFields, afterKey);
+        return limiter.callAsync(() -> ElasticAsync.search(elastic, request), afterKey != null).thenCompose(response -> {
+            CompositeAggregation compositeAggregation = response.getAggregations().get(AGGREGATION_NAME);
+            resultSoFar.addAll(termsMapsFrom(getCompositeAggregationBuckets(compositeAggregation)));
+            Map<String, Object> nextAfterKey = compositeAggregation.afterKey();
+            if (nextAfterKey == null || resultSoFar.size() > limit) {
+                return CompletableFuture.completedFuture(resultSoFar);
+            }
+            return getPagesAsync(elastic, limiter, index, filterAndFields, limit, nextAfterKey, resultSoFar);
+        });
+    }
+
+    private static SearchRequest getPageRequest(
+            String index,
+            FilterAndSelectFields filterAndFields,
+            @Nullable Map<String, Object> afterKey
+    ) {
+        CompositeAggregationBuilder aggregation = getQueryForTermsOfField(filterAndFields, afterKey);
+        QueryBuilder query = filterAndFields.getFilter().map(ElasticQueryHelpers::getElasticQuery).orElse(null);
+        return getAnySearchRequest(query, aggregation, index, 0);
+    }
+
+    private static List<CompositeValuesSourceBuilder<?>> getTermsBuilders(FilterAndSelectFields filterAndFields) {
         return filterAndFields.getFields().stream()
-                .map(this::buildTermsSource)
+                .map(ElasticQueryCompositeAggregation::buildTermsSource)
                 .collect(Collectors.toList());
     }
 
-    private TermsValuesSourceBuilder buildTermsSource(String fieldName) {
+    private static TermsValuesSourceBuilder buildTermsSource(String fieldName) {
         return new TermsValuesSourceBuilder(fieldName).field(fieldName).order("asc").missingBucket(true);
     }
 
@@ -119,11 +185,14 @@ public class ElasticQueryCompositeAggregation {
                 .collect(Collectors.toList());
     }
 
-    private CompositeAggregationBuilder getQueryForTermsOfField() {
+    private static CompositeAggregationBuilder getQueryForTermsOfField(
+            FilterAndSelectFields filterAndFields,
+            @Nullable Map<String, Object> afterKey
+    ) {
         CompositeAggregationBuilder aggregation = AggregationBuilders.composite(
                 AGGREGATION_NAME,
-                getTermsBuilders()
-        );
+                getTermsBuilders(filterAndFields)
+        ).size(PAGE_SIZE);
         if (afterKey != null && !afterKey.isEmpty()) {
             aggregation.aggregateAfter(afterKey);
         }
@@ -20,10 +20,13 @@ import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.RequestOptions;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.search.aggregations.AggregationBuilder;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.sort.FieldSortBuilder;
 import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.beanconverters.CanonicalQueries;
 import org.metastringfoundation.healthheatmap.beanconverters.FilterToDataQuery;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.beans.Filter;
@@ -32,6 +35,7 @@ import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -43,23 +47,64 @@ public class ElasticQueryHelpers {
     private static final Logger LOG = Logger.getLogger(ElasticQueryHelpers.class);
 
     /**
-     * Queries elastic for data using filters supplied
+     * Starts scrolling through the data matching the filters supplied, a page at a time. The scroll reads from a
+     * snapshot taken when it starts, so later pages are consistent with the first however long the reader takes.
      *
      * @param elastic   the client
      * @param dataQuery the query (including filters)
      * @param index     the index in which to search
-     * @return data that matches the filters
+     * @param pageSize  hits per page
+     * @param keepAlive how long the snapshot is kept between pages
+     * @return the first page, along with the id to fetch the rest with
      * @throws IOException for connection issues
      */
-    public static SearchResponse doSearch(
+    public static SearchResponse startScroll(
             @Nonnull RestHighLevelClient elastic,
+            @Nonnull ElasticLimiter limiter,
             @Nonnull DataQuery dataQuery,
-            @Nonnull String index
+            @Nonnull String index,
+            int pageSize,
+            @Nonnull TimeValue keepAlive
     ) throws IOException {
+        return limiter.search(elastic, getScrollRequest(dataQuery, index, pageSize, keepAlive));
+    }
+
+    /**
+     * @see #startScroll(RestHighLevelClient, ElasticLimiter, DataQuery, String, int, TimeValue)
+     */
+    public static SearchRequest getScrollRequest(
+            @Nonnull DataQuery dataQuery,
+            @Nonnull String index,
+            int pageSize,
+            @Nonnull TimeValue keepAlive
+    ) {
         QueryBuilder query = getElasticQuery(dataQuery);
         LOG.debug(query.toString());
-        SearchRequest searchRequest = getElasticSearchRequest(query, index);
-        return elastic.search(searchRequest, RequestOptions.DEFAULT);
+        SearchRequest searchRequest = getAnySearchRequest(query, null, index, pageSize);
+        // index order is the cheapest to page through
+        searchRequest.source().sort(FieldSortBuilder.DOC_FIELD_NAME);
+        applySourceFilter(searchRequest.source(), dataQuery);
+        searchRequest.scroll(keepAlive);
+        return searchRequest;
+    }
+
+    /**
+     * Has elastic send only the fields the query asks for, rather than the whole source of each hit
+     *
+     * @param source    the search to restrict
+     * @param dataQuery the query, with its fields and includes
+     */
+    public static void applySourceFilter(@Nonnull SearchSourceBuilder source, @Nonnull DataQuery dataQuery) {
+        List<String> fields = dataQuery.getFields();
+        if (fields == null || fields.isEmpty()) {
+            ElasticLineage.applySourceFilter(source, dataQuery.getIncludes());
+        } else {
+            List<String> includes = new ArrayList<>(fields);
+            if (ElasticLineage.isWanted(fields)) {
+                includes.add(ElasticLineage.LINEAGE);
+            }
+            source.fetchSource(includes.toArray(new String[0]), null);
+        }
     }
 
     /**
@@ -83,16 +128,12 @@ public class ElasticQueryHelpers {
     public static @Nonnull
     QueryBuilder getElasticQuery(@Nonnull DataQuery dataQuery) {
         LOG.debug("Incoming query: " + dataQuery);
-        QueryBuilder query = ElasticFilterQuery.getQuery(dataQuery);
+        // same clauses in the same order for the same filter, so that elastic's request cache recognises repeats
+        QueryBuilder query = ElasticFilterQuery.getQuery(CanonicalQueries.of(dataQuery));
         LOG.debug("Query generated: \n" + query.toString());
         return query;
     }
 
-    public static @Nonnull
-    SearchRequest getElasticSearchRequest(@Nonnull QueryBuilder query, @Nonnull String index) {
-        return getAnySearchRequest(query, null, index, 10000);
-    }
-
     public static @Nonnull
     SearchRequest getAggregationRequest(
             @Nonnull AggregationBuilder aggregation,
@@ -109,6 +150,10 @@ public class ElasticQueryHelpers {
             int size
     ) {
         SearchRequest searchRequest = new SearchRequest(index);
+        if (size == 0) {
+            // aggregation-only results can be served from the shards' request caches until the index next refreshes
+            searchRequest.requestCache(true);
+        }
         SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
         searchSourceBuilder.size(size);
         if (query != null) {
@@ -127,9 +172,10 @@ public class ElasticQueryHelpers {
                 .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().toString()));
     }
 
-    public static List<Map<String, Object>> getAllTermsOfFields(RestHighLevelClient elastic, String index, FilterAndSelectFields filterAndFields) throws IOException {
+    public static List<Map<String, Object>> getAllTermsOfFields(RestHighLevelClient elastic, ElasticLimiter limiter, String index, FilterAndSelectFields filterAndFields) throws IOException {
         ElasticQueryCompositeAggregation query = new ElasticQueryCompositeAggregation(
                 elastic,
+                limiter,
                 index,
                 filterAndFields
         );
@@ -139,8 +185,10 @@ public class ElasticQueryHelpers {
 
     public static SearchResponse doSearch(
             RestHighLevelClient elastic,
-            SearchRequest searchRequest
+            ElasticLimiter limiter,
+            SearchRequest searchRequest,
+            boolean isFollowUp
     ) throws IOException {
-        return elastic.search(searchRequest, RequestOptions.DEFAULT);
+        return limiter.call(() -> elastic.search(searchRequest, RequestOptions.DEFAULT), isFollowUp);
     }
 }
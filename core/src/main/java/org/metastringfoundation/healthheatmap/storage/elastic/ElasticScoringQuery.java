@@ -0,0 +1,150 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregation;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeAggregationBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.CompositeValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.composite.TermsValuesSourceBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.Stats;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Gets what scoring needs out of elastic as aggregations, rather than as documents.
+ * <p>
+ * A composite aggregation over entity, indicator, indicator type and value (along with its number) gives every
+ * distinct value of every indicator in every entity with its count of data points. The first page of it also carries
+ * stats of the numbers of each indicator, and the aggregations that find the values of the dimensions to be checked.
+ * For the usual heatmap (every district, a few indicators) that is the whole answer in one search; larger ones take a
+ * few more pages.
+ */
+class ElasticScoringQuery {
+    private static final String CELLS = "cells";
+    private static final String ENTITY = "entity.id";
+    private static final String INDICATOR = "indicator.id";
+    private static final String TYPE = "indicator.Positive/Negative";
+    private static final String VALUE = "value";
+    private static final String NUMBER = "value.number";
+    private static final String RANGES = "ranges";
+    private static final String STATS = "stats";
+    private static final int PAGE_SIZE = 5000;
+    private static final int MAX_INDICATORS = 10000;
+
+    static ScoringData of(
+            RestHighLevelClient elastic,
+            ElasticLimiter limiter,
+            String index,
+            Filter filter,
+            List<String> dimensionsToCheck
+    ) throws IOException {
+        SearchResponse first = limiter.search(elastic, getRequest(index, filter, null, dimensionsToCheck));
+        Map<String, List<String>> possibleValues = ElasticFacets.valuesFrom(first.getAggregations(), elastic, limiter, index, dimensionsToCheck, filter);
+        Map<String, ScoringData.Range> ranges = getRanges(first.getAggregations().get(RANGES));
+        List<ScoringData.Cell> cells = new ArrayList<>();
+        CompositeAggregation page = first.getAggregations().get(CELLS);
+        addCells(page, cells);
+        // a page that isn't full is the last one, so there's no need to ask for the (empty) one after it
+        while (page.afterKey() != null && page.getBuckets().size() == PAGE_SIZE) {
+            SearchResponse next = ElasticQueryHelpers.doSearch(elastic, limiter, getRequest(index, filter, page.afterKey(), List.of()), true);
+            page = next.getAggregations().get(CELLS);
+            addCells(page, cells);
+        }
+        addMissingRanges(cells, ranges);
+        return ScoringData.of(cells, ranges, possibleValues);
+    }
+
+    private static SearchRequest getRequest(
+            String index,
+            Filter filter,
+            @Nullable Map<String, Object> afterKey,
+            List<String> dimensionsToCheck
+    ) {
+        List<CompositeValuesSourceBuilder<?>> sources = new ArrayList<>();
+        for (String field : List.of(ENTITY, INDICATOR, TYPE, VALUE, NUMBER)) {
+            sources.add(new TermsValuesSourceBuilder(field).field(field).order("asc").missingBucket(true));
+        }
+        CompositeAggregationBuilder cells = AggregationBuilders.composite(CELLS, sources).size(PAGE_SIZE);
+        if (afterKey != null) {
+            cells.aggregateAfter(afterKey);
+        }
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .size(0)
+                .query(ElasticQueryHelpers.getElasticQuery(filter))
+                .aggregation(cells);
+        if (afterKey == null) {
+            source.aggregation(AggregationBuilders.terms(RANGES).field(INDICATOR).size(MAX_INDICATORS)
+                    .subAggregation(AggregationBuilders.stats(STATS).field(NUMBER)));
+        }
+        ElasticFacets.addAggregations(source, dimensionsToCheck);
+        return new SearchRequest(index).source(source).requestCache(true);
+    }
+
+    private static void addCells(CompositeAggregation page, List<ScoringData.Cell> cells) {
+        for (CompositeAggregation.Bucket bucket : page.getBuckets()) {
+            Map<String, Object> key = bucket.getKey();
+            cells.add(new ScoringData.Cell(
+                    (String) key.get(ENTITY),
+                    (String) key.get(INDICATOR),
+                    (String) key.get(TYPE),
+                    (String) key.get(VALUE),
+                    (Double) key.get(NUMBER),
+                    bucket.getDocCount()
+            ));
+        }
+    }
+
+    private static Map<String, ScoringData.Range> getRanges(Terms indicators) {
+        Map<String, ScoringData.Range> ranges = new HashMap<>();
+        for (Terms.Bucket bucket : indicators.getBuckets()) {
+            Stats stats = bucket.getAggregations().get(STATS);
+            if (stats.getCount() > 0) {
+                ranges.put(bucket.getKeyAsString(), new ScoringData.Range(stats.getMin(), stats.getMax()));
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * Only needed when there were more indicators than the stats had room for
+     */
+    private static void addMissingRanges(List<ScoringData.Cell> cells, Map<String, ScoringData.Range> ranges) {
+        Map<String, double[]> missing = new HashMap<>();
+        for (ScoringData.Cell cell : cells) {
+            if (cell.getIndicator() != null && cell.getNumber() != null && !ranges.containsKey(cell.getIndicator())) {
+                double number = cell.getNumber();
+                double[] range = missing.computeIfAbsent(cell.getIndicator(), whatever -> new double[]{number, number});
+                range[0] = Math.min(range[0], number);
+                range[1] = Math.max(range[1], number);
+            }
+        }
+        missing.forEach((indicator, range) -> ranges.put(indicator, new ScoringData.Range(range[0], range[1])));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.elastic;
+
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.BucketOrder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.elasticsearch.search.aggregations.metrics.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.Stats;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Stats and percentiles of the numbers among values (the value.number sub-field), worked out by elastic in a single
+ * search, either over everything under a filter or for each value of a field
+ */
+class ElasticValueStatistics {
+    private static final String NUMBER = "value.number";
+    private static final String GROUPS = "groups";
+    private static final String STATS = "stats";
+    private static final String PERCENTILES = "percentiles";
+    private static final int MAX_GROUPS = 10000;
+
+    static List<ValueStatistics> of(
+            RestHighLevelClient elastic,
+            ElasticLimiter limiter,
+            String index,
+            @Nullable Filter filter,
+            @Nullable String groupBy,
+            List<Double> percents
+    ) throws IOException {
+        SearchSourceBuilder source = new SearchSourceBuilder().size(0);
+        if (filter != null) {
+            source.query(ElasticQueryHelpers.getElasticQuery(filter));
+        }
+        List<AggregationBuilder> metrics = getMetrics(percents);
+        if (groupBy == null) {
+            metrics.forEach(source::aggregation);
+        } else {
+            TermsAggregationBuilder groups = AggregationBuilders.terms(GROUPS).field(groupBy).size(MAX_GROUPS).order(BucketOrder.key(true));
+            metrics.forEach(groups::subAggregation);
+            source.aggregation(groups);
+        }
+        SearchResponse response = limiter.search(elastic, new SearchRequest(index).source(source).requestCache(true));
+        if (groupBy == null) {
+            return List.of(statisticsFrom(null, response.getAggregations(), percents));
+        }
+        List<ValueStatistics> result = new ArrayList<>();
+        Terms groups = response.getAggregations().get(GROUPS);
+        for (Terms.Bucket bucket : groups.getBuckets()) {
+            result.add(statisticsFrom(bucket.getKeyAsString(), bucket.getAggregations(), percents));
+        }
+        return result;
+    }
+
+    private static List<AggregationBuilder> getMetrics(List<Double> percents) {
+        List<AggregationBuilder> metrics = new ArrayList<>();
+        metrics.add(AggregationBuilders.stats(STATS).field(NUMBER));
+        if (!percents.isEmpty()) {
+            double[] percentsArray = percents.stream().mapToDouble(Double::doubleValue).toArray();
+            metrics.add(AggregationBuilders.percentiles(PERCENTILES).field(NUMBER).percentiles(percentsArray));
+        }
+        return metrics;
+    }
+
+    private static ValueStatistics statisticsFrom(@Nullable String group, Aggregations aggregations, List<Double> percents) {
+        Stats stats = aggregations.get(STATS);
+        if (stats.getCount() == 0) {
+            return new ValueStatistics(group, 0, null, null, null, null, Map.of());
+        }
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        if (!percents.isEmpty()) {
+            Percentiles computed = aggregations.get(PERCENTILES);
+            for (Double percent : percents) {
+                percentiles.put(String.valueOf(percent), computed.percentile(percent));
+            }
+        }
+        return new ValueStatistics(group, stats.getCount(), stats.getMin(), stats.getMax(), stats.getAvg(), stats.getSum(), percentiles);
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.file;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A binary copy of what the last upload published: every data point as the store gives it back, and the dimension
+ * tables they were augmented with. Starting from it saves reading and transforming the datafiles again. It is mapped
+ * rather than read so that opening it is cheap, but rows and dimensions are decoded onto the heap of whoever reads
+ * them.
+ * <p>
+ * Layout, with every number a big endian int:
+ * <pre>
+ * header       magic, version, row count, where dimensions start, where strings start, dimensions stamp
+ * rows         per row: id, field count, then that many field and value pairs
+ * dimensions   dimension count, then per dimension: name, record count, then per record: id, field count, pairs
+ * strings      string count, then count + 1 offsets into the UTF-8 bytes that follow
+ * </pre>
+ * Every string is stored once, in the strings section, and referred to elsewhere by its number. A file of another
+ * {@link #VERSION} is refused, so changing the layout only needs the version bumped. Files are limited to 2GB, which
+ * is what a single mapping can hold.
+ */
+public final class CorpusSnapshot {
+    static final int VERSION = 3;
+    private static final int MAGIC = 0x48484d53; // HHMS
+    private static final int HEADER_BYTES = 6 * Integer.BYTES;
+    private static final String ID = "_id";
+
+    private final Path file;
+    private final ByteBuffer buffer;
+    private final int rowCount;
+    private final int dimensionsAt;
+    private final int offsetsAt;
+    private final int bytesAt;
+    // decoded on first use; a snapshot is read by one thread at a time
+    private final String[] strings;
+    private final String dimensionsStamp;
+
+    private CorpusSnapshot(Path file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException(file + " is not a snapshot");
+        }
+        int version = buffer.getInt(Integer.BYTES);
+        if (version != VERSION) {
+            throw new IOException(file + " is a version " + version + " snapshot, but only version " + VERSION + " can be read");
+        }
+        try {
+            this.rowCount = buffer.getInt(2 * Integer.BYTES);
+            this.dimensionsAt = buffer.getInt(3 * Integer.BYTES);
+            int stringsAt = buffer.getInt(4 * Integer.BYTES);
+            int stringCount = buffer.getInt(stringsAt);
+            this.offsetsAt = stringsAt + Integer.BYTES;
+            this.bytesAt = offsetsAt + (stringCount + 1) * Integer.BYTES;
+            this.strings = new String[stringCount];
+            this.dimensionsStamp = string(buffer.getInt(5 * Integer.BYTES));
+        } catch (IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw corrupt(e);
+        }
+    }
+
+    /**
+     * Maps the file into memory; nothing in it is read until asked for
+     *
+     * @throws IOException if the file can't be mapped, or isn't a snapshot of the current version
+     */
+    public static CorpusSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                throw new IOException(file + " is not a snapshot");
+            }
+            // the mapping stays valid after the channel is closed, and even after the file is replaced
+            return new CorpusSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    /**
+     * Starts writing a snapshot next to the file. It replaces the file only once {@link Writer#commit()} is called,
+     * so readers never see a partly written one.
+     *
+     * @param dimensionsStamp {@link #stampOf(Path, List)} of the dimension files the data was augmented with
+     */
+    public static Writer writer(Path file, String dimensionsStamp) throws IOException {
+        return new Writer(file, dimensionsStamp);
+    }
+
+    /**
+     * @return something that changes whenever any of the files is added, removed, or modified; worked out from
+     * their names, sizes and modification times without reading them
+     */
+    public static String stampOf(Path directory, List<Path> files) throws IOException {
+        List<Path> sorted = new ArrayList<>(files);
+        Collections.sort(sorted);
+        Hasher hasher = Hashing.sha256().newHasher();
+        for (Path file : sorted) {
+            hasher.putString(directory.relativize(file).toString(), StandardCharsets.UTF_8)
+                    .putLong(Files.size(file))
+                    .putLong(Files.getLastModifiedTime(file).toMillis());
+        }
+        return hasher.hash().toString();
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public String getDimensionsStamp() {
+        return dimensionsStamp;
+    }
+
+    /**
+     * @param consumer gets the id and fields of every data point, in the order they were written
+     */
+    public void forEachRow(BiConsumer<String, Map<String, String>> consumer) throws IOException {
+        try {
+            int at = HEADER_BYTES;
+            for (int row = 0; row < rowCount; row++) {
+                String id = string(buffer.getInt(at));
+                Map<String, String> dataPoint = new LinkedHashMap<>();
+                at = readPairs(at + Integer.BYTES, dataPoint);
+                consumer.accept(id, dataPoint);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw corrupt(e);
+        }
+    }
+
+    /**
+     * @return dimension -> id -> field -> value, as {@link Writer#addDimension(String, Map)} was given them; the
+     * maps are the caller's to modify
+     */
+    public Map<String, Map<String, Map<String, String>>> getDimensions() throws IOException {
+        try {
+            Map<String, Map<String, Map<String, String>>> dimensions = new LinkedHashMap<>();
+            int at = dimensionsAt;
+            int dimensionCount = buffer.getInt(at);
+            at += Integer.BYTES;
+            for (int i = 0; i < dimensionCount; i++) {
+                Map<String, Map<String, String>> records = new LinkedHashMap<>();
+                dimensions.put(string(buffer.getInt(at)), records);
+                int recordCount = buffer.getInt(at + Integer.BYTES);
+                at += 2 * Integer.BYTES;
+                for (int j = 0; j < recordCount; j++) {
+                    Map<String, String> record = new LinkedHashMap<>();
+                    records.put(string(buffer.getInt(at)), record);
+                    at = readPairs(at + Integer.BYTES, record);
+                }
+            }
+            return dimensions;
+        } catch (IndexOutOfBoundsException e) {
+            throw corrupt(e);
+        }
+    }
+
+    /**
+     * @return position just past the pairs
+     */
+    private int readPairs(int at, Map<String, String> into) {
+        int count = buffer.getInt(at);
+        at += Integer.BYTES;
+        for (int i = 0; i < count; i++) {
+            into.put(string(buffer.getInt(at)), string(buffer.getInt(at + Integer.BYTES)));
+            at += 2 * Integer.BYTES;
+        }
+        return at;
+    }
+
+    private String string(int code) {
+        String string = strings[code];
+        if (string == null) {
+            int from = buffer.getInt(offsetsAt + code * Integer.BYTES);
+            int to = buffer.getInt(offsetsAt + (code + 1) * Integer.BYTES);
+            byte[] bytes = new byte[to - from];
+            buffer.duplicate().position(bytesAt + from).get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[code] = string;
+        }
+        return string;
+    }
+
+    private IOException corrupt(RuntimeException cause) {
+        return new IOException(file + " is truncated or corrupt", cause);
+    }
+
+    /**
+     * Writes rows as they come, and dimensions and strings once committed. Closing without committing leaves the
+     * existing snapshot, if any, as it was.
+     */
+    public static final class Writer implements Closeable {
+        private final Path file;
+        private final Path temporary;
+        private final FileChannel channel;
+        private final DataOutputStream out;
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        private final Map<String, Map<String, Map<String, String>>> dimensions = new LinkedHashMap<>();
+        private final int dimensionsStamp;
+        private int rows = 0;
+        private boolean committed = false;
+
+        private Writer(Path file, String dimensionsStamp) throws IOException {
+            this.file = file;
+            this.temporary = file.resolveSibling(file.getFileName() + ".tmp");
+            this.channel = FileChannel.open(temporary, CREATE, TRUNCATE_EXISTING, WRITE);
+            this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            this.dimensionsStamp = code(dimensionsStamp);
+            out.write(new byte[HEADER_BYTES]);
+        }
+
+        /**
+         * @param dataPoint its fields; an _id among them is left out, since the id is written anyway
+         */
+        public void addRow(String id, Map<String, String> dataPoint) throws IOException {
+            out.writeInt(code(id));
+            writePairs(dataPoint);
+            rows += 1;
+        }
+
+        public void addDimension(String dimension, Map<String, Map<String, String>> records) {
+            dimensions.put(dimension, records);
+        }
+
+        public void commit() throws IOException {
+            int dimensionsAt = out.size();
+            out.writeInt(dimensions.size());
+            for (Map.Entry<String, Map<String, Map<String, String>>> dimension : dimensions.entrySet()) {
+                out.writeInt(code(dimension.getKey()));
+                out.writeInt(dimension.getValue().size());
+                for (Map.Entry<String, Map<String, String>> record : dimension.getValue().entrySet()) {
+                    out.writeInt(code(record.getKey()));
+                    writePairs(record.getValue());
+                }
+            }
+            int stringsAt = out.size();
+            List<byte[]> encoded = new ArrayList<>(strings.size());
+            for (String string : strings) {
+                encoded.add(string.getBytes(StandardCharsets.UTF_8));
+            }
+            out.writeInt(encoded.size());
+            int offset = 0;
+            out.writeInt(offset);
+            for (byte[] bytes : encoded) {
+                offset += bytes.length;
+                out.writeInt(offset);
+            }
+            for (byte[] bytes : encoded) {
+                out.write(bytes);
+            }
+            out.flush();
+            // size() stops counting at the largest int
+            if (out.size() == Integer.MAX_VALUE || offset < 0) {
+                throw new IOException("Snapshot would be larger than the 2GB that can be mapped");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                    .putInt(MAGIC)
+                    .putInt(VERSION)
+                    .putInt(rows)
+                    .putInt(dimensionsAt)
+                    .putInt(stringsAt)
+                    .putInt(dimensionsStamp);
+            header.flip();
+            channel.write(header, 0);
+            channel.force(false);
+            out.close();
+            Files.move(temporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                out.close();
+                Files.deleteIfExists(temporary);
+            }
+        }
+
+        private void writePairs(Map<String, String> pairs) throws IOException {
+            int count = 0;
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                if (isWritten(pair)) {
+                    count += 1;
+                }
+            }
+            out.writeInt(count);
+            for (Map.Entry<String, String> pair : pairs.entrySet()) {
+                if (isWritten(pair)) {
+                    out.writeInt(code(pair.getKey()));
+                    out.writeInt(code(pair.getValue()));
+                }
+            }
+        }
+
+        private static boolean isWritten(Map.Entry<String, String> pair) {
+            return pair.getValue() != null && !pair.getKey().equals(ID);
+        }
+
+        private int code(String string) {
+            Integer code = codes.get(string);
+            if (code == null) {
+                code = strings.size();
+                strings.add(string);
+                codes.put(string, code);
+            }
+            return code;
+        }
+    }
+}
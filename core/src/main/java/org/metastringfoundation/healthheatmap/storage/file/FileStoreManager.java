@@ -44,6 +44,8 @@ public class FileStoreManager implements FileStore {
     private static final String DEFAULT_DATA_FILES_DIR = "data";
     private static final String DEFAULT_TRANSFORMERS_DIR = "transformer";
     private static final String DEFAULT_DIMENSIONS_DIR = "dimension";
+    private static final String DEFAULT_SNAPSHOT_FILE = "corpus.snapshot";
+    private static final String DEFAULT_ASSOCIATIONS_FILE = "associations.json";
     private final Path dataDir;
     private final Path dataFilesDir;
 
@@ -160,6 +162,16 @@ public class FileStoreManager implements FileStore {
         return dataDir.resolve(DEFAULT_DIMENSIONS_DIR);
     }
 
+    @Override
+    public Path getSnapshotFile() {
+        return dataDir.resolve(DEFAULT_SNAPSHOT_FILE);
+    }
+
+    @Override
+    public Path getAssociationsFile() {
+        return dataDir.resolve(DEFAULT_ASSOCIATIONS_FILE);
+    }
+
     private void copy(Path source, Path destination) {
         try {
             Files.copy(source, destination, REPLACE_EXISTING);
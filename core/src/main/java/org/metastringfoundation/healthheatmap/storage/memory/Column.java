@@ -0,0 +1,154 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.memory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One field of every row in a {@link ColumnarTable}, dictionary encoded: each distinct value is stored once and rows
+ * hold its code. An indexed column also keeps, for every code, a bitmap of the rows that have it.
+ */
+class Column {
+    static final int MISSING = -1;
+
+    private final boolean indexed;
+    private final boolean numeric;
+    private final List<String> dictionary = new ArrayList<>();
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<BitSet> rowsOfCode = new ArrayList<>();
+    private final List<Double> numbers = new ArrayList<>();
+    private final BitSet present = new BitSet();
+    private int[] codesOfRows = new int[0];
+
+    /**
+     * @param indexed whether to keep bitmaps, so that the column can be filtered and grouped on
+     * @param numeric whether to keep each distinct value parsed as a number too
+     */
+    Column(boolean indexed, boolean numeric) {
+        this.indexed = indexed;
+        this.numeric = numeric;
+    }
+
+    void set(int row, String value) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = dictionary.size();
+            dictionary.add(value);
+            codes.put(value, code);
+            if (indexed) {
+                rowsOfCode.add(new BitSet());
+            }
+            if (numeric) {
+                numbers.add(parse(value));
+            }
+        }
+        ensureCapacity(row + 1);
+        codesOfRows[row] = code;
+        present.set(row);
+        if (indexed) {
+            rowsOfCode.get(code).set(row);
+        }
+    }
+
+    int codeAt(int row) {
+        return row < codesOfRows.length ? codesOfRows[row] : MISSING;
+    }
+
+    @Nullable
+    String valueAt(int row) {
+        int code = codeAt(row);
+        return code == MISSING ? null : dictionary.get(code);
+    }
+
+    String valueOf(int code) {
+        return dictionary.get(code);
+    }
+
+    /**
+     * @return the value of the code as a number, or null if it isn't one (or the column isn't numeric)
+     */
+    @Nullable
+    Double numberOf(int code) {
+        return numeric ? numbers.get(code) : null;
+    }
+
+    int getCardinality() {
+        return dictionary.size();
+    }
+
+    boolean isIndexed() {
+        return indexed;
+    }
+
+    boolean isNumeric() {
+        return numeric;
+    }
+
+    /**
+     * @return code of the value, or {@link #MISSING} if no row has ever had it
+     */
+    int codeOf(String value) {
+        return codes.getOrDefault(value, MISSING);
+    }
+
+    /**
+     * @return rows that have the value of the code; not to be modified
+     */
+    BitSet rowsOf(int code) {
+        if (indexed) {
+            return rowsOfCode.get(code);
+        }
+        BitSet rows = new BitSet();
+        for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+            if (codesOfRows[row] == code) {
+                rows.set(row);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return rows that have any value at all; not to be modified
+     */
+    BitSet getPresent() {
+        return present;
+    }
+
+    private void ensureCapacity(int rows) {
+        if (rows > codesOfRows.length) {
+            int previous = codesOfRows.length;
+            codesOfRows = Arrays.copyOf(codesOfRows, Math.max(rows, previous * 2));
+            Arrays.fill(codesOfRows, previous, codesOfRows.length, MISSING);
+        }
+    }
+
+    private static @Nullable
+    Double parse(String value) {
+        try {
+            double number = Double.parseDouble(value);
+            return Double.isFinite(number) ? number : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,531 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.memory;
+
+import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.beanconverters.FilterToDataQuery;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
+import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
+import org.metastringfoundation.healthheatmap.logic.AsyncDatasetStore;
+import org.metastringfoundation.healthheatmap.logic.FileStore;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
+import org.metastringfoundation.healthheatmap.storage.elastic.DataPointIds;
+import org.metastringfoundation.healthheatmap.storage.file.CorpusSnapshot;
+
+import javax.annotation.Nullable;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps data points in this JVM, in a {@link ColumnarTable}, so that the API can run without elastic.
+ * <p>
+ * Filters become bitmap intersections, and terms, facets, scoring and statistics are worked out from the dictionary
+ * codes of the selected rows, so nothing goes over the network. Like {@code ElasticManager}, a factory reset starts
+ * a new table that readers don't see until {@link #publish()}. Data lives only as long as the process, but a new
+ * process starts from the {@link CorpusSnapshot} of the last upload when there is one.
+ */
+@MemoryStore
+@ApplicationScoped
+public class ColumnarDatasetStore implements AsyncDatasetStore {
+    private static final Logger LOG = Logger.getLogger(ColumnarDatasetStore.class);
+    private static final String ENTITY = "entity.id";
+    private static final String INDICATOR = "indicator.id";
+    private static final String TYPE = "indicator.Positive/Negative";
+    private static final String DATAFILE = "meta.datafile";
+    private static final int STREAM_CHUNK = 1000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // both guarded by lock; the same table until a factory reset
+    private ColumnarTable published = new ColumnarTable();
+    private ColumnarTable writing = published;
+
+    /**
+     * Starts empty
+     */
+    public ColumnarDatasetStore() {
+    }
+
+    @Inject
+    public ColumnarDatasetStore(FileStore fileStore) {
+        Path snapshotFile = fileStore.getSnapshotFile();
+        if (Files.exists(snapshotFile)) {
+            try {
+                CorpusSnapshot snapshot = CorpusSnapshot.open(snapshotFile);
+                snapshot.forEachRow(published::add);
+                LOG.info("Loaded " + snapshot.getRowCount() + " data points from " + snapshotFile);
+            } catch (IOException e) {
+                LOG.warn("Could not load " + snapshotFile + ". Starting empty", e);
+                published = new ColumnarTable();
+                writing = published;
+            }
+        }
+    }
+
+    @Override
+    public IngestReport save(HealthDataset dataset) throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Map<String, String> dataPoint : dataset.getData()) {
+                writing.add(DataPointIds.of(dataPoint), dataPoint);
+            }
+            compactIfWorthIt();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return IngestReport.of(dataset.getData().size(), 0, List.of());
+    }
+
+    @Override
+    public void deleteDatafile(String datafile) throws IOException {
+        int deleted;
+        lock.writeLock().lock();
+        try {
+            deleted = writing.delete(DATAFILE, datafile);
+            compactIfWorthIt();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Deleted " + deleted + " data points of " + datafile);
+    }
+
+    /**
+     * Swaps the table being written for a compacted copy once replaced and deleted rows outnumber live ones, so that
+     * repeated uploads don't grow the heap without bound. Streams already under way carry on with the old table.
+     * Called with the write lock held.
+     */
+    private void compactIfWorthIt() {
+        if (!writing.isWorthCompacting()) {
+            return;
+        }
+        ColumnarTable compacted = writing.compacted();
+        if (published == writing) {
+            published = compacted;
+        }
+        writing = compacted;
+        LOG.info("Compacted the table down to its " + compacted.getLive().cardinality() + " live rows");
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public DataQueryResult query(DataQuery dataQuery) {
+        lock.readLock().lock();
+        try {
+            List<Map<String, String>> result = new ArrayList<>();
+            BitSet selected = published.select(dataQuery);
+            for (int row = selected.nextSetBit(0); row >= 0; row = selected.nextSetBit(row + 1)) {
+                result.add(getRow(published, row, dataQuery));
+            }
+            return DataQueryResult.of(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletionStage<DataQueryResult> queryAsync(DataQuery dataQuery) {
+        return CompletableFuture.completedFuture(query(dataQuery));
+    }
+
+    /**
+     * Reads rows a chunk at a time, so that a slow consumer doesn't hold off writers for the whole stream
+     */
+    @Override
+    public void stream(DataQuery dataQuery, DataPointConsumer consumer) throws IOException {
+        ColumnarTable table;
+        BitSet selected;
+        lock.readLock().lock();
+        try {
+            table = published;
+            selected = table.select(dataQuery);
+        } finally {
+            lock.readLock().unlock();
+        }
+        int row = selected.nextSetBit(0);
+        while (row >= 0) {
+            List<Map<String, String>> chunk = new ArrayList<>(STREAM_CHUNK);
+            lock.readLock().lock();
+            try {
+                for (; row >= 0 && chunk.size() < STREAM_CHUNK; row = selected.nextSetBit(row + 1)) {
+                    chunk.add(getRow(table, row, dataQuery));
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (Map<String, String> dataPoint : chunk) {
+                consumer.accept(dataPoint);
+            }
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> getAllTermsOfFields(FilterAndSelectFields filterAndFields) {
+        return getAllTermsOfFields(filterAndFields, Integer.MAX_VALUE);
+    }
+
+    private List<Map<String, Object>> getAllTermsOfFields(FilterAndSelectFields filterAndFields, int limit) {
+        lock.readLock().lock();
+        try {
+            BitSet selected = published.select(filterAndFields.getFilter().map(FilterToDataQuery::convert).orElse(null));
+            List<String> fields = filterAndFields.getFields();
+            List<Column> columns = getColumns(published, fields);
+            List<Map<String, Object>> result = new ArrayList<>();
+            for (int[] codes : sorted(group(selected, columns).keySet(), columns)) {
+                if (result.size() > limit) {
+                    break;
+                }
+                Map<String, Object> terms = new LinkedHashMap<>();
+                for (int i = 0; i < fields.size(); i++) {
+                    terms.put(fields.get(i), valueOf(columns.get(i), codes[i]));
+                }
+                result.add(terms);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields) {
+        return CompletableFuture.completedFuture(getAllTermsOfFields(filterAndFields));
+    }
+
+    @Override
+    public CompletionStage<List<Map<String, Object>>> getAllTermsOfFieldsAsync(FilterAndSelectFields filterAndFields, int limit) {
+        return CompletableFuture.completedFuture(getAllTermsOfFields(filterAndFields, limit));
+    }
+
+    @Override
+    public void factoryReset() {
+        lock.writeLock().lock();
+        try {
+            writing = new ColumnarTable();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        LOG.info("Writing into a new table. It will be served once published");
+    }
+
+    @Override
+    public void publish() {
+        lock.writeLock().lock();
+        try {
+            published = writing;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void beginBulkLoad() {
+    }
+
+    @Override
+    public Map<String, IngestReport> endBulkLoad() {
+        // every save is accounted for by the time it returns
+        return Map.of();
+    }
+
+    @Override
+    public boolean getHealth() {
+        return true;
+    }
+
+    @Override
+    public Map<String, List<String>> getDimensionsPossibleAt(List<String> dimensions, @Nullable Filter filter) {
+        lock.readLock().lock();
+        try {
+            return getPossibleValues(published, dimensions, select(published, filter));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public CompletionStage<Map<String, List<String>>> getDimensionsPossibleAtAsync(List<String> dimensions, Filter filter) {
+        return CompletableFuture.completedFuture(getDimensionsPossibleAt(dimensions, filter));
+    }
+
+    @Override
+    public ScoringData getScoringData(Filter filter, List<String> dimensionsToCheck) {
+        lock.readLock().lock();
+        try {
+            BitSet selected = select(published, filter);
+            List<Column> columns = getColumns(published, List.of(ENTITY, INDICATOR, TYPE, ColumnarTable.VALUE));
+            Map<Codes, long[]> counts = group(selected, columns);
+            List<ScoringData.Cell> cells = new ArrayList<>();
+            Map<String, double[]> ranges = new HashMap<>();
+            for (int[] codes : sorted(counts.keySet(), columns)) {
+                String indicator = valueOf(columns.get(1), codes[1]);
+                Double number = codes[3] == Column.MISSING ? null : columns.get(3).numberOf(codes[3]);
+                cells.add(new ScoringData.Cell(
+                        valueOf(columns.get(0), codes[0]),
+                        indicator,
+                        valueOf(columns.get(2), codes[2]),
+                        valueOf(columns.get(3), codes[3]),
+                        number,
+                        counts.get(new Codes(codes))[0]
+                ));
+                if (indicator != null && number != null) {
+                    double[] range = ranges.computeIfAbsent(indicator, whatever -> new double[]{number, number});
+                    range[0] = Math.min(range[0], number);
+                    range[1] = Math.max(range[1], number);
+                }
+            }
+            Map<String, ScoringData.Range> indicatorRanges = new HashMap<>();
+            ranges.forEach((indicator, range) -> indicatorRanges.put(indicator, new ScoringData.Range(range[0], range[1])));
+            return ScoringData.of(cells, indicatorRanges, getPossibleValues(published, dimensionsToCheck, selected));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<ValueStatistics> getValueStatistics(@Nullable Filter filter, @Nullable String groupBy, List<Double> percents) {
+        Map<String, List<Double>> numbersOfGroups = new TreeMap<>();
+        List<Double> numbers = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            BitSet selected = select(published, filter);
+            Column value = published.getColumn(ColumnarTable.VALUE);
+            Column group = groupBy == null ? null : published.getColumn(groupBy);
+            if (value == null || (groupBy != null && group == null)) {
+                return groupBy == null ? List.of(statisticsOf(null, numbers, percents)) : List.of();
+            }
+            for (int row = selected.nextSetBit(0); row >= 0; row = selected.nextSetBit(row + 1)) {
+                int code = value.codeAt(row);
+                Double number = code == Column.MISSING ? null : value.numberOf(code);
+                if (group == null) {
+                    if (number != null) {
+                        numbers.add(number);
+                    }
+                } else if (group.codeAt(row) != Column.MISSING) {
+                    // like a terms aggregation: a group shows up even if none of its values are numbers
+                    List<Double> groupNumbers = numbersOfGroups.computeIfAbsent(group.valueAt(row), whatever -> new ArrayList<>());
+                    if (number != null) {
+                        groupNumbers.add(number);
+                    }
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (groupBy == null) {
+            return List.of(statisticsOf(null, numbers, percents));
+        }
+        return numbersOfGroups.entrySet().stream()
+                .map(entry -> statisticsOf(entry.getKey(), entry.getValue(), percents))
+                .collect(Collectors.toList());
+    }
+
+    private static BitSet select(ColumnarTable table, @Nullable Filter filter) {
+        return table.select(filter == null ? null : FilterToDataQuery.convert(filter));
+    }
+
+    /**
+     * As elastic gives them: projected rows have just the fields asked for; whole rows have their _id, and leave out
+     * provenance unless the includes ask for it
+     */
+    private static Map<String, String> getRow(ColumnarTable table, int row, DataQuery dataQuery) {
+        Map<String, String> dataPoint = new LinkedHashMap<>();
+        List<String> fields = dataQuery.getFields();
+        if (fields == null || fields.isEmpty()) {
+            boolean withProvenance = wantsProvenance(dataQuery.getIncludes());
+            table.getColumns().forEach((field, column) -> {
+                String value = column.valueAt(row);
+                if (value != null && (withProvenance || !ColumnarTable.isProvenance(field))) {
+                    dataPoint.put(field, value);
+                }
+            });
+            dataPoint.put("_id", table.getId(row));
+        } else {
+            for (String field : fields) {
+                Column column = table.getColumn(field);
+                String value = field.equals("_id") ? table.getId(row) : column == null ? null : column.valueAt(row);
+                if (value != null) {
+                    dataPoint.put(field, value);
+                }
+            }
+        }
+        return dataPoint;
+    }
+
+    private static boolean wantsProvenance(@Nullable List<String> includes) {
+        return includes != null && includes.stream().anyMatch(include -> include.startsWith("meta.lineage")
+                || ColumnarTable.isProvenance(include) || "meta.original.".startsWith(include) || "meta.transformed.".startsWith(include));
+    }
+
+    /**
+     * Values of each field among the selected rows in ascending order, with null first if some rows don't have it;
+     * fields no row has a say in are left out
+     */
+    private static Map<String, List<String>> getPossibleValues(ColumnarTable table, List<String> fields, BitSet selected) {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (String field : fields) {
+            List<String> values = new ArrayList<>();
+            Column column = table.getColumn(field);
+            BitSet missing = (BitSet) selected.clone();
+            if (column != null) {
+                missing.andNot(column.getPresent());
+            }
+            if (!missing.isEmpty()) {
+                values.add(null);
+            }
+            if (column != null) {
+                values.addAll(getValues(column, selected));
+            }
+            if (!values.isEmpty()) {
+                result.put(field, values);
+            }
+        }
+        return result;
+    }
+
+    private static List<String> getValues(Column column, BitSet selected) {
+        List<String> values = new ArrayList<>();
+        if (column.isIndexed() && column.getCardinality() < selected.cardinality()) {
+            // fewer values than rows: ask each value's bitmap whether it meets the selection
+            for (int code = 0; code < column.getCardinality(); code++) {
+                if (column.rowsOf(code).intersects(selected)) {
+                    values.add(column.valueOf(code));
+                }
+            }
+        } else {
+            BitSet codes = new BitSet(column.getCardinality());
+            for (int row = selected.nextSetBit(0); row >= 0; row = selected.nextSetBit(row + 1)) {
+                int code = column.codeAt(row);
+                if (code != Column.MISSING) {
+                    codes.set(code);
+                }
+            }
+            for (int code = codes.nextSetBit(0); code >= 0; code = codes.nextSetBit(code + 1)) {
+                values.add(column.valueOf(code));
+            }
+        }
+        values.sort(Comparator.naturalOrder());
+        return values;
+    }
+
+    private static List<Column> getColumns(ColumnarTable table, List<String> fields) {
+        return fields.stream().map(table::getColumn).collect(Collectors.toList());
+    }
+
+    /**
+     * @return how many of the selected rows have each distinct combination of codes of the columns
+     */
+    private static Map<Codes, long[]> group(BitSet selected, List<Column> columns) {
+        Map<Codes, long[]> groups = new HashMap<>();
+        for (int row = selected.nextSetBit(0); row >= 0; row = selected.nextSetBit(row + 1)) {
+            int[] codes = new int[columns.size()];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = columns.get(i) == null ? Column.MISSING : columns.get(i).codeAt(row);
+            }
+            groups.computeIfAbsent(new Codes(codes), whatever -> new long[1])[0]++;
+        }
+        return groups;
+    }
+
+    /**
+     * @return the combinations in ascending order of their values, field by field, with missing ones first
+     */
+    private static List<int[]> sorted(Iterable<Codes> combinations, List<Column> columns) {
+        List<int[]> result = new ArrayList<>();
+        combinations.forEach(combination -> result.add(combination.codes));
+        result.sort((one, other) -> {
+            for (int i = 0; i < one.length; i++) {
+                if (one[i] != other[i]) {
+                    if (one[i] == Column.MISSING) {
+                        return -1;
+                    }
+                    if (other[i] == Column.MISSING) {
+                        return 1;
+                    }
+                    return columns.get(i).valueOf(one[i]).compareTo(columns.get(i).valueOf(other[i]));
+                }
+            }
+            return 0;
+        });
+        return result;
+    }
+
+    private static @Nullable
+    String valueOf(@Nullable Column column, int code) {
+        return column == null || code == Column.MISSING ? null : column.valueOf(code);
+    }
+
+    private static ValueStatistics statisticsOf(@Nullable String group, List<Double> numbers, List<Double> percents) {
+        if (numbers.isEmpty()) {
+            return new ValueStatistics(group, 0, null, null, null, null, Map.of());
+        }
+        double[] sorted = numbers.stream().mapToDouble(Double::doubleValue).sorted().toArray();
+        double sum = Arrays.stream(sorted).sum();
+        Map<String, Double> percentiles = new LinkedHashMap<>();
+        for (Double percent : percents) {
+            // linear interpolation between the closest ranks
+            double rank = percent / 100 * (sorted.length - 1);
+            int below = (int) Math.floor(rank);
+            int above = Math.min(below + 1, sorted.length - 1);
+            percentiles.put(String.valueOf(percent), sorted[below] + (sorted[above] - sorted[below]) * (rank - below));
+        }
+        return new ValueStatistics(group, sorted.length, sorted[0], sorted[sorted.length - 1], sum / sorted.length, sum, percentiles);
+    }
+
+    private static final class Codes {
+        private final int[] codes;
+        private final int hash;
+
+        private Codes(int[] codes) {
+            this.codes = codes;
+            this.hash = Arrays.hashCode(codes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Codes && Arrays.equals(codes, ((Codes) o).codes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
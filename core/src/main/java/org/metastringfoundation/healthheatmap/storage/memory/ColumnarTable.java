@@ -0,0 +1,249 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.memory;
+
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Data points held as one {@link Column} per field, with rows numbered in the order they were added.
+ * <p>
+ * Saving a data point whose id is already there replaces its old row. Replaced and deleted rows stay in the columns
+ * but drop out of {@link #getLive()}, which every selection starts from, until there are more of them than live rows;
+ * then {@link #compacted()} gives a table of only the live rows to carry on with. Filters are answered by combining the
+ * bitmaps of the values they name, so they never look at the rows themselves. Provenance fields are kept for display
+ * but not indexed. Not thread safe; {@link ColumnarDatasetStore} guards it.
+ */
+class ColumnarTable {
+    static final String VALUE = "value";
+    private static final List<String> PROVENANCE = List.of("meta.original.", "meta.transformed.");
+    // below this, dead rows cost less than copying the table
+    private static final int MIN_DEAD_ROWS_TO_COMPACT = 10_000;
+
+    private final Map<String, Column> columns = new LinkedHashMap<>();
+    private final List<String> ids = new ArrayList<>();
+    private final Map<String, Integer> rowOfId = new HashMap<>();
+    private final BitSet live = new BitSet();
+
+    void add(String id, Map<String, String> dataPoint) {
+        int row = ids.size();
+        Integer replaced = rowOfId.put(id, row);
+        if (replaced != null) {
+            live.clear(replaced);
+        }
+        ids.add(id);
+        dataPoint.forEach((field, value) -> {
+            if (value != null) {
+                columns.computeIfAbsent(field, ColumnarTable::newColumn).set(row, value);
+            }
+        });
+        live.set(row);
+    }
+
+    /**
+     * @return how many live rows had the value and are now gone
+     */
+    int delete(String field, String value) {
+        BitSet rows = rowsWithAnyOf(field, Collections.singletonList(value));
+        rows.and(live);
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+            rowOfId.remove(ids.get(row));
+        }
+        live.andNot(rows);
+        return rows.cardinality();
+    }
+
+    /**
+     * @return whether more rows have been replaced or deleted than are live, and enough of them to be worth copying
+     */
+    boolean isWorthCompacting() {
+        int dead = ids.size() - live.cardinality();
+        return dead >= MIN_DEAD_ROWS_TO_COMPACT && dead > live.cardinality();
+    }
+
+    /**
+     * Rows keep their order but not their numbers, so this is a new table rather than this one rewritten; anyone
+     * still reading this one by row number is unaffected.
+     *
+     * @return a table of just the live rows, with the same columns
+     */
+    ColumnarTable compacted() {
+        ColumnarTable compacted = new ColumnarTable();
+        columns.keySet().forEach(field -> compacted.columns.put(field, newColumn(field)));
+        for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1)) {
+            Map<String, String> dataPoint = new HashMap<>();
+            for (Map.Entry<String, Column> column : columns.entrySet()) {
+                dataPoint.put(column.getKey(), column.getValue().valueAt(row));
+            }
+            compacted.add(ids.get(row), dataPoint);
+        }
+        return compacted;
+    }
+
+    /**
+     * @param dataQuery terms and ranges the rows must match; null for all rows
+     * @return the live rows that match, as a bitmap the caller may modify
+     * @throws IllegalArgumentException if a bound on the value isn't a number
+     */
+    BitSet select(@Nullable DataQuery dataQuery) {
+        BitSet selected = (BitSet) live.clone();
+        if (dataQuery == null) {
+            return selected;
+        }
+        if (dataQuery.getTerms() != null) {
+            dataQuery.getTerms().forEach((field, values) -> selected.and(rowsWithAnyOf(field, values)));
+        }
+        if (dataQuery.getRanges() != null) {
+            dataQuery.getRanges().forEach((field, bounds) -> selected.and(rowsInRange(field, bounds)));
+        }
+        return selected;
+    }
+
+    @Nullable
+    Column getColumn(String field) {
+        return columns.get(field);
+    }
+
+    Map<String, Column> getColumns() {
+        return columns;
+    }
+
+    String getId(int row) {
+        return ids.get(row);
+    }
+
+    /**
+     * @return rows that haven't been replaced or deleted; not to be modified
+     */
+    BitSet getLive() {
+        return live;
+    }
+
+    static boolean isProvenance(String field) {
+        return PROVENANCE.stream().anyMatch(field::startsWith);
+    }
+
+    /**
+     * A null value matches rows that don't have the field at all, as it does for elastic
+     */
+    private BitSet rowsWithAnyOf(String field, List<String> values) {
+        BitSet rows = new BitSet();
+        Column column = columns.get(field);
+        for (String value : values) {
+            if (value == null) {
+                BitSet missing = (BitSet) live.clone();
+                if (column != null) {
+                    missing.andNot(column.getPresent());
+                }
+                rows.or(missing);
+            } else if (column != null) {
+                int code = column.codeOf(value);
+                if (code != Column.MISSING) {
+                    rows.or(column.rowsOf(code));
+                }
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Works out which distinct values are in range, and takes the union of their rows. Values of a numeric column
+     * compare as numbers, and those that aren't numbers are never in range; others compare as strings.
+     */
+    private BitSet rowsInRange(String field, Map<String, String> bounds) {
+        Map<String, Double> numericBounds = field.equals(VALUE) ? parseBounds(field, bounds) : Map.of();
+        BitSet rows = new BitSet();
+        Column column = columns.get(field);
+        if (column == null) {
+            return rows;
+        }
+        for (int code = 0; code < column.getCardinality(); code++) {
+            if (isInRange(column, code, bounds, numericBounds)) {
+                rows.or(column.rowsOf(code));
+            }
+        }
+        return rows;
+    }
+
+    private static Map<String, Double> parseBounds(String field, Map<String, String> bounds) {
+        Map<String, Double> parsed = new HashMap<>();
+        bounds.forEach((name, bound) -> {
+            if (bound == null) {
+                return;
+            }
+            try {
+                parsed.put(name, Double.parseDouble(bound));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Range on " + field + " should be bounded by numbers; " + name
+                        + " is " + bound, e);
+            }
+        });
+        return parsed;
+    }
+
+    private static boolean isInRange(Column column, int code,
+                                     Map<String, String> bounds, Map<String, Double> numericBounds) {
+        for (Map.Entry<String, String> bound : bounds.entrySet()) {
+            if (bound.getValue() == null) {
+                continue;
+            }
+            int comparison;
+            if (column.isNumeric()) {
+                Double number = column.numberOf(code);
+                if (number == null) {
+                    return false;
+                }
+                comparison = Double.compare(number, numericBounds.get(bound.getKey()));
+            } else {
+                comparison = column.valueOf(code).compareTo(bound.getValue());
+            }
+            boolean inRange;
+            switch (bound.getKey()) {
+                case "lt":
+                    inRange = comparison < 0;
+                    break;
+                case "lte":
+                    inRange = comparison <= 0;
+                    break;
+                case "gt":
+                    inRange = comparison > 0;
+                    break;
+                case "gte":
+                    inRange = comparison >= 0;
+                    break;
+                default:
+                    inRange = true;
+            }
+            if (!inRange) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Column newColumn(String field) {
+        return new Column(!isProvenance(field), field.equals(VALUE));
+    }
+}
@@ -42,7 +42,7 @@ public class DatafilesManagerInMemory implements DatafilesManager {
     private List<DatasetPointer> datasetPointerList;
 
     @Inject
-    public DatafilesManagerInMemory(FileStore fileStore, TransformersManager transformersManager) throws IOException, DatasetIntegrityError {
+    public DatafilesManagerInMemory(FileStore fileStore, TransformersManager transformersManager) throws IOException {
         this.fileStore = fileStore;
         this.transformersManager = transformersManager;
         this.datasetPointerList = calculateDatasetPointerList();
@@ -80,19 +80,13 @@ public class DatafilesManagerInMemory implements DatafilesManager {
 
     @Override
     public List<String> getDatasetsAtName(String name) {
-        if (name == null || name.equals("")) {
-            return datasetPointerList.stream()
-                    .map(DatasetPointer::getName)
-                    .collect(Collectors.toList());
-        } else {
-            return datasetPointerList.stream()
-                    .map(DatasetPointer::getName)
-                    .filter(ds -> ds.equals(name) || ds.startsWith(name + "/") || (name.endsWith("/") && ds.startsWith(name))) // NOPMD - improved readability of operator precedence
-                    .collect(Collectors.toList());
-        }
+        return datasetPointerList.stream()
+                .map(DatasetPointer::getName)
+                .filter(ds -> DatafilesManager.isUnderName(ds, name))
+                .collect(Collectors.toList());
     }
 
-    private List<DatasetPointer> calculateDatasetPointerList() throws IOException, DatasetIntegrityError {
+    private List<DatasetPointer> calculateDatasetPointerList() throws IOException {
         List<DatasetPointer> result = new ArrayList<>();
         List<Path> csvPaths = fileStore.getFilesThatMatch(
                 fileStore.getDataFilesDirectory(),
@@ -105,7 +99,7 @@ public class DatafilesManagerInMemory implements DatafilesManager {
         return result;
     }
 
-    private DatasetPointer getCSVDatasetPointer(Path csvPath) throws IOException, DatasetIntegrityError {
+    private DatasetPointer getCSVDatasetPointer(Path csvPath) {
         return new CSVDatasetPointer(csvPath, fileStore, transformersManager);
     }
 }
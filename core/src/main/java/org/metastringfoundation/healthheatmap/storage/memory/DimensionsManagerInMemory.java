@@ -16,19 +16,28 @@
 
 package org.metastringfoundation.healthheatmap.storage.memory;
 
+import com.google.common.reflect.TypeToken;
 import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.helpers.CompactRow;
 import org.metastringfoundation.healthheatmap.helpers.FileManager;
 import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
 import org.metastringfoundation.healthheatmap.helpers.HealthDatasetSimple;
+import org.metastringfoundation.healthheatmap.helpers.Jsonizer;
 import org.metastringfoundation.healthheatmap.helpers.ReadCSVAsMap;
+import org.metastringfoundation.healthheatmap.helpers.RowSchema;
 import org.metastringfoundation.healthheatmap.logic.DimensionsManager;
 import org.metastringfoundation.healthheatmap.logic.FileStore;
 import org.metastringfoundation.healthheatmap.storage.beans.ValuePointAssociation;
+import org.metastringfoundation.healthheatmap.storage.file.CorpusSnapshot;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import javax.json.bind.JsonbException;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 import static java.util.stream.Collectors.*;
@@ -41,14 +50,42 @@ public class DimensionsManagerInMemory implements DimensionsManager {
     private Map<String, Map<String, Map<String, String>>> backingMap;
     // eg:     entity       KL_KN       district kannur
 
-    //          indicator    dimension    param  value
-    private final Map<String, Map<String, Map<String, String>>> indicatorAssociations = new HashMap<>();
+    //          datafile    indicator   dimension   ids
+    private static final Type SAVED_ASSOCIATIONS = new TypeToken<Map<String, Map<String, Map<String, List<String>>>>>() {
+    }.getType();
+    private final IndicatorAssociations indicatorAssociations = new IndicatorAssociations();
 
     @Inject
     public DimensionsManagerInMemory(FileStore fileStore) throws IOException {
         this.fileStore = fileStore;
-        this.backingMap = calculateDimensions();
+        this.backingMap = readDimensions();
         LOG.info("Loaded " + backingMap.keySet().size() + " dimensions");
+        try {
+            reloadAssociations();
+        } catch (IOException e) {
+            LOG.warn("Starting without indicator associations", e);
+        }
+    }
+
+    /**
+     * Takes the dimensions saved by the last upload, unless the dimension files have changed since
+     */
+    private Map<String, Map<String, Map<String, String>>> readDimensions() throws IOException {
+        Path snapshotFile = fileStore.getSnapshotFile();
+        if (Files.exists(snapshotFile)) {
+            try {
+                CorpusSnapshot snapshot = CorpusSnapshot.open(snapshotFile);
+                Path dimensionsDirectory = fileStore.getDimensionsDirectory();
+                if (snapshot.getDimensionsStamp().equals(CorpusSnapshot.stampOf(dimensionsDirectory, fileStore.getFiles(dimensionsDirectory)))) {
+                    LOG.info("Reading dimensions from " + snapshotFile);
+                    return snapshot.getDimensions();
+                }
+                LOG.info("Dimension files have changed since " + snapshotFile + " was written. Reading them instead");
+            } catch (IOException e) {
+                LOG.warn("Could not read dimensions from " + snapshotFile + ". Reading dimension files instead", e);
+            }
+        }
+        return calculateDimensions();
     }
 
     private Map<String, Map<String, Map<String, String>>> calculateDimensions() throws IOException {
@@ -118,17 +155,21 @@ public class DimensionsManagerInMemory implements DimensionsManager {
                 .collect(toList());
     }
 
+    /**
+     * Augmented data points are {@link CompactRow}s sharing a schema, since they repeat the same few dozen fields
+     */
     @Override
     public HealthDataset augmentDatasetWithDimensionInfo(HealthDataset dataset) {
+        RowSchema schema = new RowSchema();
         return new HealthDatasetSimple(
                 dataset.getData().stream()
-                        .map(this::augmentDataPointWithDimensionInfo)
+                        .map(datapoint -> augmentDataPointWithDimensionInfo(datapoint, schema))
                         .collect(toList()),
                 dataset.getDataPointsWithError());
     }
 
-    private Map<String, String> augmentDataPointWithDimensionInfo(Map<String, String> datapoint) {
-        Map<String, String> augmentedPoint = new LinkedHashMap<>();
+    private Map<String, String> augmentDataPointWithDimensionInfo(Map<String, String> datapoint, RowSchema schema) {
+        Map<String, String> augmentedPoint = new CompactRow(schema);
         datapoint.forEach((dimension, value) -> {
             if (dimension.startsWith("meta.")) {
                 augmentedPoint.put(dimension, value);
@@ -171,49 +212,87 @@ public class DimensionsManagerInMemory implements DimensionsManager {
         }
     }
 
-    // TODO: Use a graph database here
     @Override
     public void persistAssociationWithIndicator(Collection<HealthDataset> datasets) {
         for (HealthDataset dataset : datasets) {
-            dataset.getData().forEach(point -> {
-                if (point.containsKey("indicator.id")) {
-                    String indicator = point.get("indicator.id");
-                    point.forEach((key, value) -> {
-                        if (!key.startsWith("meta.") && key.endsWith(".id")) {
-                            String dimension = key.split("\\.")[0];
-                            if (dimensionExists(dimension)) {
-                                getDimensionRecordIfExists(dimension, value).ifPresent(
-                                        linkedMap -> indicatorAssociations.computeIfAbsent(indicator, whatever -> new HashMap<>()).put(dimension, linkedMap)
-                                );
-                            }
-                        }
-                    });
+            dataset.getData().forEach(this::persistAssociationWithIndicator);
+        }
+    }
+
+    @Override
+    public void persistAssociationWithIndicator(Map<String, String> dataPoint) {
+        String indicator = dataPoint.get("indicator.id");
+        String datafile = dataPoint.getOrDefault("meta.datafile", "");
+        if (indicator != null && getDimensionRecordIfExists("indicator", indicator).isPresent()) {
+            dataPoint.forEach((key, value) -> {
+                if (!key.startsWith("meta.") && key.endsWith(".id")) {
+                    associate(datafile, indicator, key.substring(0, key.length() - ".id".length()), value);
                 }
             });
         }
     }
 
+    private void associate(String datafile, String indicator, String dimension, String id) {
+        if (!dimension.equals("indicator") && getDimensionRecordIfExists(dimension, id).isPresent()) {
+            indicatorAssociations.add(datafile, indicator, dimension, id);
+        }
+    }
+
+    @Override
+    public void forgetAssociationsOf(String datafile) {
+        indicatorAssociations.forget(datafile);
+    }
+
     /**
-     * Takes something like this:
-     * indicator    dimension    param  value
-     * private Map<String, Map<String, Map<String, String>>> indicatorAssociations;
-     * <p>
-     * and returns
-     * dimension    id, id, id
-     *
-     * @param indicator the id which needs to be queries
-     * @return list of fields with values
+     * Writes the associations of every datafile next to the data, replacing the file in one step
      */
+    @Override
+    public void saveAssociations() throws IOException {
+        Path file = fileStore.getAssociationsFile();
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temporary, Jsonizer.asJSON(indicatorAssociations.getAll()));
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
 
+    /**
+     * Takes the associations saved by the last upload, keeping only ids the dimensions still have
+     */
+    @Override
+    public void reloadAssociations() throws IOException {
+        indicatorAssociations.clear();
+        Path file = fileStore.getAssociationsFile();
+        if (!Files.exists(file)) {
+            return;
+        }
+        Map<String, Map<String, Map<String, List<String>>>> saved;
+        try {
+            saved = Jsonizer.fromJSON(Files.readString(file), SAVED_ASSOCIATIONS);
+        } catch (JsonbException e) {
+            throw new IOException(file + " is not a valid associations file", e);
+        }
+        saved.forEach((datafile, indicators) -> indicators.forEach((indicator, fields) ->
+                fields.forEach((dimension, ids) -> ids.forEach(id -> associate(datafile, indicator, dimension, id)))
+        ));
+        LOG.info("Loaded associations of " + indicatorAssociations.getIndicators().size() + " indicators");
+    }
+
+    /**
+     * @param indicator the id which needs to be queries
+     * @return dimension -> ids that appear alongside the indicator; empty for an indicator never seen
+     */
     @Override
     public Map<String, List<String>> fieldsAssociatedWithIndicator(String indicator) {
-        return indicatorAssociations.get(indicator).entrySet().stream()
-                .collect(groupingBy(Map.Entry::getKey, mapping(entry -> entry.getValue().get("id"), toList())));
+        return indicatorAssociations.of(indicator);
     }
 
     @Override
     public List<String> getAllIndicatorsWithAssociations() {
-        return new ArrayList<>(indicatorAssociations.keySet());
+        return indicatorAssociations.getIndicators();
+    }
+
+    @Override
+    public void clearAssociations() {
+        indicatorAssociations.clear();
     }
 
     @Override
@@ -240,4 +319,16 @@ public class DimensionsManagerInMemory implements DimensionsManager {
     public List<String> getKnownDimensions() {
         return new ArrayList<>(backingMap.keySet());
     }
+
+    @Override
+    public Set<String> getPropertiesOf(String dimension) {
+        Set<String> properties = new LinkedHashSet<>();
+        backingMap.getOrDefault(dimension, Map.of()).values().forEach(record -> properties.addAll(record.keySet()));
+        return properties;
+    }
+
+    @Override
+    public Map<String, Map<String, Map<String, String>>> getDimensionTables() {
+        return Collections.unmodifiableMap(backingMap);
+    }
 }
@@ -23,6 +23,7 @@ import org.metastringfoundation.healthheatmap.logic.DatafilesManager;
 import org.metastringfoundation.healthheatmap.logic.DatasetPointer;
 import org.metastringfoundation.healthheatmap.logic.DimensionsManager;
 import org.metastringfoundation.healthheatmap.logic.HealthDatasetsManager;
+import org.metastringfoundation.healthheatmap.logic.IngestSettings;
 import org.metastringfoundation.healthheatmap.logic.etl.TableDatasetInterpreter;
 import org.metastringfoundation.healthheatmap.storage.beans.ValuePointAssociation;
 
@@ -36,13 +37,19 @@ public class HealthDatasetsManagerInMemory implements HealthDatasetsManager {
     private static final Logger LOG = Logger.getLogger(HealthDatasetsManager.class);
     private final DatafilesManager datafilesManager;
     private final DimensionsManager dimensionsManager;
+    private final IngestSettings ingestSettings;
     private final Map<String, HealthDataset> readDatasetsCache = new LinkedHashMap<>();
-    private final Set<ValuePointAssociation> valuePointAssociations = new HashSet<>();
+    // every distinct association once, numbered by its position
+    private final List<ValuePointAssociation> valuePointAssociations = new ArrayList<>();
+    private final Map<ValuePointAssociation, Integer> associationNumbers = new HashMap<>();
+    //          dimension   id          numbers of associations having it
+    private final Map<String, Map<String, List<Integer>>> associationsByDimensionId = new HashMap<>();
 
     @Inject
-    public HealthDatasetsManagerInMemory(DatafilesManager datafilesManager, DimensionsManager dimensionsManager) {
+    public HealthDatasetsManagerInMemory(DatafilesManager datafilesManager, DimensionsManager dimensionsManager, IngestSettings ingestSettings) {
         this.datafilesManager = datafilesManager;
         this.dimensionsManager = dimensionsManager;
+        this.ingestSettings = ingestSettings;
     }
 
     public void loadAllDatasets() {
@@ -81,7 +88,7 @@ public class HealthDatasetsManagerInMemory implements HealthDatasetsManager {
     }
 
     private void loadDatasetsToCacheFromPointers(List<DatasetPointer> pointers) {
-        HealthDatasetBatchRead healthDatasetsRead = TableDatasetInterpreter.readHealthDatasetBatch(pointers);
+        HealthDatasetBatchRead healthDatasetsRead = TableDatasetInterpreter.readHealthDatasetBatch(pointers, ingestSettings.getWorkers());
         healthDatasetsRead.getErrors().forEach((file, error) -> LOG.error(file + " could not be read: " + error.getMessage()));
         for (Map.Entry<String, HealthDataset> entry : healthDatasetsRead.getDatasets().entrySet()) {
             HealthDataset augmented = dimensionsManager.augmentDatasetWithDimensionInfo(entry.getValue());
@@ -89,13 +96,29 @@ public class HealthDatasetsManagerInMemory implements HealthDatasetsManager {
         }
         for (Map.Entry<String, HealthDataset> entry : healthDatasetsRead.getDatasets().entrySet()) {
             List<ValuePointAssociation> associations = dimensionsManager.getDimensionAssociationsOf(entry.getValue().getData());
-            valuePointAssociations.addAll(associations);
+            associations.forEach(this::addAssociation);
         }
     }
 
+    private void addAssociation(ValuePointAssociation association) {
+        if (associationNumbers.containsKey(association)) {
+            return;
+        }
+        int number = valuePointAssociations.size();
+        valuePointAssociations.add(association);
+        associationNumbers.put(association, number);
+        association.dynamicDimensions.forEach((dimension, id) -> associationsByDimensionId
+                .computeIfAbsent(dimension, d -> new HashMap<>())
+                .computeIfAbsent(id, i -> new ArrayList<>())
+                .add(number));
+    }
+
+    /**
+     * Looks up only the associations that have the given id, through an index from dimension ids to associations
+     */
     public Map<String, List<String>> getAssociationsOf(String dimension, String id) {
-        return valuePointAssociations.stream()
-                .filter(point -> id.equals(point.dynamicDimensions.get(dimension)))
+        return associationsByDimensionId.getOrDefault(dimension, Map.of()).getOrDefault(id, List.of()).stream()
+                .map(valuePointAssociations::get)
                 .flatMap(vp -> vp.dynamicDimensions.entrySet().stream())
                 .distinct()
                 .collect(Collectors.groupingBy(Map.Entry::getKey, Collectors.mapping(Map.Entry::getValue, Collectors.toList())));
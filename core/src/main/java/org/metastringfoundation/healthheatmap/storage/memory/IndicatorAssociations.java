@@ -0,0 +1,122 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.memory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which ids of each dimension have been seen alongside each indicator, kept per datafile so that a datafile deleted or
+ * changed takes its associations with it. Ids get a number per dimension the first time they are seen, and an
+ * indicator keeps one bitmap of those numbers per dimension, so an association costs a bit instead of a reference to
+ * the dimension record. Safe to use from several threads.
+ */
+class IndicatorAssociations {
+    //          dimension   id      number
+    private final Map<String, Map<String, Integer>> numbers = new HashMap<>();
+    //          dimension   number -> id
+    private final Map<String, List<String>> ids = new HashMap<>();
+    //          datafile    indicator   dimension   numbers
+    private final Map<String, Map<String, Map<String, BitSet>>> byDatafile = new LinkedHashMap<>();
+    //          indicator   datafiles it is in
+    private final Map<String, Set<String>> datafilesOf = new LinkedHashMap<>();
+
+    synchronized void add(String datafile, String indicator, String dimension, String id) {
+        Integer number = numbers.computeIfAbsent(dimension, d -> new HashMap<>()).get(id);
+        if (number == null) {
+            List<String> idsOfDimension = ids.computeIfAbsent(dimension, d -> new ArrayList<>());
+            number = idsOfDimension.size();
+            idsOfDimension.add(id);
+            numbers.get(dimension).put(id, number);
+        }
+        byDatafile.computeIfAbsent(datafile, f -> new LinkedHashMap<>())
+                .computeIfAbsent(indicator, i -> new LinkedHashMap<>())
+                .computeIfAbsent(dimension, d -> new BitSet())
+                .set(number);
+        datafilesOf.computeIfAbsent(indicator, i -> new LinkedHashSet<>()).add(datafile);
+    }
+
+    synchronized void forget(String datafile) {
+        Map<String, Map<String, BitSet>> forgotten = byDatafile.remove(datafile);
+        if (forgotten == null) {
+            return;
+        }
+        for (String indicator : forgotten.keySet()) {
+            Set<String> datafiles = datafilesOf.get(indicator);
+            datafiles.remove(datafile);
+            if (datafiles.isEmpty()) {
+                datafilesOf.remove(indicator);
+            }
+        }
+    }
+
+    /**
+     * @return dimension -> ids seen with the indicator in any datafile; empty for an unknown indicator
+     */
+    synchronized Map<String, List<String>> of(String indicator) {
+        Map<String, BitSet> merged = new LinkedHashMap<>();
+        for (String datafile : datafilesOf.getOrDefault(indicator, Set.of())) {
+            byDatafile.get(datafile).get(indicator).forEach((dimension, bits) ->
+                    merged.computeIfAbsent(dimension, d -> new BitSet()).or(bits)
+            );
+        }
+        Map<String, List<String>> fields = new LinkedHashMap<>();
+        merged.forEach((dimension, bits) -> fields.put(dimension, idsOf(dimension, bits)));
+        return fields;
+    }
+
+    synchronized List<String> getIndicators() {
+        return new ArrayList<>(datafilesOf.keySet());
+    }
+
+    /**
+     * @return datafile -> indicator -> dimension -> ids, in a form {@link #add} can be fed from again
+     */
+    synchronized Map<String, Map<String, Map<String, List<String>>>> getAll() {
+        Map<String, Map<String, Map<String, List<String>>>> all = new LinkedHashMap<>();
+        byDatafile.forEach((datafile, indicators) -> {
+            Map<String, Map<String, List<String>>> ofDatafile = new LinkedHashMap<>();
+            indicators.forEach((indicator, dimensions) -> {
+                Map<String, List<String>> fields = new LinkedHashMap<>();
+                dimensions.forEach((dimension, bits) -> fields.put(dimension, idsOf(dimension, bits)));
+                ofDatafile.put(indicator, fields);
+            });
+            all.put(datafile, ofDatafile);
+        });
+        return all;
+    }
+
+    synchronized void clear() {
+        numbers.clear();
+        ids.clear();
+        byDatafile.clear();
+        datafilesOf.clear();
+    }
+
+    private List<String> idsOf(String dimension, BitSet bits) {
+        List<String> idsOfDimension = ids.get(dimension);
+        List<String> result = new ArrayList<>(bits.cardinality());
+        bits.stream().forEach(number -> result.add(idsOfDimension.get(number)));
+        return result;
+    }
+}
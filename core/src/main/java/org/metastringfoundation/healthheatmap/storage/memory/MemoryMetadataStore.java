@@ -0,0 +1,96 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage.memory;
+
+import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.beans.DownloadRequest;
+import org.metastringfoundation.healthheatmap.helpers.Jsonizer;
+import org.metastringfoundation.healthheatmap.logic.ApplicationMetadataStore;
+
+import javax.annotation.Nullable;
+import javax.enterprise.context.ApplicationScoped;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Metadata to go with {@link ColumnarDatasetStore}, kept for as long as the process lives. Downloads are only logged.
+ */
+@MemoryStore
+@ApplicationScoped
+public class MemoryMetadataStore implements ApplicationMetadataStore {
+    private static final Logger LOG = Logger.getLogger(MemoryMetadataStore.class);
+
+    // file -> fingerprint (or null), guarded by this
+    private final Map<String, String> savedDataFiles = new LinkedHashMap<>();
+    private volatile String dataGeneration = "";
+
+    @Override
+    public void logDownload(DownloadRequest downloadRequest) {
+        LOG.info("Download: " + Jsonizer.asJSON(downloadRequest));
+    }
+
+    @Override
+    public void markDatafileAsSaved(String datafile) {
+        markDatafileAsSaved(datafile, null);
+    }
+
+    @Override
+    public synchronized void markDatafileAsSaved(String datafile, @Nullable String fingerprint) {
+        savedDataFiles.put(datafile, fingerprint);
+    }
+
+    @Override
+    public synchronized void unmarkDatafileAsSaved(String datafile) {
+        savedDataFiles.remove(datafile);
+    }
+
+    @Override
+    public void factoryReset() {
+        synchronized (this) {
+            savedDataFiles.clear();
+        }
+        bumpDataGeneration();
+    }
+
+    @Override
+    public boolean getHealth() {
+        return true;
+    }
+
+    @Override
+    public synchronized List<String> getSavedDataFiles() {
+        return new ArrayList<>(savedDataFiles.keySet());
+    }
+
+    @Override
+    public synchronized Map<String, String> getSavedDataFileFingerprints() {
+        return new LinkedHashMap<>(savedDataFiles);
+    }
+
+    @Override
+    public String getDataGeneration() {
+        return dataGeneration;
+    }
+
+    @Override
+    public void bumpDataGeneration() {
+        dataGeneration = UUID.randomUUID().toString();
+    }
+}
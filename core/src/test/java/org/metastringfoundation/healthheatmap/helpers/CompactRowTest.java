@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.helpers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CompactRowTest {
+
+    @Test
+    void behavesLikeTheMapItWasMadeFrom() {
+        Map<String, String> original = new LinkedHashMap<>();
+        original.put("entity.id", "KL");
+        original.put("indicator.id", "imr");
+        original.put("value", "12");
+        CompactRow row = CompactRow.compact(List.of(original)).get(0);
+
+        assertEquals(original, row);
+        assertEquals(original.hashCode(), row.hashCode());
+        assertEquals(List.copyOf(original.keySet()), List.copyOf(row.keySet()));
+
+        assertEquals("12", row.put("value", "13"));
+        assertEquals("KL", row.remove("entity.id"));
+        assertNull(row.get("entity.id"));
+        assertFalse(row.containsKey("entity.id"));
+        assertEquals(Map.of("indicator.id", "imr", "value", "13"), row);
+    }
+
+    @Test
+    void sharesFieldsAndValuesBetweenRows() {
+        List<CompactRow> rows = CompactRow.compact(List.of(
+                Map.of("entity.id", new String("KL"), "value", "1"),
+                Map.of("entity.id", new String("KL"), "source.id", "HMIS")
+        ));
+        assertSame(rows.get(0).get("entity.id"), rows.get(1).get("entity.id"));
+        assertEquals(Map.of("entity.id", "KL", "value", "1"), rows.get(0));
+        assertEquals(Map.of("entity.id", "KL", "source.id", "HMIS"), rows.get(1));
+
+        rows.get(0).put("source.id", "NFHS");
+        assertEquals("NFHS", rows.get(0).get("source.id"));
+        assertEquals(3, rows.get(0).size());
+    }
+}
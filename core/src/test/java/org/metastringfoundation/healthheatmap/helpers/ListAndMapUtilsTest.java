@@ -0,0 +1,64 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.helpers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ListAndMapUtilsTest {
+    private static final List<String> ROW_FIELDS = List.of("entity.id", "source.id");
+
+    @Test
+    void pivotsCellsOfMoreThanOnePageOfBuckets() {
+        // more rows than a page of composite aggregation buckets, and the cells of a row arriving pages apart
+        List<Map<String, Object>> cells = new ArrayList<>();
+        for (String indicator : List.of("imr", "nmr")) {
+            for (int i = 0; i < 1500; i++) {
+                cells.add(Map.of("entity.id", "e" + i, "source.id", "HMIS", "indicator.id", indicator, "value", indicator + i));
+            }
+        }
+        List<Map<String, String>> rows = ListAndMapUtils.pivot(cells, ROW_FIELDS, "indicator.id");
+
+        assertEquals(1500, rows.size());
+        assertEquals(Map.of("entity.id", "e0", "source.id", "HMIS", "imr", "imr0", "nmr", "nmr0"), rows.get(0));
+        assertEquals(Map.of("entity.id", "e1499", "source.id", "HMIS", "imr", "imr1499", "nmr", "nmr1499"), rows.get(1499));
+    }
+
+    @Test
+    void takesACellRepeatedWithTheSameValueOnce() {
+        Map<String, Object> cell = Map.of("entity.id", "KL", "source.id", "HMIS", "indicator.id", "imr", "value", "12");
+        List<Map<String, String>> rows = ListAndMapUtils.pivot(List.of(cell, cell), ROW_FIELDS, "indicator.id");
+        assertEquals(List.of(Map.of("entity.id", "KL", "source.id", "HMIS", "imr", "12")), rows);
+    }
+
+    @Test
+    void refusesACellWithTwoDifferentValues() {
+        List<Map<String, Object>> cells = new ArrayList<>();
+        for (int i = 0; i < 1200; i++) {
+            cells.add(Map.of("entity.id", "e" + i, "indicator.id", "imr", "value", "1"));
+        }
+        // the same cell again, a page later, with another value; rows without a source.id still count as one row
+        cells.add(Map.of("entity.id", "e7", "indicator.id", "imr", "value", "2"));
+        assertThrows(IllegalArgumentException.class, () -> ListAndMapUtils.pivot(cells, ROW_FIELDS, "indicator.id"));
+    }
+}
@@ -33,7 +33,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.mockito.Mockito.*;
 
 public class ApplicationDefaultTest {
-    private final DatasetStore mockDatasetStore = mock(ElasticManager.class);
+    private final AsyncDatasetStore mockDatasetStore = mock(ElasticManager.class);
     private final ApplicationMetadataStore mockApplicationMetadataStore = mock(ElasticMetadataManager.class);
     private final FileStore mockFileStore = mock(FileStoreManager.class);
     private final DatafilesManager mockDatafilesManager = mock(DatafilesManagerInMemory.class);
@@ -48,7 +48,8 @@ public class ApplicationDefaultTest {
             mockDatafilesManager,
             mockHealthDatasetsManager,
             mockTransformersManager,
-            mockDimensionsManager
+            mockDimensionsManager,
+            IngestSettings.defaults()
     );
 
     @Test
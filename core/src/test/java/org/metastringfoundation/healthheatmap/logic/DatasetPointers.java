@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.logic;
+
+import org.metastringfoundation.data.Dataset;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Datafiles for tests, standing in for ones on disk. Each is named after itself, fingerprinted by its name, and has
+ * no transformers.
+ */
+public final class DatasetPointers {
+    private DatasetPointers() {
+    }
+
+    public static DatasetPointer of(String name, Dataset dataset) {
+        return of(name, 0, dataset);
+    }
+
+    /**
+     * @param delayMillis how long reading the dataset takes, to tell apart the order datafiles are read and finished
+     */
+    public static DatasetPointer of(String name, long delayMillis, Dataset dataset) {
+        return new DatasetPointer() {
+            @Override
+            public Dataset getDataset() throws IOException {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return dataset;
+            }
+
+            @Override
+            public List<DataTransformer> getTransformers() {
+                return List.of();
+            }
+
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public String getFingerprint() {
+                return name;
+            }
+        };
+    }
+}
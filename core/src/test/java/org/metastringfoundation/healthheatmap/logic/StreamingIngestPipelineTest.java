@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.logic;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.data.DataPoint;
+import org.metastringfoundation.healthheatmap.helpers.HealthDataset;
+import org.metastringfoundation.healthheatmap.logic.etl.StreamingIngestPipeline;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class StreamingIngestPipelineTest {
+
+    @Test
+    public void failingStageStopsTheOthersInsteadOfHanging() {
+        DimensionsManager dimensionsManager = mock(DimensionsManager.class);
+        when(dimensionsManager.augmentDatasetWithDimensionInfo(any())).thenThrow(new IllegalStateException("bad dimensions"));
+        DatasetStore datasetStore = mock(DatasetStore.class);
+        // one data point per chunk and room for one chunk between stages, so readers fill the queue straight away
+        IngestSettings settings = new IngestSettings(true, 1, 1, 2, false);
+        List<DatasetPointer> pointers = List.of(pointer("a.csv", 20), pointer("b.csv", 20), pointer("c.csv", 20));
+
+        IOException failure = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> assertThrows(
+                IOException.class,
+                () -> new StreamingIngestPipeline(dimensionsManager, datasetStore, settings).run(pointers)
+        ));
+
+        assertTrue(failure.getCause() instanceof IllegalStateException);
+        verifyNoInteractions(datasetStore);
+    }
+
+    @Test
+    public void savesEveryDataPointOnceInChunks() throws IOException {
+        DimensionsManager dimensionsManager = mock(DimensionsManager.class);
+        when(dimensionsManager.augmentDatasetWithDimensionInfo(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        DatasetStore datasetStore = mock(DatasetStore.class);
+        List<Map<String, String>> saved = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> chunkSizes = Collections.synchronizedList(new ArrayList<>());
+        when(datasetStore.save(any())).thenAnswer(invocation -> {
+            List<? extends Map<String, String>> data = invocation.<HealthDataset>getArgument(0).getData();
+            saved.addAll(data);
+            chunkSizes.add(data.size());
+            return IngestReport.of(data.size(), 0, List.of());
+        });
+        IngestSettings settings = new IngestSettings(true, 4, 2, 2, false);
+        List<DatasetPointer> pointers = List.of(pointer("a.csv", 10), pointer("b.csv", 3), pointer("empty.csv", 0));
+
+        StreamingIngestPipeline.Result result = new StreamingIngestPipeline(dimensionsManager, datasetStore, settings)
+                .run(pointers);
+
+        assertEquals(Map.of(), result.getErrors());
+        assertEquals(10, result.getReports().get("a.csv").getIndexed());
+        assertEquals(3, result.getReports().get("b.csv").getIndexed());
+        assertEquals(0, result.getReports().get("empty.csv").getIndexed());
+        assertEquals(13, saved.size());
+        assertEquals(13, new HashSet<>(saved).size());
+        assertEquals(List.of(2, 3, 4, 4), chunkSizes.stream().sorted().collect(Collectors.toList()));
+    }
+
+    private static DatasetPointer pointer(String name, int size) {
+        return DatasetPointers.of(name, () -> IntStream.range(0, size)
+                .mapToObj(i -> DataPoint.from(Map.of("k", String.valueOf(i))))
+                .collect(Collectors.toList()));
+    }
+}
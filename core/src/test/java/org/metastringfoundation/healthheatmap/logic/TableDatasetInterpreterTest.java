@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.logic;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.data.DataPoint;
+import org.metastringfoundation.healthheatmap.beans.HealthDatasetBatchRead;
+import org.metastringfoundation.healthheatmap.logic.etl.TableDatasetInterpreter;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TableDatasetInterpreterTest {
+
+    @Test
+    public void parallelBatchReadKeepsOrderAndIsolatesErrors() {
+        List<DatasetPointer> pointers = List.of(
+                DatasetPointers.of("slow.csv", 200, () -> List.of(DataPoint.from(Map.of("k", "slow")))),
+                DatasetPointers.of("broken.csv", 0, () -> {
+                    throw new IllegalArgumentException("bad file");
+                }),
+                DatasetPointers.of("fast.csv", 0, () -> List.of(DataPoint.from(Map.of("k", "fast"))))
+        );
+
+        HealthDatasetBatchRead batchRead = TableDatasetInterpreter.readHealthDatasetBatch(pointers, 3);
+
+        assertEquals(List.of("slow.csv", "fast.csv"), List.copyOf(batchRead.getDatasets().keySet()));
+        assertEquals(List.of("broken.csv"), List.copyOf(batchRead.getErrors().keySet()));
+        assertEquals(
+                List.of(Map.of("k", "slow", "meta.datafile", "slow.csv")),
+                batchRead.getDatasets().get("slow.csv").getData()
+        );
+    }
+}
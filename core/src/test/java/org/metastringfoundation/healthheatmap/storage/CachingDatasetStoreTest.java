@@ -0,0 +1,174 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
+import org.metastringfoundation.healthheatmap.helpers.HealthDatasetSimple;
+import org.metastringfoundation.healthheatmap.logic.AsyncDatasetStore;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+import org.metastringfoundation.healthheatmap.storage.cache.CachingDatasetStore;
+import org.metastringfoundation.healthheatmap.storage.memory.ColumnarDatasetStore;
+import org.metastringfoundation.healthheatmap.storage.memory.MemoryMetadataStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.mockito.Mockito.*;
+
+class CachingDatasetStoreTest {
+    private static final List<String> FIELDS = List.of("indicator.id", "state.id", "settlement", "source.id");
+
+    private final ColumnarDatasetStore store = new ColumnarDatasetStore();
+    private final CachingDatasetStore cache = new CachingDatasetStore(store, new MemoryMetadataStore(), true, 16, 1000, true);
+
+    /**
+     * Not every indicator is split by settlement or carries a source, so several combinations have fields missing
+     */
+    @BeforeEach
+    void save() throws IOException {
+        store.save(new HealthDatasetSimple(List.of(
+                point("tfr", "bihar", "rural", "NFHS", "3.2"),
+                point("tfr", "bihar", "urban", "NFHS", "2.4"),
+                point("tfr", "goa", "urban", "NFHS", "1.3"),
+                point("tfr", "goa", null, "SRS", "1.1"),
+                point("anaemia", "goa", null, null, "31"),
+                point("anaemia", "assam", "rural", null, "46"),
+                point("stunting", "assam", null, "CNNS", "35")
+        ), Map.of()));
+    }
+
+    @Test
+    void answersPossibleValuesFromTheCubeAsTheStoreWould() throws IOException {
+        cache.getDimensionsPossibleAt(FIELDS, null);
+        assertNotNull(cache.getStatistics().get("cubeGeneration"));
+        Object cachedBefore = cache.getStatistics().get("entries");
+        List<Filter> filters = Arrays.asList(
+                null,
+                terms(Map.of()),
+                // combinations missing a field
+                terms(Map.of("settlement", Collections.singletonList(null))),
+                terms(Map.of("source.id", Arrays.asList(null, "SRS"))),
+                terms(Map.of("settlement", Collections.singletonList(null), "source.id", Collections.singletonList(null))),
+                // values no data point has
+                terms(Map.of("state.id", List.of("kerala"))),
+                terms(Map.of("state.id", List.of("kerala", "goa"))),
+                terms(Map.of("state.id", List.of())),
+                // intersections of several fields
+                terms(Map.of("indicator.id", List.of("tfr"), "settlement", List.of("urban"))),
+                terms(Map.of("indicator.id", List.of("tfr", "anaemia"), "state.id", List.of("goa", "assam"))),
+                terms(Map.of("state.id", List.of("assam"), "settlement", List.of("rural"), "source.id", List.of("CNNS"))),
+                terms(Map.of("indicator.id", List.of("tfr"), "state.id", List.of("goa"),
+                        "settlement", Arrays.asList(null, "urban"), "source.id", List.of("SRS")))
+        );
+        for (Filter filter : filters) {
+            assertEquals(store.getDimensionsPossibleAt(FIELDS, filter), cache.getDimensionsPossibleAt(FIELDS, filter));
+        }
+        assertEquals(cachedBefore, cache.getStatistics().get("entries"));
+    }
+
+    @Test
+    void servesTheSameFieldsInAnyOrderFromOneCube() throws IOException {
+        cache.getDimensionsPossibleAt(FIELDS, null);
+        Object cachedBefore = cache.getStatistics().get("entries");
+        List<String> reordered = new ArrayList<>(FIELDS);
+        Collections.reverse(reordered);
+        Filter filter = terms(Map.of("state.id", List.of("goa")));
+
+        Map<String, List<String>> possible = cache.getDimensionsPossibleAt(reordered, filter);
+        assertEquals(store.getDimensionsPossibleAt(reordered, filter), possible);
+        assertEquals(reordered, new ArrayList<>(possible.keySet()));
+        assertEquals(cachedBefore, cache.getStatistics().get("entries"));
+    }
+
+    @Test
+    void doesNotAnswerFromACubeOfOlderData() throws IOException {
+        cache.getDimensionsPossibleAt(FIELDS, null);
+        cache.save(new HealthDatasetSimple(List.of(
+                point("tfr", "goa", "rural", "SRS", "1.4")
+        ), Map.of()));
+        Filter filter = terms(Map.of("state.id", List.of("goa")));
+        List<String> expected = Arrays.asList(null, "rural", "urban");
+        assertEquals(expected, cache.getDimensionsPossibleAt(FIELDS, filter).get("settlement"));
+        assertEquals(expected, cache.getDimensionsPossibleAt(FIELDS, filter).get("settlement"));
+    }
+
+    @Test
+    void identicalMissesShareOneRead() {
+        AsyncDatasetStore slow = mock(AsyncDatasetStore.class);
+        CompletableFuture<List<Map<String, Object>>> reading = new CompletableFuture<>();
+        when(slow.getAllTermsOfFieldsAsync(any())).thenReturn(reading);
+        CachingDatasetStore slowCache = new CachingDatasetStore(slow, new MemoryMetadataStore(), true, 16, 1000, false);
+        FilterAndSelectFields request = new FilterAndSelectFields();
+        request.setFields(List.of("state.id"));
+
+        CompletionStage<List<Map<String, Object>>> first = slowCache.getAllTermsOfFieldsAsync(request);
+        CompletionStage<List<Map<String, Object>>> second = slowCache.getAllTermsOfFieldsAsync(request);
+        reading.complete(List.of(Map.of("state.id", "goa")));
+
+        List<Map<String, Object>> expected = List.of(Map.of("state.id", "goa"));
+        assertEquals(expected, first.toCompletableFuture().join());
+        assertEquals(expected, second.toCompletableFuture().join());
+        assertEquals(expected, slowCache.getAllTermsOfFieldsAsync(request).toCompletableFuture().join());
+        verify(slow, times(1)).getAllTermsOfFieldsAsync(any());
+    }
+
+    @Test
+    void doesNotCacheResultsTooBigForTheirShareOfTheCache() throws IOException {
+        ColumnarDatasetStore large = new ColumnarDatasetStore();
+        List<Map<String, String>> dataPoints = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            dataPoints.add(point("tfr", "state-" + i, "rural", "NFHS", String.valueOf(i)));
+        }
+        dataPoints.add(point("imr", "goa", "urban", "SRS", "9"));
+        large.save(new HealthDatasetSimple(dataPoints, Map.of()));
+        CachingDatasetStore smallCache = new CachingDatasetStore(large, new MemoryMetadataStore(), true, 1, 1000, false);
+
+        assertEquals(2000, smallCache.query(DataQuery.of(Map.of("indicator.id", List.of("tfr")), null)).getResult().size());
+        assertEquals(0L, smallCache.getStatistics().get("entries"));
+        assertEquals(1, smallCache.query(DataQuery.of(Map.of("indicator.id", List.of("imr")), null)).getResult().size());
+        assertEquals(1L, smallCache.getStatistics().get("entries"));
+    }
+
+    private static Map<String, String> point(String indicator, String state, String settlement, String source, String value) {
+        Map<String, String> dataPoint = new HashMap<>();
+        dataPoint.put("indicator.id", indicator);
+        dataPoint.put("state.id", state);
+        dataPoint.put("settlement", settlement);
+        dataPoint.put("source.id", source);
+        dataPoint.put("value", value);
+        dataPoint.put("meta.datafile", "survey.csv");
+        return dataPoint;
+    }
+
+    private static Filter terms(Map<String, List<String>> terms) {
+        Filter filter = new Filter();
+        filter.setTerms(terms);
+        return filter;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.beanconverters.CanonicalQueries;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+import org.metastringfoundation.healthheatmap.storage.elastic.ElasticQueryHelpers;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CanonicalQueriesTest {
+    @Test
+    void sameFilterInDifferentOrderGivesSameQuery() {
+        Map<String, List<String>> terms = new LinkedHashMap<>();
+        terms.put("indicator.id", Arrays.asList("mmr", "imr", "mmr"));
+        terms.put("entity.id", Arrays.asList("kerala", null));
+        Map<String, List<String>> reorderedTerms = new LinkedHashMap<>();
+        reorderedTerms.put("entity.id", Arrays.asList(null, "kerala"));
+        reorderedTerms.put("indicator.id", Arrays.asList("imr", "mmr"));
+        Map<String, String> bounds = new HashMap<>();
+        bounds.put("gte", "2015");
+        bounds.put("lt", null);
+
+        DataQuery one = DataQuery.of(terms, Map.of("duration.start", bounds));
+        DataQuery other = DataQuery.of(reorderedTerms, Map.of("duration.start", Map.of("gte", "2015")));
+
+        assertEquals(CanonicalQueries.of(other), CanonicalQueries.of(one));
+        assertEquals(
+                ElasticQueryHelpers.getElasticQuery(other).toString(),
+                ElasticQueryHelpers.getElasticQuery(one).toString()
+        );
+    }
+
+    @Test
+    void keepsNullTermFirstAndOrderOfFields() {
+        DataQuery dataQuery = DataQuery.of(Map.of("settlement", Arrays.asList("urban", null, "rural")), Map.of());
+        dataQuery.setFields(List.of("value", "entity.id", "value"));
+
+        DataQuery canonical = CanonicalQueries.of(dataQuery);
+
+        assertEquals(Arrays.asList(null, "rural", "urban"), canonical.getTerms().get("settlement"));
+        assertEquals(null, canonical.getRanges());
+        assertEquals(List.of("value", "entity.id"), canonical.getFields());
+    }
+
+    @Test
+    void leavesInputAlone() {
+        List<String> values = Arrays.asList("b", "a");
+        Filter filter = Filter.FilterBuilder.aFilter().withTerms(Map.of("field", values)).build();
+
+        CanonicalQueries.of(filter);
+
+        assertEquals(Arrays.asList("b", "a"), values);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
+import org.metastringfoundation.healthheatmap.helpers.HealthDatasetSimple;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.memory.ColumnarDatasetStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ColumnarDatasetStoreTest {
+    private final ColumnarDatasetStore store = new ColumnarDatasetStore();
+
+    @BeforeEach
+    void save() throws IOException {
+        store.save(new HealthDatasetSimple(List.of(
+                Map.of("indicator.id", "imr", "entity.id", "kannur", "source.id", "HMIS", "value", "12", "meta.datafile", "a.csv"),
+                Map.of("indicator.id", "imr", "entity.id", "kollam", "source.id", "NFHS", "value", "9.5", "meta.datafile", "a.csv"),
+                Map.of("indicator.id", "nmr", "entity.id", "kannur", "value", "3", "meta.datafile", "b.csv")
+        ), Map.of()));
+    }
+
+    @Test
+    void filtersOnTermsAndMissingFields() throws IOException {
+        DataQuery dataQuery = DataQuery.of(Map.of("source.id", Arrays.asList(null, "NFHS")), null);
+        dataQuery.setFields(List.of("entity.id", "indicator.id"));
+        List<Map<String, String>> result = store.query(dataQuery).getResult();
+        assertEquals(List.of(
+                Map.of("entity.id", "kollam", "indicator.id", "imr"),
+                Map.of("entity.id", "kannur", "indicator.id", "nmr")
+        ), result);
+    }
+
+    @Test
+    void comparesValuesAsNumbersInRanges() throws IOException {
+        DataQuery dataQuery = DataQuery.of(null, Map.of("value", Map.of("gte", "4")));
+        List<String> values = store.query(dataQuery).getResult().stream().map(e -> e.get("value")).collect(Collectors.toList());
+        assertEquals(List.of("12", "9.5"), values);
+    }
+
+    @Test
+    void rejectsValueRangesBoundedByNonNumbers() {
+        DataQuery dataQuery = DataQuery.of(null, Map.of("value", Map.of("gte", "four")));
+        assertThrows(IllegalArgumentException.class, () -> store.query(dataQuery));
+    }
+
+    @Test
+    void givesTermsAndPossibleValuesLikeElastic() throws IOException {
+        FilterAndSelectFields filterAndFields = new FilterAndSelectFields();
+        filterAndFields.setFields(List.of("indicator.id", "source.id"));
+        List<Map<String, Object>> terms = store.getAllTermsOfFields(filterAndFields);
+        assertEquals(3, terms.size());
+        assertEquals(Arrays.asList("imr", "HMIS"), List.copyOf(terms.get(0).values()));
+        assertEquals(Arrays.asList("nmr", null), Arrays.asList(terms.get(2).values().toArray()));
+
+        Filter filter = new Filter();
+        filter.setTerms(Map.of("entity.id", List.of("kannur")));
+        Map<String, List<String>> possible = store.getDimensionsPossibleAt(List.of("source.id", "indicator.id", "unknown"), filter);
+        assertEquals(Arrays.asList(null, "HMIS"), possible.get("source.id"));
+        assertEquals(List.of("imr", "nmr"), possible.get("indicator.id"));
+        assertEquals(Arrays.asList((String) null), possible.get("unknown"));
+    }
+
+    @Test
+    void stopsReadingTermsOncePastTheLimit() {
+        FilterAndSelectFields filterAndFields = new FilterAndSelectFields();
+        filterAndFields.setFields(List.of("indicator.id", "source.id"));
+        assertEquals(2, store.getAllTermsOfFieldsAsync(filterAndFields, 1).toCompletableFuture().join().size());
+        assertEquals(3, store.getAllTermsOfFieldsAsync(filterAndFields, 3).toCompletableFuture().join().size());
+    }
+
+    @Test
+    void deletesDatafilesAndReplacesRepeatedDataPoints() throws IOException {
+        store.deleteDatafile("b.csv");
+        store.save(new HealthDatasetSimple(List.of(
+                Map.of("indicator.id", "imr", "entity.id", "kannur", "source.id", "HMIS", "value", "13", "meta.datafile", "a.csv")
+        ), Map.of()));
+        Filter filter = new Filter();
+        filter.setTerms(Map.of("indicator.id", List.of("imr", "nmr")));
+        ScoringData scoringData = store.getScoringData(filter, List.of());
+        assertEquals(2, scoringData.getCells().size());
+        assertEquals(9.5, scoringData.getRanges().get("imr").getMin());
+        assertEquals(13, scoringData.getRanges().get("imr").getMax());
+    }
+
+    @Test
+    void answersTheSameAfterRepeatedUploadsCompactTheTable() throws IOException {
+        List<Map<String, String>> upload = new ArrayList<>();
+        for (int i = 0; i < 12_000; i++) {
+            upload.add(Map.of("indicator.id", "mmr", "entity.id", "e" + i, "value", String.valueOf(i), "meta.datafile", "c.csv"));
+        }
+        for (int times = 0; times < 3; times++) {
+            store.deleteDatafile("c.csv");
+            store.save(new HealthDatasetSimple(upload, Map.of()));
+        }
+        store.deleteDatafile("c.csv");
+        store.save(new HealthDatasetSimple(List.of(
+                Map.of("indicator.id", "mmr", "entity.id", "kannur", "value", "7", "meta.datafile", "c.csv")
+        ), Map.of()));
+
+        DataQuery dataQuery = DataQuery.of(Map.of("entity.id", List.of("kannur")), null);
+        dataQuery.setFields(List.of("indicator.id", "value"));
+        assertEquals(List.of(
+                Map.of("indicator.id", "imr", "value", "12"),
+                Map.of("indicator.id", "nmr", "value", "3"),
+                Map.of("indicator.id", "mmr", "value", "7")
+        ), store.query(dataQuery).getResult());
+        assertEquals(4, store.query(DataQuery.of(null, null)).getResult().size());
+    }
+}
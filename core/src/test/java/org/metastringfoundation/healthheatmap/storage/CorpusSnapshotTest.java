@@ -0,0 +1,77 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.metastringfoundation.healthheatmap.storage.file.CorpusSnapshot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CorpusSnapshotTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsBackWhatWasWritten() throws IOException {
+        Path file = directory.resolve("corpus.snapshot");
+        Map<String, Map<String, String>> entities = Map.of("KL", Map.of("id", "KL", "name", "Kerala"));
+        try (CorpusSnapshot.Writer writer = CorpusSnapshot.writer(file, "stamp")) {
+            writer.addRow("a", Map.of("_id", "a", "entity.id", "KL", "value", "12"));
+            writer.addRow("b", Map.of("entity.id", "KL", "value", "സംഖ്യ"));
+            writer.addDimension("entity", entities);
+            writer.commit();
+        }
+        assertFalse(Files.exists(directory.resolve("corpus.snapshot.tmp")));
+
+        CorpusSnapshot snapshot = CorpusSnapshot.open(file);
+        assertEquals(2, snapshot.getRowCount());
+        assertEquals("stamp", snapshot.getDimensionsStamp());
+        Map<String, Map<String, String>> rows = new LinkedHashMap<>();
+        snapshot.forEachRow(rows::put);
+        assertEquals(Map.of(
+                "a", Map.of("entity.id", "KL", "value", "12"),
+                "b", Map.of("entity.id", "KL", "value", "സംഖ്യ")
+        ), rows);
+        assertEquals(Map.of("entity", entities), snapshot.getDimensions());
+    }
+
+    @Test
+    void leavesNothingBehindUnlessCommitted() throws IOException {
+        Path file = directory.resolve("corpus.snapshot");
+        try (CorpusSnapshot.Writer writer = CorpusSnapshot.writer(file, "stamp")) {
+            writer.addRow("a", Map.of("value", "1"));
+        }
+        assertFalse(Files.exists(file));
+        assertFalse(Files.exists(directory.resolve("corpus.snapshot.tmp")));
+    }
+
+    @Test
+    void refusesFilesThatAreNotSnapshots() throws IOException {
+        Path file = directory.resolve("data.csv");
+        Files.writeString(file, "entity,indicator,value\nKL,imr,12\n");
+        assertThrows(IOException.class, () -> CorpusSnapshot.open(file));
+    }
+}
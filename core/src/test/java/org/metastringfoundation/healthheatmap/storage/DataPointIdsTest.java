@@ -0,0 +1,58 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.elastic.DataPointIds;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class DataPointIdsTest {
+    @Test
+    void identifiesDataPointsByDatafileAndDimensionsButNotValue() {
+        Map<String, String> point = Map.of("indicator", "imr", "entity", "goa", "value", "9", "meta.datafile", "a.csv");
+        Map<String, String> revalued = Map.of("indicator", "imr", "entity", "goa", "value", "11", "meta.datafile", "a.csv");
+        Map<String, String> elsewhere = Map.of("indicator", "imr", "entity", "goa", "value", "9", "meta.datafile", "b.csv");
+
+        assertEquals(DataPointIds.of(point), DataPointIds.of(revalued));
+        assertNotEquals(DataPointIds.of(point), DataPointIds.of(elsewhere));
+    }
+
+    @Test
+    void reportsRowsRepeatingDimensionsWithADifferentValue() {
+        List<Map<String, String>> dataPoints = List.of(
+                Map.of("indicator", "imr", "entity", "goa", "value", "9", "meta.datafile", "a.csv"),
+                Map.of("indicator", "imr", "entity", "kerala", "value", "6", "meta.datafile", "a.csv"),
+                // an exact copy loses nothing
+                Map.of("indicator", "imr", "entity", "goa", "value", "9", "meta.datafile", "a.csv"),
+                Map.of("indicator", "imr", "entity", "goa", "value", "11", "meta.datafile", "a.csv")
+        );
+
+        IngestReport repeats = DataPointIds.repeatsIn(dataPoints);
+
+        assertEquals(1, repeats.getFailed());
+        assertEquals(List.of("Data point 4 has the same dimensions as data point 1 but a different value; only one of them is kept"),
+                repeats.getFailureSamples());
+        assertFalse(DataPointIds.repeatsIn(dataPoints.subList(0, 3)).hasFailures());
+    }
+}
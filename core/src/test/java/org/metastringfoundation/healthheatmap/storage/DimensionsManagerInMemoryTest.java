@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.metastringfoundation.healthheatmap.logic.FileStore;
+import org.metastringfoundation.healthheatmap.storage.memory.DimensionsManagerInMemory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class DimensionsManagerInMemoryTest {
+    @TempDir
+    Path directory;
+    private final FileStore fileStore = mock(FileStore.class);
+
+    @BeforeEach
+    void setUp() throws IOException {
+        Path dimensions = Files.createDirectory(directory.resolve("dimension"));
+        Path entity = Files.writeString(dimensions.resolve("entity.csv"), "id,name\nKL,Kerala\nTN,Tamil Nadu\n");
+        Path indicator = Files.writeString(dimensions.resolve("indicator.csv"), "id,name\nimr,IMR\nmmr,MMR\n");
+        when(fileStore.getSnapshotFile()).thenReturn(directory.resolve("corpus.snapshot"));
+        when(fileStore.getAssociationsFile()).thenReturn(directory.resolve("associations.json"));
+        when(fileStore.getDimensionsDirectory()).thenReturn(dimensions);
+        when(fileStore.getFiles(dimensions)).thenReturn(List.of(entity, indicator));
+        when(fileStore.getRelativeName(any(Path.class), any(Path.class))).then(call -> call.<Path>getArgument(0).getFileName().toString());
+    }
+
+    @Test
+    void associationsFollowTheirDatafiles() throws IOException {
+        DimensionsManagerInMemory dimensionsManager = new DimensionsManagerInMemory(fileStore);
+        dimensionsManager.persistAssociationWithIndicator(point("a.csv", "imr", "KL"));
+        dimensionsManager.persistAssociationWithIndicator(point("b.csv", "imr", "TN"));
+        dimensionsManager.persistAssociationWithIndicator(point("b.csv", "mmr", "KL"));
+        // neither an unknown id nor an unknown indicator is associated
+        dimensionsManager.persistAssociationWithIndicator(point("b.csv", "imr", "UNKNOWN"));
+        dimensionsManager.persistAssociationWithIndicator(point("b.csv", "nmr", "KL"));
+
+        assertEquals(Map.of("entity", List.of("KL", "TN")), dimensionsManager.fieldsAssociatedWithIndicator("imr"));
+        assertEquals(Map.of(), dimensionsManager.fieldsAssociatedWithIndicator("nmr"));
+
+        dimensionsManager.forgetAssociationsOf("b.csv");
+        assertEquals(Map.of("entity", List.of("KL")), dimensionsManager.fieldsAssociatedWithIndicator("imr"));
+        assertEquals(List.of("imr"), dimensionsManager.getAllIndicatorsWithAssociations());
+    }
+
+    @Test
+    void savedAssociationsAreThereOnTheNextStart() throws IOException {
+        DimensionsManagerInMemory uploader = new DimensionsManagerInMemory(fileStore);
+        uploader.persistAssociationWithIndicator(point("a.csv", "imr", "KL"));
+        uploader.persistAssociationWithIndicator(point("b.csv", "imr", "TN"));
+        uploader.saveAssociations();
+
+        DimensionsManagerInMemory restarted = new DimensionsManagerInMemory(fileStore);
+        assertEquals(Map.of("entity", List.of("KL", "TN")), restarted.fieldsAssociatedWithIndicator("imr"));
+        restarted.forgetAssociationsOf("a.csv");
+        assertEquals(Map.of("entity", List.of("TN")), restarted.fieldsAssociatedWithIndicator("imr"));
+    }
+
+    private static Map<String, String> point(String datafile, String indicator, String entity) {
+        return Map.of(
+                "meta.datafile", datafile,
+                "indicator.id", indicator,
+                "entity.id", entity,
+                "value", "1"
+        );
+    }
+}
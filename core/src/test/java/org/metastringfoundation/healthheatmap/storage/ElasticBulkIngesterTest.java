@@ -0,0 +1,127 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.index.shard.ShardId;
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.elastic.ElasticBulkIngester;
+import org.metastringfoundation.healthheatmap.storage.elastic.ElasticBulkSettings;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ElasticBulkIngesterTest {
+    private final ElasticBulkSettings settings = new ElasticBulkSettings(2, 10, 0, 1, 0, 1, 0);
+    private final List<Integer> bulkSizes = new ArrayList<>();
+
+    @Test
+    void reportsPartialFailuresAgainstTheSourceTheyCameFrom() throws IOException {
+        ElasticBulkIngester ingester = new ElasticBulkIngester(rejecting(Set.of("b2")), settings);
+        ingester.add(document("a1"), "a.csv");
+        ingester.add(document("b1"), "b.csv");
+        ingester.add(document("b2"), "b.csv");
+
+        Map<String, IngestReport> reports = ingester.finish();
+
+        assertEquals(List.of("a.csv", "b.csv"), new ArrayList<>(reports.keySet()));
+        assertFalse(reports.get("a.csv").hasFailures());
+        assertEquals(1, reports.get("a.csv").getIndexed());
+        assertEquals(1, reports.get("b.csv").getIndexed());
+        assertEquals(1, reports.get("b.csv").getFailed());
+        assertTrue(reports.get("b.csv").getFailureSamples().get(0).contains("mapping conflict"));
+    }
+
+    @Test
+    void countsEveryDocumentOfARequestThatFailsEntirely() throws IOException {
+        ElasticBulkIngester ingester = new ElasticBulkIngester(
+                (request, listener) -> listener.onFailure(new IOException("connection refused")),
+                settings
+        );
+        ingester.add(document("a1"), "a.csv");
+        ingester.add(document("a2"), "a.csv");
+        ingester.add(document("a3"), "a.csv");
+
+        IngestReport report = ingester.finish().get("a.csv");
+
+        assertEquals(0, report.getIndexed());
+        assertEquals(3, report.getFailed());
+    }
+
+    @Test
+    void cutsBulkRequestsAtTheConfiguredNumberOfDocuments() throws IOException {
+        ElasticBulkIngester ingester = new ElasticBulkIngester(rejecting(Set.of()), settings);
+        for (int i = 0; i < 5; i++) {
+            ingester.add(document("a" + i), "a.csv");
+        }
+
+        assertEquals(5, ingester.finish().get("a.csv").getIndexed());
+        assertEquals(List.of(2, 2, 1), bulkSizes);
+    }
+
+    @Test
+    void tracksDocumentsSentAgainBeforeTheFirstCameBack() throws IOException {
+        ElasticBulkIngester ingester = new ElasticBulkIngester(rejecting(Set.of()), settings);
+        ingester.add(document("a1"), "a.csv");
+        ingester.add(document("a1"), "a.csv");
+        ingester.add(document("b1"), "b.csv");
+
+        Map<String, IngestReport> reports = ingester.finish();
+
+        assertEquals(2, reports.get("a.csv").getIndexed());
+        assertEquals(1, reports.get("b.csv").getIndexed());
+    }
+
+    private BiConsumer<BulkRequest, ActionListener<BulkResponse>> rejecting(Set<String> rejectedIds) {
+        return (request, listener) -> {
+            bulkSizes.add(request.numberOfActions());
+            BulkItemResponse[] items = new BulkItemResponse[request.numberOfActions()];
+            for (int i = 0; i < items.length; i++) {
+                DocWriteRequest<?> item = request.requests().get(i);
+                if (rejectedIds.contains(item.id())) {
+                    items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new BulkItemResponse.Failure(
+                            item.index(), "_doc", item.id(), new IllegalArgumentException("mapping conflict")
+                    ));
+                } else {
+                    items[i] = new BulkItemResponse(i, DocWriteRequest.OpType.INDEX, new IndexResponse(
+                            new ShardId(item.index(), "uuid", 0), "_doc", item.id(), 1, 1, 1, true
+                    ));
+                }
+            }
+            listener.onResponse(new BulkResponse(items, 1));
+        };
+    }
+
+    private static IndexRequest document(String id) {
+        return new IndexRequest("data").id(id).source(Map.of("value", id));
+    }
+}
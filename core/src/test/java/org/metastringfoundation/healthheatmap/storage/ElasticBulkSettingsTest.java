@@ -0,0 +1,47 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.storage.elastic.ElasticBulkSettings;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ElasticBulkSettingsTest {
+    @Test
+    void defaultsMatchWhatIsDocumented() {
+        ElasticBulkSettings defaults = ElasticBulkSettings.defaults();
+
+        assertEquals(5000, defaults.getMaxActions());
+        assertEquals(10, defaults.getMaxSizeMb());
+        assertEquals(4, defaults.getConcurrentRequests());
+        assertEquals(0, defaults.getForceMergeMaxSegments());
+    }
+
+    @Test
+    void overridesReplaceEveryDefault() {
+        ElasticBulkSettings overridden = new ElasticBulkSettings(100, 1, 0, 50, 2, 5, 1);
+
+        assertEquals(100, overridden.getMaxActions());
+        assertEquals(1, overridden.getMaxSizeMb());
+        assertEquals(0, overridden.getConcurrentRequests());
+        assertEquals(50, overridden.getBackoffInitialMillis());
+        assertEquals(2, overridden.getBackoffRetries());
+        assertEquals(5, overridden.getTimeoutMinutes());
+        assertEquals(1, overridden.getForceMergeMaxSegments());
+    }
+}
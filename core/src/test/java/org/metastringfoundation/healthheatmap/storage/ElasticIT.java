@@ -21,22 +21,34 @@ import org.elasticsearch.client.RequestOptions;
 import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import org.metastringfoundation.datareader.dataset.map.MapDataset;
+import org.metastringfoundation.healthheatmap.beans.Filter;
 import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
 import org.metastringfoundation.healthheatmap.helpers.HealthDatasetFromDataset;
+import org.metastringfoundation.healthheatmap.helpers.ListAndMapUtils;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.IngestReport;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
 import org.metastringfoundation.healthheatmap.storage.elastic.ElasticManager;
+import org.metastringfoundation.healthheatmap.storage.memory.ColumnarDatasetStore;
 import org.testcontainers.elasticsearch.ElasticsearchContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @Testcontainers
 class ElasticIT {
@@ -49,7 +61,11 @@ class ElasticIT {
 
     private static final ElasticManager elasticManager = new ElasticManager(ELASTICSEARCH_CONTAINER.getHost(), ELASTICSEARCH_CONTAINER.getFirstMappedPort(), "data");
 
+    /**
+     * Saves go into a generation that is only served once published
+     */
     private void refreshIndex() throws IOException {
+        elasticManager.publish();
         elasticManager.getElastic().indices().refresh(new RefreshRequest(elasticManager.getDataIndexName()), RequestOptions.DEFAULT);
     }
 
@@ -93,11 +109,187 @@ class ElasticIT {
         List<String> expected = List.of("mmr1", "mmr2", "mmr3", "mmr4", "mmr5", "something_else",
                 "u5mr1", "u5mr2", "u5mr3", "u5mr4", "u5mr5");
         FilterAndSelectFields filterAndFields = new FilterAndSelectFields();
-        filterAndFields.setFields(List.of("indicator.keyword"));
+        filterAndFields.setFields(List.of("indicator"));
         List<String> actual = elasticManager.getAllTermsOfFields(filterAndFields).stream()
-                .map(m -> m.get("indicator.keyword"))
+                .map(m -> m.get("indicator"))
                 .map(String.class::cast)
                 .collect(Collectors.toList());
         assertEquals(expected, actual);
     }
+
+    @Test
+    @Tag("container")
+    public void getsPossibleValuesOfSeveralFieldsInOneGo() throws IOException {
+        List<Map<String, String>> data = List.of(
+                Map.of("indicator", "imr", "source", "HMIS", "settlement", "urban"),
+                Map.of("indicator", "imr", "source", "NFHS"),
+                Map.of("indicator", "nmr", "source", "NFHS", "settlement", "rural")
+        );
+        elasticManager.save(new HealthDatasetFromDataset(new MapDataset(data)));
+
+        refreshIndex();
+
+        Filter filter = new Filter();
+        filter.setTerms(Map.of("indicator", List.of("imr", "nmr")));
+        Map<String, List<String>> actual = elasticManager.getDimensionsPossibleAt(
+                List.of("source", "settlement"),
+                filter
+        );
+        assertEquals(List.of("HMIS", "NFHS"), actual.get("source"));
+        assertEquals(Arrays.asList(null, "rural", "urban"), actual.get("settlement"));
+    }
+
+    @Test
+    @Tag("container")
+    public void comparesValueRangesAsNumbers() throws IOException {
+        List<Map<String, String>> data = List.of(
+                Map.of("indicator", "tfr", "entity.district", "kannur", "value", "4"),
+                Map.of("indicator", "tfr", "entity.district", "kollam", "value", "12"),
+                Map.of("indicator", "tfr", "entity.district", "wayanad", "value", "9.5"),
+                Map.of("indicator", "tfr", "entity.district", "idukki", "value", "NA")
+        );
+        elasticManager.save(new HealthDatasetFromDataset(new MapDataset(data)));
+
+        refreshIndex();
+
+        DataQuery dataQuery = DataQuery.of(Map.of("indicator", List.of("tfr")), Map.of("value", Map.of("gte", "5")));
+        Set<String> actual = elasticManager.query(dataQuery).getResult().stream()
+                .map(e -> e.get("value"))
+                .collect(Collectors.toSet());
+        assertEquals(Set.of("12", "9.5"), actual);
+    }
+
+    @Test
+    @Tag("container")
+    public void getsStatisticsOfTheNumbersAmongValues() throws IOException {
+        List<Map<String, String>> data = List.of(
+                Map.of("indicator", "anaemia", "entity.state", "goa", "value", "10"),
+                Map.of("indicator", "anaemia", "entity.state", "goa", "settlement", "urban", "value", "20"),
+                Map.of("indicator", "anaemia", "entity.state", "assam", "value", "40"),
+                Map.of("indicator", "anaemia", "entity.state", "assam", "settlement", "urban", "value", "NA")
+        );
+        elasticManager.save(new HealthDatasetFromDataset(new MapDataset(data)));
+
+        refreshIndex();
+
+        Filter filter = new Filter();
+        filter.setTerms(Map.of("indicator", List.of("anaemia")));
+        List<ValueStatistics> overall = elasticManager.getValueStatistics(filter, null, List.of(50.0));
+        assertEquals(1, overall.size());
+        ValueStatistics statistics = overall.get(0);
+        assertNull(statistics.getGroup());
+        assertEquals(3, statistics.getCount());
+        assertEquals(10, statistics.getMin());
+        assertEquals(40, statistics.getMax());
+        assertEquals(70, statistics.getSum());
+        // percentiles are estimates
+        assertEquals(20, statistics.getPercentiles().get("50.0"), 5);
+
+        List<ValueStatistics> byState = elasticManager.getValueStatistics(filter, "entity.state", List.of());
+        assertEquals(List.of("assam", "goa"), byState.stream().map(ValueStatistics::getGroup).collect(Collectors.toList()));
+        assertEquals(1, byState.get(0).getCount());
+        assertEquals(40, byState.get(0).getAvg());
+        assertEquals(2, byState.get(1).getCount());
+        assertEquals(15, byState.get(1).getAvg());
+        assertEquals(Map.of(), byState.get(1).getPercentiles());
+    }
+
+    @Test
+    @Tag("container")
+    public void groupsScoringCellsAsTheMemoryStoreDoes() throws IOException {
+        List<Map<String, String>> data = List.of(
+                Map.of("entity.id", "kannur", "indicator.id", "sc-imr", "indicator.Positive/Negative", "NEGATIVE", "value", "12", "meta.datafile", "a.csv"),
+                Map.of("entity.id", "kannur", "indicator.id", "sc-imr", "indicator.Positive/Negative", "NEGATIVE", "value", "12", "meta.datafile", "b.csv"),
+                Map.of("entity.id", "kannur", "indicator.id", "sc-anc", "indicator.Positive/Negative", "POSITIVE", "value", "80", "meta.datafile", "a.csv"),
+                Map.of("entity.id", "kollam", "indicator.id", "sc-imr", "indicator.Positive/Negative", "NEGATIVE", "value", "9.5", "meta.datafile", "a.csv"),
+                Map.of("entity.id", "kollam", "indicator.id", "sc-anc", "indicator.Positive/Negative", "POSITIVE", "value", "NA", "meta.datafile", "a.csv"),
+                Map.of("entity.id", "idukki", "indicator.id", "sc-anc", "indicator.Positive/Negative", "POSITIVE", "meta.datafile", "a.csv")
+        );
+        elasticManager.save(new HealthDatasetFromDataset(new MapDataset(data)));
+        ColumnarDatasetStore memory = new ColumnarDatasetStore();
+        memory.save(new HealthDatasetFromDataset(new MapDataset(data)));
+
+        refreshIndex();
+
+        Filter filter = new Filter();
+        filter.setTerms(Map.of("indicator.id", List.of("sc-imr", "sc-anc")));
+        ScoringData fromElastic = elasticManager.getScoringData(filter, List.of());
+        ScoringData fromMemory = memory.getScoringData(filter, List.of());
+        assertEquals(countsOf(fromMemory), countsOf(fromElastic));
+        assertEquals(2, countsOf(fromElastic).get("kannur|sc-imr|NEGATIVE|12"));
+        for (String indicator : List.of("sc-imr", "sc-anc")) {
+            assertEquals(fromMemory.getRanges().get(indicator).getMin(), fromElastic.getRanges().get(indicator).getMin());
+            assertEquals(fromMemory.getRanges().get(indicator).getMax(), fromElastic.getRanges().get(indicator).getMax());
+        }
+    }
+
+    @Test
+    @Tag("container")
+    public void pivotsCellsPagedThroughTheCompositeAggregation() throws IOException {
+        List<Map<String, String>> data = new ArrayList<>();
+        for (String indicator : List.of("pv-a", "pv-b")) {
+            for (int i = 0; i < 1200; i++) {
+                data.add(Map.of("entity.id", "e" + i, "indicator.id", indicator, "value", String.valueOf(i), "meta.datafile", "a.csv"));
+            }
+        }
+        // agrees with a.csv, so is no conflict
+        data.add(Map.of("entity.id", "e3", "indicator.id", "pv-a", "value", "3", "meta.datafile", "b.csv"));
+        elasticManager.save(new HealthDatasetFromDataset(new MapDataset(data)));
+
+        refreshIndex();
+
+        Filter filter = new Filter();
+        filter.setTerms(Map.of("indicator.id", List.of("pv-a", "pv-b")));
+        FilterAndSelectFields cellQuery = new FilterAndSelectFields();
+        cellQuery.setFilter(filter);
+        cellQuery.setFields(List.of("entity.id", "indicator.id", "value"));
+        List<Map<String, String>> rows = ListAndMapUtils.pivot(elasticManager.getAllTermsOfFields(cellQuery), List.of("entity.id"), "indicator.id");
+        assertEquals(1200, rows.size());
+        assertEquals(Map.of("entity.id", "e3", "pv-a", "3", "pv-b", "3"),
+                rows.stream().filter(row -> row.get("entity.id").equals("e3")).findFirst().orElseThrow());
+
+        elasticManager.save(new HealthDatasetFromDataset(new MapDataset(List.of(
+                Map.of("entity.id", "e1100", "indicator.id", "pv-b", "value", "0", "meta.datafile", "c.csv")
+        ))));
+        refreshIndex();
+
+        List<Map<String, Object>> conflicting = elasticManager.getAllTermsOfFields(cellQuery);
+        assertThrows(IllegalArgumentException.class, () -> ListAndMapUtils.pivot(conflicting, List.of("entity.id"), "indicator.id"));
+    }
+
+    private static Map<String, Long> countsOf(ScoringData scoringData) {
+        Map<String, Long> counts = new HashMap<>();
+        for (ScoringData.Cell cell : scoringData.getCells()) {
+            String key = cell.getEntity() + "|" + cell.getIndicator() + "|" + cell.getType() + "|" + cell.getValue();
+            counts.put(key, cell.getCount());
+        }
+        return counts;
+    }
+
+    @Test
+    @Tag("container")
+    public void bulkLoadAccountsForItsSavesWhenItEnds() throws IOException {
+        List<Map<String, String>> first = List.of(
+                Map.of("indicator", "bulk1", "entity.district", "kannur", "value", "1", "meta.datafile", "first.csv"),
+                Map.of("indicator", "bulk1", "entity.district", "kollam", "value", "2", "meta.datafile", "first.csv")
+        );
+        List<Map<String, String>> second = List.of(
+                Map.of("indicator", "bulk2", "entity.district", "kannur", "value", "3", "meta.datafile", "second.csv")
+        );
+        elasticManager.beginBulkLoad();
+        Map<String, IngestReport> reports;
+        try {
+            elasticManager.save(new HealthDatasetFromDataset(new MapDataset(first)));
+            elasticManager.save(new HealthDatasetFromDataset(new MapDataset(second)));
+        } finally {
+            reports = elasticManager.endBulkLoad();
+        }
+        refreshIndex();
+
+        assertEquals(2, reports.get("first.csv").getIndexed());
+        assertEquals(1, reports.get("second.csv").getIndexed());
+        DataQuery dataQuery = new DataQuery();
+        dataQuery.setTerms(Map.of("indicator", List.of("bulk1", "bulk2")));
+        assertEquals(3, elasticManager.query(dataQuery).getResult().size());
+    }
 }
@@ -0,0 +1,90 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.logic.StoreOverloadedException;
+import org.metastringfoundation.healthheatmap.storage.elastic.ElasticLimiter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ElasticLimiterTest {
+    private final ElasticLimiter limiter = new ElasticLimiter(true, 1, 1, 1, 0, 10_000, 1.5, 3);
+
+    @Test
+    void turnsAwayFreshWorkBeyondTheLimitAndHoldsBackFollowUps() throws Exception {
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        limiter.callAsync(() -> slow, false);
+
+        StoreOverloadedException turnedAway = assertThrows(StoreOverloadedException.class, () -> limiter.call(() -> "fresh", false));
+        assertEquals(3, turnedAway.getRetryAfterSeconds());
+        ExecutionException turnedAwayAsync = assertThrows(ExecutionException.class, () -> limiter.callAsync(() -> CompletableFuture.completedFuture("fresh"), false).get());
+        assertTrue(turnedAwayAsync.getCause() instanceof StoreOverloadedException);
+        CompletableFuture<String> nextPage = limiter.callAsync(() -> CompletableFuture.completedFuture("next page"), true);
+        assertFalse(nextPage.isDone());
+
+        slow.complete("done");
+        assertEquals("next page", nextPage.get(1, TimeUnit.SECONDS));
+        assertEquals("fresh", limiter.call(() -> "fresh", false));
+    }
+
+    @Test
+    void letsWaitingFreshWorkInBeforeFollowUps() throws Exception {
+        ElasticLimiter patient = new ElasticLimiter(true, 1, 1, 1, 10_000, 10_000, 1.5, 3);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        CompletableFuture<String> slow = new CompletableFuture<>();
+        patient.callAsync(() -> slow, false);
+
+        CompletableFuture<String> followUp = patient.callAsync(() -> {
+            order.add("follow-up");
+            return CompletableFuture.completedFuture("follow-up");
+        }, true);
+        CompletableFuture<String> fresh = patient.callAsync(() -> {
+            order.add("fresh");
+            return CompletableFuture.completedFuture("fresh");
+        }, false);
+        assertEquals(List.of(), order);
+
+        slow.complete("done");
+        fresh.get(1, TimeUnit.SECONDS);
+        followUp.get(1, TimeUnit.SECONDS);
+        assertEquals(List.of("fresh", "follow-up"), order);
+    }
+
+    @Test
+    void turnsAwayAsyncWorkThatWaitedTooLongWithoutBlocking() {
+        ElasticLimiter brief = new ElasticLimiter(true, 1, 1, 1, 50, 50, 1.5, 3);
+        brief.callAsync(CompletableFuture::new, false);
+
+        CompletableFuture<String> waiting = brief.callAsync(() -> CompletableFuture.completedFuture("fresh"), false);
+        assertFalse(waiting.isDone());
+
+        ExecutionException turnedAway = assertThrows(ExecutionException.class, () -> waiting.get(1, TimeUnit.SECONDS));
+        assertTrue(turnedAway.getCause() instanceof StoreOverloadedException);
+        assertEquals(1L, brief.getStatistics().get("rejected"));
+    }
+}
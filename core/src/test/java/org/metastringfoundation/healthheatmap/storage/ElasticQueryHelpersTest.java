@@ -176,4 +176,36 @@ class ElasticQueryHelpersTest {
 
         assertThatJson(actual).when(Option.IGNORING_ARRAY_ORDER).isEqualTo(expected);
     }
-}
\ No newline at end of file
+
+    @Test
+    void takesRangesOfValueOnItsNumericSubField() {
+        Filter filter = Filter.FilterBuilder.aFilter()
+                .withRanges(Map.of(
+                        "value", Map.of("gte", "4", "lt", "10")
+                ))
+                .build();
+        QueryBuilder query = ElasticQueryHelpers.getElasticQuery(filter);
+        String actual = query.toString();
+        String expected = "{\n" +
+                "  \"bool\" : {\n" +
+                "    \"filter\" : [\n" +
+                "      {\n" +
+                "        \"range\" : {\n" +
+                "          \"value.number\" : {\n" +
+                "            \"from\" : \"4\",\n" +
+                "            \"to\" : \"10\",\n" +
+                "            \"include_lower\" : true,\n" +
+                "            \"include_upper\" : false,\n" +
+                "            \"boost\" : 1.0\n" +
+                "          }\n" +
+                "        }\n" +
+                "      }\n" +
+                "    ],\n" +
+                "    \"adjust_pure_negative\" : true,\n" +
+                "    \"boost\" : 1.0\n" +
+                "  }\n" +
+                "}";
+
+        assertThatJson(actual).isEqualTo(expected);
+    }
+}
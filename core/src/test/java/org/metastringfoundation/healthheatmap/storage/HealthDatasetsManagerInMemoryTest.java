@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.data.DataPoint;
+import org.metastringfoundation.healthheatmap.logic.DatafilesManager;
+import org.metastringfoundation.healthheatmap.logic.DatasetPointers;
+import org.metastringfoundation.healthheatmap.logic.DimensionsManager;
+import org.metastringfoundation.healthheatmap.logic.IngestSettings;
+import org.metastringfoundation.healthheatmap.storage.beans.ValuePointAssociation;
+import org.metastringfoundation.healthheatmap.storage.memory.HealthDatasetsManagerInMemory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class HealthDatasetsManagerInMemoryTest {
+    private final DatafilesManager datafilesManager = mock(DatafilesManager.class);
+    private final DimensionsManager dimensionsManager = mock(DimensionsManager.class);
+    // handed to ValuePointAssociation.of and changed afterwards, which mustn't reach the index
+    private final List<Map<String, String>> dimensionsGivenOut = new ArrayList<>();
+
+    @Test
+    void looksUpAssociationsThroughTheIdsTheyHave() {
+        when(datafilesManager.getAllDatasets()).thenReturn(List.of(
+                DatasetPointers.of("a.csv", () -> List.of(
+                        DataPoint.from(Map.of("entity", "KL", "indicator", "imr", "value", "12")),
+                        DataPoint.from(Map.of("entity", "KL", "indicator", "nmr", "value", "3")),
+                        DataPoint.from(Map.of("entity", "TN", "indicator", "imr", "value", "14"))
+                )),
+                DatasetPointers.of("b.csv", () -> List.of(
+                        DataPoint.from(Map.of("entity", "KL", "indicator", "imr", "value", "12")),
+                        DataPoint.from(Map.of("entity", "GA", "indicator", "mmr", "value", "70"))
+                ))
+        ));
+        when(dimensionsManager.augmentDatasetWithDimensionInfo(any())).thenAnswer(invocation -> invocation.getArgument(0));
+        when(dimensionsManager.getDimensionAssociationsOf(any())).thenAnswer(invocation -> {
+            List<ValuePointAssociation> associations = new ArrayList<>();
+            for (Map<String, String> dataPoint : invocation.<List<Map<String, String>>>getArgument(0)) {
+                Map<String, String> dimensions = new HashMap<>(dataPoint);
+                dimensions.remove("value");
+                dimensions.remove("meta.datafile");
+                dimensionsGivenOut.add(dimensions);
+                associations.add(ValuePointAssociation.of(Map.of("value", dataPoint.get("value")), dimensions));
+            }
+            return associations;
+        });
+        HealthDatasetsManagerInMemory manager = new HealthDatasetsManagerInMemory(
+                datafilesManager, dimensionsManager, new IngestSettings(false, 1, 1, 2, false));
+
+        manager.loadAllDatasets();
+        dimensionsGivenOut.forEach(dimensions -> dimensions.put("entity", "changed"));
+
+        assertEquals(Map.of(
+                "entity", Set.of("KL"),
+                "indicator", Set.of("imr", "nmr")
+        ), asSets(manager.getAssociationsOf("entity", "KL")));
+        assertEquals(Map.of(
+                "entity", Set.of("KL", "TN"),
+                "indicator", Set.of("imr")
+        ), asSets(manager.getAssociationsOf("indicator", "imr")));
+        assertEquals(Map.of(), manager.getAssociationsOf("entity", "changed"));
+        assertEquals(Map.of(), manager.getAssociationsOf("source", "HMIS"));
+    }
+
+    private static Map<String, Set<String>> asSets(Map<String, List<String>> associations) {
+        Map<String, Set<String>> sets = new HashMap<>();
+        associations.forEach((dimension, ids) -> {
+            assertEquals(new HashSet<>(ids).size(), ids.size(), "ids of " + dimension + " repeat");
+            sets.put(dimension, new HashSet<>(ids));
+        });
+        return sets;
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.storage;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.storage.beans.ValuePointAssociation;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ValuePointAssociationTest {
+    @Test
+    void sameValuesAreOneAssociation() {
+        Set<ValuePointAssociation> associations = new HashSet<>(List.of(
+                ValuePointAssociation.of(Map.of("value", "12"), Map.of("entity", "KL", "indicator", "imr")),
+                ValuePointAssociation.of(Map.of("value", "12"), Map.of("indicator", "imr", "entity", "KL")),
+                ValuePointAssociation.of(Map.of("value", "12"), Map.of("entity", "TN", "indicator", "imr"))
+        ));
+        assertEquals(2, associations.size());
+        assertNotEquals(
+                ValuePointAssociation.of(Map.of("value", "12"), Map.of("entity", "KL")),
+                ValuePointAssociation.of(Map.of("value", "13"), Map.of("entity", "KL"))
+        );
+    }
+
+    @Test
+    void isNotChangedByChangesToTheMapsItWasMadeFrom() {
+        Map<String, String> dimensions = new HashMap<>(Map.of("entity", "KL"));
+        ValuePointAssociation association = ValuePointAssociation.of(Map.of("value", "12"), dimensions);
+        dimensions.put("entity", "TN");
+        assertEquals(Map.of("entity", "KL"), association.dynamicDimensions);
+        assertThrows(UnsupportedOperationException.class, () -> association.dynamicDimensions.put("entity", "TN"));
+        assertThrows(UnsupportedOperationException.class, () -> association.staticValues.clear());
+    }
+}
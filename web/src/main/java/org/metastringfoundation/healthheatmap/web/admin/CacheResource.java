@@ -0,0 +1,44 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.web.admin;
+
+import org.metastringfoundation.healthheatmap.storage.cache.CachedStore;
+import org.metastringfoundation.healthheatmap.storage.cache.CachingDatasetStore;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+
+@Path("cache")
+public class CacheResource {
+    private final CachingDatasetStore cache;
+
+    @Inject
+    public CacheResource(@CachedStore CachingDatasetStore cache) {
+        this.cache = cache;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("stats")
+    public Map<String, Object> getStatistics() {
+        return cache.getStatistics();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.web.admin;
+
+import org.metastringfoundation.healthheatmap.storage.elastic.ElasticLimiter;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+
+@Path("limiter")
+public class LimiterResource {
+    private final ElasticLimiter limiter;
+
+    @Inject
+    public LimiterResource(ElasticLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("stats")
+    public Map<String, Object> getStatistics() {
+        return limiter.getStatistics();
+    }
+}
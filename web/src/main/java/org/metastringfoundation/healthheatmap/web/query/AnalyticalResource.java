@@ -16,7 +16,9 @@
 
 package org.metastringfoundation.healthheatmap.web.query;
 
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
 import org.metastringfoundation.healthheatmap.web.query.beans.ScoringRequest;
+import org.metastringfoundation.healthheatmap.web.query.beans.StatisticsRequest;
 import org.metastringfoundation.healthheatmap.web.utils.AppInteraction;
 
 import javax.inject.Inject;
@@ -45,4 +47,12 @@ public class AnalyticalResource {
     public List<Map<String, String>> getScores(ScoringRequest request) throws IOException {
         return app.getScores(request.filter);
     }
+
+    @POST
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("statistics")
+    public List<ValueStatistics> getStatistics(StatisticsRequest request) throws IOException {
+        return app.getValueStatistics(request.filter, request.groupBy, request.percentiles);
+    }
 }
@@ -22,7 +22,6 @@ import org.metastringfoundation.healthheatmap.beanconverters.FilterToDataQuery;
 import org.metastringfoundation.healthheatmap.beans.DataResponse;
 import org.metastringfoundation.healthheatmap.beans.Filter;
 import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
-import org.metastringfoundation.healthheatmap.helpers.ListAndMapUtils;
 import org.metastringfoundation.healthheatmap.web.utils.AppInteraction;
 import org.metastringfoundation.healthheatmap.web.utils.CSVDownload;
 
@@ -33,6 +32,7 @@ import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 @Path("data")
 public class DataResource {
@@ -48,13 +48,13 @@ public class DataResource {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public DataResponse getData(
+    public CompletionStage<DataResponse> getData(
             @QueryParam("include") List<String> mustInclude,
             Filter filter
-    ) throws IOException {
+    ) {
         LOG.debug(filter);
-        var result = app.query(FilterToDataQuery.convert(filter));
-        return DataQueryResultToDataResponse.convert(result, mustInclude);
+        return app.queryAsync(FilterToDataQuery.convert(filter, mustInclude))
+                .thenApply(result -> DataQueryResultToDataResponse.convert(result, mustInclude));
     }
 
     @POST
@@ -67,7 +67,7 @@ public class DataResource {
     ) throws IOException {
         Map<String, List<String>> dimensionsPossible = app.getFieldsPossibleAtExcludingUsefulFields(filter);
         Filter filterFull = app.autoPopulateFilter(filter, dimensionsPossible);
-        var result = app.query(FilterToDataQuery.convert(filterFull));
+        var result = app.query(FilterToDataQuery.convert(filterFull, mustInclude));
         DataResponse dataResponse = DataQueryResultToDataResponse.convert(result, mustInclude);
         dataResponse.setFilter(filterFull);
         return dataResponse;
@@ -78,8 +78,7 @@ public class DataResource {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("transpose")
     public List<Map<String, String>> transposeData(@QueryParam("dimension") String dimension, FilterAndSelectFields filtersAndFields) throws IOException {
-        List<Map<String, String>> filtered = app.getDataForDownload(filtersAndFields);
-        return ListAndMapUtils.reshapeCast(filtered, dimension);
+        return app.getPivot(filtersAndFields, dimension, List.of());
     }
 
     @POST
@@ -87,8 +86,7 @@ public class DataResource {
     @Produces("text/csv")
     @Path("transpose/download")
     public Response downloadTransposedData(@QueryParam("dimension") String dimension, FilterAndSelectFields filtersAndFields) throws IOException {
-        List<Map<String, String>> filtered = app.getDataForDownload(filtersAndFields);
-        List<Map<String, String>> input = ListAndMapUtils.reshapeCast(filtered, dimension);
+        List<Map<String, String>> input = app.getPivot(filtersAndFields, dimension, List.of());
         return CSVDownload.getDownloadCSVResponse(input);
     }
 
@@ -98,8 +96,7 @@ public class DataResource {
     @Produces("text/csv")
     @Path("transpose3d/download")
     public Response downloadData3D(@QueryParam("dimension") String dimension, @QueryParam("3d") List<String> thirdDimension, FilterAndSelectFields filtersAndFields) throws IOException {
-        List<Map<String, String>> filtered = app.getDataForDownload(filtersAndFields);
-        List<Map<String, String>> input = ListAndMapUtils.reshapeCast(filtered, dimension, thirdDimension);
+        List<Map<String, String>> input = app.getPivot(filtersAndFields, dimension, thirdDimension);
         return CSVDownload.getDownloadCSVResponse(input);
     }
 
@@ -108,7 +105,6 @@ public class DataResource {
     @Produces(MediaType.APPLICATION_JSON)
     @Path("transpose3d")
     public List<Map<String, String>> getData3D(@QueryParam("dimension") String dimension, @QueryParam("3d") List<String> thirdDimension, FilterAndSelectFields filtersAndFields) throws IOException {
-        List<Map<String, String>> filtered = app.getDataForDownload(filtersAndFields);
-        return ListAndMapUtils.reshapeCast(filtered, dimension, thirdDimension);
+        return app.getPivot(filtersAndFields, dimension, thirdDimension);
     }
 }
@@ -30,6 +30,7 @@ import javax.ws.rs.core.Response;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 @Path("dimensions")
 public class DimensionsResource {
@@ -68,11 +69,11 @@ public class DimensionsResource {
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public List<Map<String, Object>> exportAnyField(@QueryParam("include") List<String> fields) throws IOException {
+    public CompletionStage<List<Map<String, Object>>> exportAnyField(@QueryParam("include") List<String> fields) {
         LOG.debug("Fetching " + fields);
-        List<Map<String, Object>> result = getFieldsWithoutAnyFilter(fields);
-        LOG.debug(result);
-        return result;
+        FilterAndSelectFields filterAndFields = new FilterAndSelectFields();
+        filterAndFields.setFields(fields);
+        return app.getAllTermsOfFieldsAsync(filterAndFields);
     }
 
     private List<Map<String, Object>> getFieldsWithoutAnyFilter(List<String> fields) throws IOException {
@@ -88,10 +89,8 @@ public class DimensionsResource {
             summary = "Similar to the GET version, but allows restricting the dataset universe through a filter",
             description = "The returned combination will be restricted to the datapoints that pass the filter given"
     )
-    public List<Map<String, Object>> exportAnyFieldAdvanced(FilterAndSelectFields filterAndFields) throws IOException {
-        List<Map<String, Object>> result = getFields(filterAndFields);
-        LOG.debug(result);
-        return result;
+    public CompletionStage<List<Map<String, Object>>> exportAnyFieldAdvanced(FilterAndSelectFields filterAndFields) {
+        return app.getAllTermsOfFieldsAsync(filterAndFields);
     }
 
     @POST
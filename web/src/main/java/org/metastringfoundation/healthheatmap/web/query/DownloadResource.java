@@ -18,10 +18,8 @@ package org.metastringfoundation.healthheatmap.web.query;
 
 import org.metastringfoundation.healthheatmap.beanconverters.FilterToDataQuery;
 import org.metastringfoundation.healthheatmap.beans.DownloadRequest;
-import org.metastringfoundation.healthheatmap.helpers.ListAndMapUtils;
 import org.metastringfoundation.healthheatmap.logic.Application;
-import org.metastringfoundation.healthheatmap.logic.etl.KeyValuePairsToCSV;
-import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.web.utils.CSVDownload;
 
 import javax.inject.Inject;
@@ -31,9 +29,8 @@ import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
 
 @Path("download")
 public class DownloadResource {
@@ -50,30 +47,20 @@ public class DownloadResource {
     public Response downloadData(
             DownloadRequest downloadRequest
     ) throws IOException {
-        DataQueryResult queryResult = app.query(FilterToDataQuery.convert(downloadRequest.getFilter()));
+        DataQuery dataQuery = FilterToDataQuery.convertProjecting(downloadRequest.getFilter(), downloadRequest.getFields());
         app.logDownload(downloadRequest);
-        List<Map<String, String>> resultsToSend = filterFieldsIfRequired(downloadRequest, queryResult);
-        return CSVDownload.getDownloadCSVResponse(resultsToSend);
+        return CSVDownload.getCSVDownloadTriggeringResponse(CSVDownload.getCSVStream(app, dataQuery));
     }
 
     @POST
     @Path("display")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces("text/csv")
-    public String displayDownloadData(
+    public StreamingOutput displayDownloadData(
             DownloadRequest downloadRequest
     ) throws IOException {
-        DataQueryResult queryResult = app.query(FilterToDataQuery.convert(downloadRequest.getFilter()));
+        DataQuery dataQuery = FilterToDataQuery.convertProjecting(downloadRequest.getFilter(), downloadRequest.getFields());
         app.logDownload(downloadRequest);
-        List<Map<String, String>> resultsToSend = filterFieldsIfRequired(downloadRequest, queryResult);
-        return KeyValuePairsToCSV.convertToCSVPreservingAllColumns(resultsToSend);
-    }
-
-    private List<Map<String, String>> filterFieldsIfRequired(DownloadRequest downloadRequest, DataQueryResult queryResult) {
-        if (downloadRequest.getFilter() != null) {
-            return ListAndMapUtils.filterKeys(queryResult.getResult(), downloadRequest.getFields());
-        } else {
-            return queryResult.getResult();
-        }
+        return CSVDownload.getCSVStream(app, dataQuery);
     }
 }
@@ -23,10 +23,10 @@ import org.metastringfoundation.healthheatmap.web.utils.ErrorCreator;
 import javax.inject.Inject;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
 
 @Path("filters")
@@ -47,27 +47,27 @@ public class FiltersResource {
     @POST
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Map<String, List<String>> getDimensionFiltersPossibleAt(Filter filter) throws IOException {
+    public CompletionStage<Map<String, List<String>>> getDimensionFiltersPossibleAt(Filter filter) {
         if (filter == null || (filter.getTerms() == null && filter.getRanges() == null)) { // NOPMD readability
             throw new WebApplicationException(ErrorCreator.getPublicViewableError("Must specify filter at which dimensions should be given out"));
         }
-        return app.getFieldsPossibleAt(filter).entrySet().stream()
+        return app.getFieldsPossibleAtAsync(filter).thenApply(possible -> possible.entrySet().stream()
                 .filter(e -> !e.getKey().equals("entity.id"))
                 .map(e -> Map.entry(e.getKey(), e.getValue().stream().filter(v -> !Objects.isNull(v)).collect(Collectors.toList())))
                 .filter(e -> e.getValue().size() > 0)
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
     }
 
     @POST
     @Path("withNull")
     @Consumes(MediaType.APPLICATION_JSON)
     @Produces(MediaType.APPLICATION_JSON)
-    public Map<String, List<String>> getDimensionFiltersPossibleAtWithNull(Filter filter) throws IOException {
+    public CompletionStage<Map<String, List<String>>> getDimensionFiltersPossibleAtWithNull(Filter filter) {
         if (filter == null || (filter.getTerms() == null && filter.getRanges() == null)) { // NOPMD readability
             throw new WebApplicationException(ErrorCreator.getPublicViewableError("Must specify filter at which dimensions should be given out"));
         }
-        return app.getFieldsPossibleAt(filter).entrySet().stream()
+        return app.getFieldsPossibleAtAsync(filter).thenApply(possible -> possible.entrySet().stream()
                 .filter(e -> !e.getKey().equals("entity.id"))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
     }
 }
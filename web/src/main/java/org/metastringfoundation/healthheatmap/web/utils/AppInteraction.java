@@ -16,7 +16,6 @@
 
 package org.metastringfoundation.healthheatmap.web.utils;
 
-import org.jboss.logging.Logger;
 import org.metastringfoundation.healthheatmap.beanconverters.FilterToDataQuery;
 import org.metastringfoundation.healthheatmap.beans.Filter;
 import org.metastringfoundation.healthheatmap.beans.FilterAndSelectFields;
@@ -24,19 +23,22 @@ import org.metastringfoundation.healthheatmap.helpers.ListAndMapUtils;
 import org.metastringfoundation.healthheatmap.logic.Application;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
+import org.metastringfoundation.healthheatmap.storage.beans.ScoringData;
+import org.metastringfoundation.healthheatmap.storage.beans.ValueStatistics;
 
-import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import javax.ws.rs.WebApplicationException;
 import java.io.IOException;
 import java.util.*;
-import java.util.function.Function;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class AppInteraction {
-    private static final Logger LOG = Logger.getLogger(AppInteraction.class);
+    private static final List<Double> DEFAULT_PERCENTS = List.of(25.0, 50.0, 75.0);
+
     private final Application app;
 
     @Inject
@@ -47,18 +49,48 @@ public class AppInteraction {
     public List<Map<String, String>> getDataForDownload(FilterAndSelectFields filtersAndFields) throws IOException {
         verifyAndFixFiltersCrashingIfInappropriate(filtersAndFields);
         if (filtersAndFields.getFilter().isPresent()) {
-            DataQueryResult queryResult = app.query(FilterToDataQuery.convert(filtersAndFields.getFilter().get()));
-            List<Map<String, String>> filtered;
-            if (filtersAndFields.getFields() != null) {
-                filtered = ListAndMapUtils.filterKeys(queryResult.getResult(), filtersAndFields.getFields());
-            } else {
-                filtered = queryResult.getResult();
-            }
-            return filtered;
+            DataQuery dataQuery = FilterToDataQuery.convertProjecting(filtersAndFields.getFilter().get(), filtersAndFields.getFields());
+            return app.query(dataQuery).getResult();
         }
         throw new WebApplicationException(ErrorCreator.getPublicViewableError("The query without filters can lead to extremely large results. Aborting."));
     }
 
+    /**
+     * Pivots the data under the filter so that each value of dimension becomes a column. When fields are given, the
+     * cells are grouped in the store (one bucket per distinct row, column and value) rather than pulled out data point
+     * by data point, so large cross-tabs come back whole.
+     *
+     * @param thirdDimension fields that further split the rows; may be empty
+     */
+    public List<Map<String, String>> getPivot(FilterAndSelectFields filtersAndFields, String dimension, List<String> thirdDimension) throws IOException {
+        verifyAndFixFiltersCrashingIfInappropriate(filtersAndFields);
+        if (filtersAndFields.getFields() == null) {
+            // with every field in play, each data point is a row of its own; there is nothing to group by
+            List<Map<String, String>> filtered = getDataForDownload(filtersAndFields);
+            return thirdDimension.isEmpty()
+                    ? ListAndMapUtils.reshapeCast(filtered, dimension)
+                    : ListAndMapUtils.reshapeCast(filtered, dimension, thirdDimension);
+        }
+        List<String> rowFields = new ArrayList<>(new LinkedHashSet<>(filtersAndFields.getFields()));
+        rowFields.removeAll(List.of("value", dimension));
+        for (String field : thirdDimension) {
+            if (!rowFields.contains(field)) {
+                rowFields.add(field);
+            }
+        }
+        List<String> cellFields = new ArrayList<>(rowFields);
+        cellFields.add(dimension);
+        cellFields.add("value");
+        FilterAndSelectFields cellQuery = new FilterAndSelectFields();
+        cellQuery.setFilter(filtersAndFields.getFilter().get());
+        cellQuery.setFields(cellFields);
+        try {
+            return ListAndMapUtils.pivot(app.getAllTermsOfFields(cellQuery), rowFields, dimension);
+        } catch (IllegalArgumentException e) {
+            throw ErrorCreator.getErrorFor("More than one value for the same cell. " + e.getMessage());
+        }
+    }
+
     private void verifyAndFixFiltersCrashingIfInappropriate(FilterAndSelectFields filtersAndFields) {
         if (filtersAndFields.getFilter().isEmpty()) {
             throw new WebApplicationException(ErrorCreator.getPublicViewableError("Should give filters"));
@@ -75,71 +107,78 @@ public class AppInteraction {
         return app.query(query);
     }
 
-    private static Optional<Double> getDoubleOptionally(String s) {
-        if (s == null) {
-            return Optional.empty();
-        }
-        try {
-            return Optional.of(Double.parseDouble(s));
-        } catch (NumberFormatException e) {
-            return Optional.empty();
-        }
+    public CompletionStage<DataQueryResult> queryAsync(DataQuery query) {
+        return app.queryAsync(query);
     }
 
+    /**
+     * Scores each entity on the indicators under the filter. Each value is placed between the lowest and highest
+     * value of its indicator, flipped for NEGATIVE indicators, and the composite score of an entity is the average
+     * of the scores of its data points.
+     */
     public List<Map<String, String>> getScores(Filter filter) throws IOException {
         ensureFilterIsGood(filter);
-        ensureOnlySingleValueForEntityIndicatorCombination(filter);
-        List<Map<String, String>> data = getDataWithAppropriateSelections(filter);
-        Map<String, List<Map<String, String>>> groupedByDimension = groupByIndicatorForFindingMinMaxOfIndicator(data);
-        Map<String, Double> minimums = findMinimumOfEachIndicator(groupedByDimension);
-        Map<String, Double> maximums = findMaximumOfEachIndicator(groupedByDimension);
-        failIfMinMaxCalculationHasFailures(minimums, maximums);
-
-        return data.stream()
-                .collect(Collectors.groupingBy(e -> e.get("entity.id"), Collectors.mapping(Function.identity(), Collectors.toList())))
-                .entrySet().stream()
-                .map(entry -> computeCompositeAndCollapse(entry, minimums, maximums))
-                .collect(Collectors.toList());
-    }
+        ScoringData scoringData = app.getScoringData(filter);
+        ensureOnlySingleValueForEntityIndicatorCombination(scoringData.getPossibleValues());
 
-    private void failIfMinMaxCalculationHasFailures(Map<String, Double> minimums, Map<String, Double> maximums) {
-        if (minimums.containsValue(Double.NEGATIVE_INFINITY) || maximums.containsValue(Double.POSITIVE_INFINITY)) {
+        Map<String, ScoringData.Range> ranges = scoringData.getRanges();
+        Set<String> indicators = new HashSet<>();
+        for (ScoringData.Cell cell : scoringData.getCells()) {
+            indicators.add(cell.getIndicator());
+        }
+        if (!ranges.keySet().containsAll(indicators)) {
             throw ErrorCreator.getErrorFor("Finding minimum/maximum failed");
         }
-    }
-
-    @Nonnull
-    private Map<String, Double> findMaximumOfEachIndicator(Map<String, List<Map<String, String>>> groupedByDimension) {
-        // we use positive infinity and negative infinity (in the other method) to denote that there is no meaningful maximum (or minimum)
-        return groupedByDimension.entrySet().stream()
-                .map(entry -> Map.entry(entry.getKey(), getMaximumOf(getValues(entry.getValue())).orElse(Double.POSITIVE_INFINITY)))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-    }
-
-    @Nonnull
-    private Map<String, Double> findMinimumOfEachIndicator(Map<String, List<Map<String, String>>> groupedByDimension) {
-        return groupedByDimension.entrySet().stream()
-                .map(entry -> Map.entry(entry.getKey(), getMinimumOf(getValues(entry.getValue())).orElse(Double.NEGATIVE_INFINITY)))
-                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
-    }
 
-    private Map<String, List<Map<String, String>>> groupByIndicatorForFindingMinMaxOfIndicator(List<Map<String, String>> data) {
-        return data.stream()
-                .collect(Collectors.groupingBy(m -> m.get("indicator.id")));
+        Map<String, Map<String, String>> results = new LinkedHashMap<>();
+        Map<String, double[]> sums = new HashMap<>();
+        for (ScoringData.Cell cell : scoringData.getCells()) {
+            Map<String, String> result = results.computeIfAbsent(cell.getEntity(), entity -> {
+                Map<String, String> entityResult = new LinkedHashMap<>();
+                entityResult.put("entity.id", entity);
+                return entityResult;
+            });
+            result.put(cell.getIndicator(), cell.getValue());
+            double[] sum = sums.computeIfAbsent(cell.getEntity(), entity -> new double[2]);
+            if (cell.getNumber() != null) {
+                ScoringData.Range range = ranges.get(cell.getIndicator());
+                double score = (range.getMax() - cell.getNumber()) / (range.getMax() - range.getMin());
+                if ("NEGATIVE".equals(cell.getType())) {
+                    score = 1 - score;
+                }
+                sum[0] += score * cell.getCount();
+                sum[1] += cell.getCount();
+            }
+        }
+        results.forEach((entity, result) -> {
+            double[] sum = sums.get(entity);
+            result.put("Composite Score", String.valueOf(sum[0] / sum[1]));
+        });
+        return new ArrayList<>(results.values());
     }
 
-    private List<Map<String, String>> getDataWithAppropriateSelections(Filter filter) throws IOException {
-        FilterAndSelectFields filterAndSelectFields = new FilterAndSelectFields();
-        filterAndSelectFields.setFilter(filter);
-        filterAndSelectFields.setFields(List.of("entity.id", "indicator.Positive/Negative", "indicator.id", "value"));
-        return getDataForDownload(filterAndSelectFields);
+    /**
+     * Min, max, average, sum and percentiles of the numeric values under the filter, worked out by the store
+     *
+     * @param percents percentiles wanted; quartiles if none are given
+     */
+    public List<ValueStatistics> getValueStatistics(Filter filter, @Nullable String groupBy, @Nullable List<Double> percents) throws IOException {
+        if (filter == null || filter.getTerms() == null) {
+            throw ErrorCreator.getErrorFor("Please specify a filter");
+        }
+        if (percents == null || percents.isEmpty()) {
+            percents = DEFAULT_PERCENTS;
+        }
+        for (Double percent : percents) {
+            if (percent == null || percent < 0 || percent > 100) {
+                throw ErrorCreator.getErrorFor("Percentiles should be between 0 and 100");
+            }
+        }
+        return app.getValueStatistics(filter, groupBy, percents);
     }
 
-    private void ensureOnlySingleValueForEntityIndicatorCombination(Filter filter) throws IOException {
+    private void ensureOnlySingleValueForEntityIndicatorCombination(Map<String, List<String>> possibleDimensions) {
         // We want to ensure that there won't be two values for any indicator-entity combination
-        Map<String, List<String>> possibleDimensions = app.getFieldsPossibleAt(filter);
-        possibleDimensions.remove("indicator.id");
-        possibleDimensions.remove("entity.id"); // these are expected to be multiple values possible
         for (Map.Entry<String, List<String>> entry : possibleDimensions.entrySet()) {
             if (entry.getValue().size() > 1) {
                 throw ErrorCreator.getErrorFor("Please filter a single value for " + entry.getKey() + " from "
@@ -157,59 +196,6 @@ public class AppInteraction {
         ));
     }
 
-    private Map<String, String> computeCompositeAndCollapse(
-            Map.Entry<String, List<Map<String, String>>> entry,
-            Map<String, Double> minimums,
-            Map<String, Double> maximums
-    ) {
-        List<Double> scores = entry.getValue().stream()
-                .map(dp -> getScoreFor(dp.get("value"), minimums.get(dp.get("indicator.id")), maximums.get(dp.get("indicator.id")), dp.get("indicator.Positive/Negative")))
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList());
-        String compositeScore = "NA";
-        try {
-            compositeScore = String.valueOf(scores.stream().reduce((double) 0, Double::sum) / scores.size());
-        } catch (ArithmeticException e) {
-            LOG.trace("Arithmetic exception occurred for dimension " + "indicator.id");
-        }
-        Map<String, String> result = new LinkedHashMap<>();
-        result.put("entity.id", entry.getKey());
-        entry.getValue().forEach(m -> result.put(m.get("indicator.id"), m.get("value")));
-        result.put("Composite Score", compositeScore);
-        return result;
-    }
-
-    private Optional<Double> getScoreFor(String valueString, Double minimum, Double maximum, String type) {
-        return getDoubleOptionally(valueString).map(value -> (maximum - value) / (maximum - minimum)).map(d -> {
-            if (type.equals("NEGATIVE")) {
-                return 1 - d;
-            } else {
-                return d;
-            }
-        });
-    }
-
-    private List<String> getValues(List<Map<String, String>> dataPoints) {
-        return dataPoints.stream().map(dp -> dp.get("value")).collect(Collectors.toList());
-    }
-
-    private Optional<Double> getMinimumOf(List<String> values) {
-        return values.stream()
-                .map(AppInteraction::getDoubleOptionally)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .min(Double::compare);
-    }
-
-    private Optional<Double> getMaximumOf(List<String> values) {
-        return values.stream()
-                .map(AppInteraction::getDoubleOptionally)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .max(Double::compare);
-    }
-
     public Filter autoPopulateFilter(Filter filter, Map<String, List<String>> dimensionsPossible) {
         if (filter.getTerms() == null) {
             return filter;
@@ -16,14 +16,28 @@
 
 package org.metastringfoundation.healthheatmap.web.utils;
 
+import org.jboss.logging.Logger;
+import org.metastringfoundation.healthheatmap.logic.DatasetStore;
 import org.metastringfoundation.healthheatmap.logic.etl.KeyValuePairsToCSV;
+import org.metastringfoundation.healthheatmap.logic.etl.KeyValuePairsToCSVStream;
+import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class CSVDownload {
+    private static final Logger LOG = Logger.getLogger(CSVDownload.class);
+
     public static Response getCSVDownloadTriggeringResponse(String csv, String filename) {
         return Response
                 .ok(csv)
@@ -39,4 +53,44 @@ public class CSVDownload {
         String resultCSV = KeyValuePairsToCSV.convertToCSVPreservingAllColumns(input);
         return CSVDownload.getCSVDownloadTriggeringResponse(resultCSV);
     }
+
+    public static Response getCSVDownloadTriggeringResponse(StreamingOutput csv) {
+        return Response
+                .ok(csv)
+                .header("Content-Disposition", "attachment; filename=\"download.csv\"")
+                .build();
+    }
+
+    /**
+     * Writes out the data matching the query as CSV while it is read from the store, so that exports of any size
+     * take the same memory. Without fields in the query, the columns are found by a first pass over the data.
+     *
+     * @param store where the data comes from
+     * @param query filters and, optionally, the columns to write
+     * @return the CSV, written once the response is being sent
+     */
+    public static StreamingOutput getCSVStream(DatasetStore store, DataQuery query) {
+        return output -> {
+            try {
+                List<String> headers = getHeaders(store, query);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+                KeyValuePairsToCSVStream csv = new KeyValuePairsToCSVStream(writer, headers);
+                store.stream(query, csv);
+                csv.flush();
+            } catch (IOException e) {
+                // the response has started by now; all that's left is to cut it short
+                LOG.error("CSV export failed midway", e);
+                throw e;
+            }
+        };
+    }
+
+    private static List<String> getHeaders(DatasetStore store, DataQuery query) throws IOException {
+        if (query.getFields() != null && !query.getFields().isEmpty()) {
+            return query.getFields();
+        }
+        Set<String> headers = new LinkedHashSet<>();
+        store.stream(query, dataPoint -> headers.addAll(dataPoint.keySet()));
+        return new ArrayList<>(headers);
+    }
 }
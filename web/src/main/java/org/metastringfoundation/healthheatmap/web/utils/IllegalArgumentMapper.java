@@ -0,0 +1,38 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.web.utils;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Stores refuse malformed queries (a range bounded by something that isn't a number, say) with an
+ * IllegalArgumentException; that is the client's mistake, so it goes out as a 400 rather than a 500
+ */
+@Provider
+public class IllegalArgumentMapper implements ExceptionMapper<IllegalArgumentException> {
+    @Override
+    public Response toResponse(IllegalArgumentException exception) {
+        return Response.status(Response.Status.BAD_REQUEST)
+                .entity(Map.of("errors", List.of(Objects.toString(exception.getMessage(), "Invalid request"))))
+                .build();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.web.utils;
+
+import org.metastringfoundation.healthheatmap.logic.StoreOverloadedException;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Work turned away by the store is the client's to retry, so it goes out as a 503 with a Retry-After
+ */
+@Provider
+public class StoreOverloadedMapper implements ExceptionMapper<StoreOverloadedException> {
+    @Override
+    public Response toResponse(StoreOverloadedException exception) {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, exception.getRetryAfterSeconds())
+                .entity(Map.of("errors", List.of(exception.getMessage())))
+                .build();
+    }
+}
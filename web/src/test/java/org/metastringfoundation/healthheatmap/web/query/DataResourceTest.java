@@ -25,9 +25,9 @@ import org.metastringfoundation.healthheatmap.storage.beans.DataQuery;
 import org.metastringfoundation.healthheatmap.storage.beans.DataQueryResult;
 import org.mockito.Mockito;
 
-import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 import static io.restassured.RestAssured.given;
 import static org.hamcrest.Matchers.hasItems;
@@ -39,9 +39,9 @@ class DataResourceTest {
     Application mockApp;
 
     @Test
-    void getData() throws IOException {
-        Mockito.when(mockApp.query(DataQuery.of(Map.of("t1", List.of("tk1", "tk2")), null)))
-                .thenReturn(DataQueryResult.of(List.of(Map.of("t1", "tk1", "value", "12"))));
+    void getData() {
+        Mockito.when(mockApp.queryAsync(DataQuery.of(Map.of("t1", List.of("tk1", "tk2")), null)))
+                .thenReturn(CompletableFuture.completedFuture(DataQueryResult.of(List.of(Map.of("t1", "tk1", "value", "12")))));
 
         given()
                 .contentType(ContentType.JSON)
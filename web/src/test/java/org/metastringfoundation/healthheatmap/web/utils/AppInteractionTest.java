@@ -0,0 +1,139 @@
+/*
+ *    Copyright 2020 Metastring Foundation
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package org.metastringfoundation.healthheatmap.web.utils;
+
+import org.junit.jupiter.api.Test;
+import org.metastringfoundation.healthheatmap.beans.Filter;
+import org.metastringfoundation.healthheatmap.helpers.HealthDatasetSimple;
+import org.metastringfoundation.healthheatmap.logic.Application;
+import org.metastringfoundation.healthheatmap.storage.memory.ColumnarDatasetStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.*;
+
+class AppInteractionTest {
+    private static final String ENTITY = "entity.id";
+    private static final String INDICATOR = "indicator.id";
+    private static final String TYPE = "indicator.Positive/Negative";
+    private static final String COMPOSITE = "Composite Score";
+
+    /**
+     * The same value of an indicator turns up in two datafiles for kannur and wayanad, kollam has a value that isn't a
+     * number, and idukki has no value at all
+     */
+    private static final List<Map<String, String>> DATA_POINTS = List.of(
+            point("kannur", "imr", "NEGATIVE", "12", "a.csv"),
+            point("kannur", "imr", "NEGATIVE", "12", "b.csv"),
+            point("kannur", "anc", "POSITIVE", "80", "a.csv"),
+            point("kollam", "imr", "NEGATIVE", "9.5", "a.csv"),
+            point("kollam", "anc", "POSITIVE", "NA", "a.csv"),
+            point("wayanad", "imr", "NEGATIVE", "15", "a.csv"),
+            point("wayanad", "anc", "POSITIVE", "60", "a.csv"),
+            point("wayanad", "anc", "POSITIVE", "60", "b.csv"),
+            point("idukki", "anc", "POSITIVE", null, "a.csv")
+    );
+
+    @Test
+    void scoresFromCountedCellsAsFromTheDataPointsThemselves() throws IOException {
+        ColumnarDatasetStore store = new ColumnarDatasetStore();
+        store.save(new HealthDatasetSimple(DATA_POINTS, Map.of()));
+        Application app = mock(Application.class);
+        when(app.getScoringData(any())).thenAnswer(invocation -> store.getScoringData(invocation.getArgument(0), List.of()));
+        Filter filter = new Filter();
+        filter.setTerms(new HashMap<>(Map.of(INDICATOR, new ArrayList<>(List.of("imr", "anc")))));
+
+        Map<String, Map<String, String>> actual = byEntity(new AppInteraction(app).getScores(filter));
+        Map<String, Map<String, String>> expected = scoresFromDataPoints(DATA_POINTS);
+
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String entity : expected.keySet()) {
+            Map<String, String> expectedScores = new HashMap<>(expected.get(entity));
+            Map<String, String> actualScores = new HashMap<>(actual.get(entity));
+            double expectedComposite = Double.parseDouble(expectedScores.remove(COMPOSITE));
+            double actualComposite = Double.parseDouble(actualScores.remove(COMPOSITE));
+            assertEquals(expectedComposite, actualComposite, 1e-9, entity);
+            assertEquals(expectedScores, actualScores, entity);
+        }
+        assertEquals(Double.NaN, Double.parseDouble(actual.get("idukki").get(COMPOSITE)));
+    }
+
+    /**
+     * Scores worked out the way they were before the store grouped them: a score for every data point with a number,
+     * and their plain average for each entity
+     */
+    private static Map<String, Map<String, String>> scoresFromDataPoints(List<Map<String, String>> dataPoints) {
+        Map<String, double[]> ranges = new HashMap<>();
+        for (Map<String, String> dataPoint : dataPoints) {
+            Double number = parse(dataPoint.get("value"));
+            if (number != null) {
+                double[] range = ranges.computeIfAbsent(dataPoint.get(INDICATOR), whatever -> new double[]{number, number});
+                range[0] = Math.min(range[0], number);
+                range[1] = Math.max(range[1], number);
+            }
+        }
+        Map<String, Map<String, String>> results = new LinkedHashMap<>();
+        Map<String, List<Double>> scores = new HashMap<>();
+        for (Map<String, String> dataPoint : dataPoints) {
+            String entity = dataPoint.get(ENTITY);
+            results.computeIfAbsent(entity, whatever -> new HashMap<>(Map.of(ENTITY, entity)))
+                    .put(dataPoint.get(INDICATOR), dataPoint.get("value"));
+            List<Double> entityScores = scores.computeIfAbsent(entity, whatever -> new ArrayList<>());
+            Double number = parse(dataPoint.get("value"));
+            if (number != null) {
+                double[] range = ranges.get(dataPoint.get(INDICATOR));
+                double score = (range[1] - number) / (range[1] - range[0]);
+                entityScores.add("NEGATIVE".equals(dataPoint.get(TYPE)) ? 1 - score : score);
+            }
+        }
+        results.forEach((entity, result) -> {
+            double sum = scores.get(entity).stream().mapToDouble(Double::doubleValue).sum();
+            result.put(COMPOSITE, String.valueOf(sum / scores.get(entity).size()));
+        });
+        return results;
+    }
+
+    private static Map<String, Map<String, String>> byEntity(List<Map<String, String>> scores) {
+        Map<String, Map<String, String>> result = new HashMap<>();
+        scores.forEach(entityScores -> result.put(entityScores.get(ENTITY), entityScores));
+        return result;
+    }
+
+    private static Double parse(String value) {
+        try {
+            return value == null ? null : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, String> point(String entity, String indicator, String type, String value, String datafile) {
+        Map<String, String> dataPoint = new HashMap<>();
+        dataPoint.put(ENTITY, entity);
+        dataPoint.put(INDICATOR, indicator);
+        dataPoint.put(TYPE, type);
+        dataPoint.put("value", value);
+        dataPoint.put("meta.datafile", datafile);
+        return dataPoint;
+    }
+}